@@ -0,0 +1,69 @@
+package io.vos.stun.benchmarks;
+
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.LocationAttribute;
+import io.vos.stun.attribute.MappedAddressAttribute;
+import io.vos.stun.message.Message;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Requests shaped like the ones the clients send: a bare binding request, a
+ * negotiate request naming a peer's XOR-MAPPED-ADDRESS, and a PP request
+ * carrying the client's location.
+ */
+public final class BenchmarkMessages {
+
+  private BenchmarkMessages() {}
+
+  public static final InetSocketAddress CLIENT_ADDRESS = new InetSocketAddress("203.0.113.7", 53124);
+
+  public static final InetSocketAddress PEER_ADDRESS = new InetSocketAddress("198.51.100.23", 40312);
+
+  public static byte[] bindingRequest() {
+    return request(MESSAGE_METHOD_BINDING, new byte[0]);
+  }
+
+  public static byte[] negotiateRequest() {
+    return request(MESSAGE_METHOD_NEGOCIATE, AttributesCollection.builder()
+        .addAttribute(xorMappedAddress(PEER_ADDRESS))
+        .build()
+        .toByteArray());
+  }
+
+  public static byte[] ppRequest() {
+    return request(MESSAGE_METHOD_PP, AttributesCollection.builder()
+        .addAttribute(LocationAttribute.createAttribute(
+            100042L, 31.230416, 121.473701, 1500000000000L))
+        .build()
+        .toByteArray());
+  }
+
+  /** The attributes of a PP response: the location echoed back and the mapped address. */
+  public static AttributesCollection ppResponseAttributes() {
+    return AttributesCollection.builder()
+        .addAttribute(LocationAttribute.createAttribute(
+            100042L, 31.230416, 121.473701, 1500000000000L))
+        .addAttribute(xorMappedAddress(CLIENT_ADDRESS))
+        .build();
+  }
+
+  private static byte[] request(int method, byte[] attributeBytes) {
+    return Message.builder()
+        .setMessageClass(MESSAGE_CLASS_REQUEST)
+        .setMessageMethod(method)
+        .generateTransactionID()
+        .setAttributeBytes(attributeBytes)
+        .build()
+        .getBytes();
+  }
+
+  private static MappedAddressAttribute xorMappedAddress(InetSocketAddress address) {
+    // The addresses are IPv4, which are not XOR'd with the transaction ID.
+    return MappedAddressAttribute.createXorMappedAddress(
+        address, new byte[MESSAGE_LEN_TRANSACTION_ID]);
+  }
+
+}
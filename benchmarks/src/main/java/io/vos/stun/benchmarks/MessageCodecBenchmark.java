@@ -0,0 +1,80 @@
+package io.vos.stun.benchmarks;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION;
+
+import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.AttributesDecoder;
+import io.vos.stun.attribute.RFC5389AttributeFactory;
+import io.vos.stun.message.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Parsing and encoding costs of single messages, without any dispatch. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+  private byte[] bindingRequest;
+  private byte[] ppRequest;
+  private Message ppMessage;
+  private AttributesDecoder decoder;
+  private AttributesCollection ppResponseAttributes;
+
+  @Setup
+  public void setUp() {
+    bindingRequest = BenchmarkMessages.bindingRequest();
+    ppRequest = BenchmarkMessages.ppRequest();
+    ppMessage = new Message(ppRequest);
+    decoder = new AttributesDecoder(new RFC5389AttributeFactory());
+    ppResponseAttributes = BenchmarkMessages.ppResponseAttributes();
+  }
+
+  /** Reads every header field through a view over the received bytes. */
+  @Benchmark
+  public long wrapAndReadHeader() {
+    Message message = Message.wrap(bindingRequest, 0, bindingRequest.length);
+    return message.getMessageClass() + message.getMessageMethod() + message.getMessageLength()
+        + message.getMagicCookie() + message.getTransactionIdHigh() + message.getTransactionIdLow();
+  }
+
+  /** The defensive copy made by the public constructor. */
+  @Benchmark
+  public Message copyMessage() {
+    return new Message(ppRequest);
+  }
+
+  @Benchmark
+  public Object decodeAttributesEagerly() {
+    return decoder.decodeMessageAttributes(ppMessage).getFirstAttributeOfType(ATTRIBUTE_LOCATION);
+  }
+
+  @Benchmark
+  public Object decodeAttributesLazily() {
+    return decoder.decodeMessageAttributesLazily(ppMessage).getFirstAttributeOfType(ATTRIBUTE_LOCATION);
+  }
+
+  @Benchmark
+  public byte[] encodeAttributes() {
+    return ppResponseAttributes.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] buildResponse() {
+    return ppMessage.buildSuccessResponse(ppResponseAttributes.toByteArray()).getBytes();
+  }
+}
@@ -0,0 +1,129 @@
+package io.vos.stun.protocol;
+
+import com.didlink.db.LocationSink;
+import com.didlink.index.LocationIndex;
+import com.didlink.models.UserLocation;
+import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.AttributesDecoder;
+import io.vos.stun.attribute.RFC5389AttributeFactory;
+import io.vos.stun.benchmarks.BenchmarkMessages;
+import io.vos.stun.message.Message;
+
+import com.google.common.collect.Lists;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full request to response round trips through {@link Agent#onMessage}, the
+ * path every received packet takes. Lives in the protocol package to build
+ * the processors directly, so the PP requests update an index but skip the
+ * database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+  private Agent agent;
+  private BindingProcessor bindingProcessor;
+  private byte[] bindingRequest;
+  private byte[] negotiateRequest;
+  private byte[] ppRequest;
+  private Message bindingMessage;
+  private AttributesCollection bindingAttributes;
+  private byte[] lastResponse;
+  private ByteBuffer responseBuffer;
+  private ResponseHandler responseHandler;
+
+  @Setup
+  public void setUp() {
+    LocationSink discard = new LocationSink() {
+      @Override
+      public void save(UserLocation location) {}
+
+      @Override
+      public void saveAll(List<UserLocation> locations) {}
+    };
+    bindingProcessor = new BindingProcessor();
+    agent = new Agent(Lists.newArrayList(
+        bindingProcessor,
+        new NegociatingProcessor(),
+        new PpProcessor(discard, new LocationIndex(0.1))));
+
+    bindingRequest = BenchmarkMessages.bindingRequest();
+    negotiateRequest = BenchmarkMessages.negotiateRequest();
+    ppRequest = BenchmarkMessages.ppRequest();
+    bindingMessage = new Message(bindingRequest);
+    bindingAttributes = new AttributesDecoder(new RFC5389AttributeFactory())
+        .decodeMessageAttributes(bindingMessage);
+    responseBuffer = ByteBuffer.allocateDirect(BindingResponseEncoder.MAX_ENCODED_LENGTH);
+
+    responseHandler = new ResponseHandler() {
+      @Override
+      public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
+        lastResponse = messageData;
+      }
+
+      @Override
+      public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
+        lastResponse = messageData;
+      }
+
+      @Override
+      public void onIndication(byte[] messageData, InetAddress destAddress, int destPort) {
+        lastResponse = messageData;
+      }
+    };
+  }
+
+  @Benchmark
+  public byte[] binding() {
+    agent.onMessage(bindingRequest, BenchmarkMessages.CLIENT_ADDRESS, responseHandler);
+    return lastResponse;
+  }
+
+  @Benchmark
+  public byte[] negotiate() {
+    agent.onMessage(negotiateRequest, BenchmarkMessages.CLIENT_ADDRESS, responseHandler);
+    return lastResponse;
+  }
+
+  @Benchmark
+  public byte[] pp() {
+    agent.onMessage(ppRequest, BenchmarkMessages.CLIENT_ADDRESS, responseHandler);
+    return lastResponse;
+  }
+
+  /** XOR-MAPPED-ADDRESS encoding and the reply attributes, without the Agent around it. */
+  @Benchmark
+  public byte[] xorMappedAddress() throws ProtocolException {
+    return bindingProcessor.processRequest(
+        new RequestContext(bindingMessage, bindingAttributes, BenchmarkMessages.CLIENT_ADDRESS));
+  }
+
+  /** The whole binding response written into a reused direct buffer. */
+  @Benchmark
+  public ByteBuffer bindingResponseEncoder() {
+    responseBuffer.clear();
+    BindingResponseEncoder.encodeSuccessResponse(
+        bindingMessage, BenchmarkMessages.CLIENT_ADDRESS, responseBuffer);
+    return responseBuffer;
+  }
+}
@@ -3,4 +3,48 @@ package com.didlink;
 public class Constants {
     public static String PP_HOST = "localhost";
     public static int    PP_PORT = 7366;
+
+    /** Defaults for the datagram server, overridable with -Dpp.udp.* properties. */
+    public static int    UDP_WORKERS = Runtime.getRuntime().availableProcessors();
+    public static int    UDP_QUEUE_CAPACITY = 8192;
+    /** Sockets bound to PP_PORT with SO_REUSEPORT, each with its own receive thread. */
+    public static int    UDP_SHARDS = 1;
+    /** Most datagrams handed to a worker as one task. */
+    public static int    UDP_RECEIVE_BATCH_SIZE = 32;
+    /** SO_RCVBUF of each socket in bytes, overridable with -Dpp.udp.rcvbuf. */
+    public static int    UDP_SOCKET_RECEIVE_BUFFER = 4 * 1024 * 1024;
+    /** Direct buffers of 2 KB per socket for queued replies. */
+    public static int    UDP_SEND_BUFFERS = 1024;
+    /** Seconds between server statistics reports, 0 disables them. */
+    public static int    UDP_STATS_INTERVAL = 60;
+
+    /** Defaults for the stream server, overridable with -Dpp.tcp.* properties. */
+    public static int    TCP_WORKERS = Runtime.getRuntime().availableProcessors();
+    public static int    TCP_QUEUE_CAPACITY = 8192;
+    /** Seconds without traffic before a client connection is closed. */
+    public static int    TCP_IDLE_TIMEOUT = 300;
+    public static int    TCP_MAX_PENDING_FRAMES = 64;
+    public static int    TCP_MAX_PENDING_WRITE_BYTES = 64 * 1024;
+
+    /** Defaults for the location write-behind queue, overridable with -Dpp.db.* properties. */
+    public static int    DB_QUEUE_CAPACITY = 64 * 1024;
+    public static int    DB_BATCH_SIZE = 500;
+    /** Milliseconds a partial batch waits for more rows before it is written. */
+    public static int    DB_FLUSH_INTERVAL = 200;
+    /** One of DROP_OLDEST, BLOCK or SPILL, see LocationWriter.OverflowPolicy. */
+    public static String DB_OVERFLOW_POLICY = "DROP_OLDEST";
+    public static String DB_SPILL_FILE = "pp-location-spill.csv";
+    /** Milliseconds a uid's newest location is held before it is queued, 0 writes every location. */
+    public static int    DB_COALESCE_WINDOW = 5000;
+
+    /** Responses kept for retransmitted requests, overridable with -Dpp.cache.*; 0 disables the cache. */
+    public static int    RESPONSE_CACHE_SIZE = 64 * 1024;
+    /** Seconds a response is kept, long enough for every RFC 5389 retransmission. */
+    public static int    RESPONSE_CACHE_TTL = 40;
+
+    /** Port of the plain-text metrics endpoint, overridable with -Dpp.metrics.port; 0 disables it. */
+    public static int    METRICS_PORT = 7367;
+
+    /** Size in degrees of the grid cells of the last known location index. */
+    public static double INDEX_CELL_DEGREES = 0.1;
 }
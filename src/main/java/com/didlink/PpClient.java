@@ -1,59 +1,180 @@
 package com.didlink;
 
-import io.vos.stun.demo.EstablishListener;
-
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.vos.stun.attribute.CompactLocationAttribute;
+import io.vos.stun.attribute.LocationBatchAttribute;
+import io.vos.stun.message.Message;
+import io.vos.stun.protocol.ClientTransactionManager;
+import io.vos.stun.protocol.HashedWheelTimer;
+import io.vos.stun.protocol.PpRequestEncoder;
+import io.vos.stun.protocol.ResponseDecoder;
+import io.vos.stun.protocol.RetransmissionPolicy;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
-
-import static java.lang.Thread.sleep;
-
-public class PpClient {
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.vos.stun.message.Messages.MESSAGE_CLASS_ERROR_RESPONSE;
+
+/**
+ * Reports user locations to a PP server over UDP. A client is thread-safe and
+ * meant to be shared: every report is a transaction of its own on the one
+ * socket, so any number of them can be in flight at once, and each is
+ * retransmitted following the client's {@link RetransmissionPolicy} until
+ * the server answers.
+ * <p>
+ * Single reports go out as a COMPACT-LOCATION, with microdegree coordinates
+ * and the locatetime as a delta against a time base the client keeps for its
+ * session, so most requests are 44 bytes instead of 56.
+ * <p>
+ * The futures complete on the client's receive thread; callbacks that block
+ * should be added with an executor of their own.
+ */
+public class PpClient implements Closeable {
+
+    private static final AsyncFunction<Message, InetSocketAddress> TO_MAPPED_ADDRESS =
+            new AsyncFunction<Message, InetSocketAddress>() {
+                @Override
+                public ListenableFuture<InetSocketAddress> apply(Message response) {
+                    if (response.getMessageClass() == MESSAGE_CLASS_ERROR_RESPONSE) {
+                        return Futures.immediateFailedFuture(new IOException(
+                                "Report rejected with error " + ResponseDecoder.getErrorCode(response)));
+                    }
+                    InetSocketAddress mappedAddress = ResponseDecoder.getMappedAddress(response);
+                    if (mappedAddress == null) {
+                        return Futures.immediateFailedFuture(
+                                new IOException("Response without a mapped address"));
+                    }
+                    return Futures.immediateFuture(mappedAddress);
+                }
+            };
+
+    private static final AsyncFunction<Message, byte[]> TO_LOCATION_STATUSES =
+            new AsyncFunction<Message, byte[]>() {
+                @Override
+                public ListenableFuture<byte[]> apply(Message response) {
+                    if (response.getMessageClass() == MESSAGE_CLASS_ERROR_RESPONSE) {
+                        return Futures.immediateFailedFuture(new IOException(
+                                "Batch rejected with error " + ResponseDecoder.getErrorCode(response)));
+                    }
+                    byte[] statuses = ResponseDecoder.getLocationStatuses(response);
+                    if (statuses == null) {
+                        return Futures.immediateFailedFuture(
+                                new IOException("Response without location statuses"));
+                    }
+                    return Futures.immediateFuture(statuses);
+                }
+            };
+
+    /** The most records {@link #reportBatch} takes, those fitting one datagram. */
+    public static final int MAX_BATCH_SIZE = LocationBatchAttribute.MAX_RECORDS;
+
+    private final InetSocketAddress server;
+    private final ClientTransactionManager transactions;
+    private final SecureRandom random = new SecureRandom();
+    private volatile long timeBaseSeconds = System.currentTimeMillis() / 1000;
+
+    /** Creates a client on a new socket, retransmitting on the RFC 5389 schedule. */
+    public PpClient(InetSocketAddress server) throws SocketException {
+        this(new DatagramSocket(), server, RetransmissionPolicy.DEFAULT);
+    }
 
+    /**
+     * Creates a client reporting through {@code socket}, which it takes over
+     * and closes on {@link #close}.
+     */
+    public PpClient(DatagramSocket socket, InetSocketAddress server, RetransmissionPolicy policy) {
+        Preconditions.checkArgument(!server.isUnresolved(), "Unresolved server %s", server);
+        this.server = server;
+        this.transactions = new ClientTransactionManager(socket, HashedWheelTimer.getInstance(), policy);
+        this.transactions.start();
+    }
 
-    public static void main(String[] argv) throws Exception {
+    /**
+     * Reports that {@code uid} was at the given location at {@code locatetime},
+     * and returns the client's address as the server saw it. The future fails
+     * with a TimeoutException if the server never answers, and with an
+     * IOException if it rejects the report.
+     *
+     * @throws IllegalArgumentException if the coordinates are out of range
+     */
+    public ListenableFuture<InetSocketAddress> report(
+            long uid, double latitude, double longitude, long locatetime) {
+        long baseSeconds = timeBaseSeconds;
+        if (Math.abs(locatetime - baseSeconds * 1000) > CompactLocationAttribute.MAX_SHORT_DELTA_MILLIS) {
+            // Racing reports may each move the base, any of them will do.
+            baseSeconds = locatetime / 1000;
+            timeBaseSeconds = baseSeconds;
+        }
+        byte[] requestBytes = new byte[PpRequestEncoder.MAX_COMPACT_ENCODED_LENGTH];
+        int length = PpRequestEncoder.encodeCompactRequest(random.nextInt(), random.nextLong(),
+                uid, latitude, longitude, locatetime, baseSeconds, ByteBuffer.wrap(requestBytes));
+        Message request = Message.wrap(requestBytes, 0, length);
+        return Futures.transform(transactions.send(request, server), TO_MAPPED_ADDRESS);
+    }
 
-        EstablishListener udpEstablishedListener = new EstablishListener() {
-            @Override
-            public void established(String publicAddress, int publicPort, int localPort) {
+    /**
+     * Reports the records at the same index of each array in one request,
+     * and returns a status per record, in order, from the
+     * {@code LocationStatusAttribute.STATUS_*} constants. At most
+     * {@link #MAX_BATCH_SIZE} records fit a request.
+     */
+    public ListenableFuture<byte[]> reportBatch(
+            long[] uids, double[] latitudes, double[] longitudes, long[] locatetimes) {
+        byte[] requestBytes = new byte[PpRequestEncoder.encodedBatchLength(uids.length)];
+        PpRequestEncoder.encodeBatchRequest(random.nextInt(), random.nextLong(),
+                uids, latitudes, longitudes, locatetimes, ByteBuffer.wrap(requestBytes));
+        Message request = Message.wrap(requestBytes, 0, requestBytes.length);
+        return Futures.transform(transactions.send(request, server), TO_LOCATION_STATUSES);
+    }
 
-                System.out.println(String.format("EstablishedListener public address %s %d, local port %d", publicAddress, publicPort, localPort));
+    /** Returns the number of reports waiting for the server's answer. */
+    public int getPendingReports() {
+        return transactions.getPendingTransactions();
+    }
 
-            }
+    /** Closes the socket, failing the reports still waiting for an answer. */
+    @Override
+    public void close() {
+        transactions.close();
+    }
 
-            @Override
-            public void onError() {
+    public static void main(String[] argv) throws Exception {
+        InetSocketAddress server = new InetSocketAddress(
+                System.getProperty("pp.host", Constants.PP_HOST),
+                Integer.getInteger("pp.port", Constants.PP_PORT));
+
+        try (PpClient client = new PpClient(server)) {
+            List<ListenableFuture<InetSocketAddress>> reports = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                ListenableFuture<InetSocketAddress> report = client.report(
+                        122, 34.4343434D + i, 134.4344455D, System.currentTimeMillis());
+                Futures.addCallback(report, new FutureCallback<InetSocketAddress>() {
+                    @Override
+                    public void onSuccess(InetSocketAddress mappedAddress) {
+                        System.out.println(String.format("Reported, mapped address %s %d",
+                                mappedAddress.getAddress().getHostAddress(), mappedAddress.getPort()));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        System.out.println("Report failed: " + t);
+                    }
+                });
+                reports.add(report);
             }
-
-        };
-
-        String localIP = InetAddress.getLocalHost().getHostAddress();
-        System.out.println(String.format("Local IP address: %s",localIP));
-
-        DatagramSocket dgramSocket = null;
-        dgramSocket = new DatagramSocket();
-        dgramSocket.setReuseAddress(true);
-
-        System.out.println(String.format("Local IP address: %d",dgramSocket.getLocalPort()));
-
-        for (int i=0; i<5; i++) {
-            UdpPpClient udpPpClient = new UdpPpClient();
-            udpPpClient.tryTest(dgramSocket,
-                    "127.0.0.1",
-                    7366,
-                    122,
-                    3434.4343434D,
-                    434.4344455D,
-                    43434555665544L,
-                    udpEstablishedListener);
-            sleep(5000);
+            Futures.successfulAsList(reports).get();
         }
-
-        if (dgramSocket != null) {
-          if (dgramSocket.isConnected()) dgramSocket.disconnect();
-          if (!dgramSocket.isClosed()) dgramSocket.close();
-        }
-
     }
 
 }
@@ -1,267 +1,197 @@
 package com.didlink;
 
+import com.didlink.db.LocationCoalescer;
+import com.didlink.db.LocationWriter;
+import com.didlink.index.LocationIndex;
+import com.didlink.metrics.Gauge;
+import com.didlink.metrics.MetricsHttpServer;
+import com.didlink.metrics.MetricsMBean;
+import com.didlink.metrics.MetricsRegistry;
+import com.didlink.server.PacketCounters;
+import com.didlink.server.NioDatagramServer;
+import com.didlink.server.NioStreamServer;
 import io.vos.stun.protocol.Agent;
-import io.vos.stun.protocol.ResponseHandler;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
 import java.io.IOException;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class PpService {
-
-  public static void main(String[] args) throws IOException {
-    MultiThreadedServer streamServer = new MultiThreadedServer(Constants.PP_PORT);
-    DatagramServer dgramServer = new DatagramServer(Constants.PP_PORT);
-
-    ExecutorService executor = Executors.newFixedThreadPool(2);
-    executor.submit(streamServer);
-    executor.submit(dgramServer);
-    executor.shutdown();
-  }
+import javax.management.JMException;
 
-  private static class DatagramServer implements Runnable {
+public class PpService {
 
-    private int serverPort;
-    private final Agent agent;
+  private static final Logger LOG = LoggerFactory.getLogger(PpService.class);
 
-    DatagramServer(int serverPort) {
-      this.serverPort = serverPort;
-      this.agent = Agent.createBasicServer();
+  public static void main(String[] args) throws IOException {
+    // The database classes log through java.util.logging; send that through
+    // the same asynchronous appender.
+    SLF4JBridgeHandler.removeHandlersForRootLogger();
+    SLF4JBridgeHandler.install();
+
+    int udpWorkers = Integer.getInteger("pp.udp.workers", Constants.UDP_WORKERS);
+    int udpQueue = Integer.getInteger("pp.udp.queue", Constants.UDP_QUEUE_CAPACITY);
+    int udpShards = Integer.getInteger("pp.udp.shards", Constants.UDP_SHARDS);
+    int udpReceiveBatch = Integer.getInteger("pp.udp.receiveBatch", Constants.UDP_RECEIVE_BATCH_SIZE);
+    int udpSendBuffers = Integer.getInteger("pp.udp.sendBuffers", Constants.UDP_SEND_BUFFERS);
+    int statsInterval = Integer.getInteger("pp.udp.statsInterval", Constants.UDP_STATS_INTERVAL);
+
+    if (udpShards > 1 && !NioDatagramServer.isReusePortSupported()) {
+      LOG.warn("SO_REUSEPORT is not available, serving datagrams from a single socket");
+      udpShards = 1;
     }
 
-    public void run() {
-
-      final DatagramSocket dgramSocket;
-      try {
-        dgramSocket = new DatagramSocket(serverPort);
-        System.out.println("Started datagram server on port " + serverPort);
-      } catch (SocketException s) {
-        System.out.println("Unable to create new datagram socket");
-        s.printStackTrace();
-        return;
-      }
-
-      byte[] packetBuffer = new byte[1024];
-      while (true) {
-        DatagramPacket dgramPacket = new DatagramPacket(packetBuffer, packetBuffer.length);
+    int tcpWorkers = Integer.getInteger("pp.tcp.workers", Constants.TCP_WORKERS);
+    int tcpQueue = Integer.getInteger("pp.tcp.queue", Constants.TCP_QUEUE_CAPACITY);
+    int tcpIdleTimeout = Integer.getInteger("pp.tcp.idleTimeout", Constants.TCP_IDLE_TIMEOUT);
+    int metricsPort = Integer.getInteger("pp.metrics.port", Constants.METRICS_PORT);
+
+    Agent agent = Agent.getBasicServer();
+    NioStreamServer streamServer = new NioStreamServer(
+        Constants.PP_PORT,
+        agent,
+        NioStreamServer.newWorkerPool(tcpWorkers, tcpQueue),
+        TimeUnit.SECONDS.toMillis(tcpIdleTimeout),
+        Constants.TCP_MAX_PENDING_FRAMES,
+        Constants.TCP_MAX_PENDING_WRITE_BYTES);
+
+    ExecutorService udpWorkerPool = NioDatagramServer.newWorkerPool(udpWorkers, udpQueue);
+    final List<NioDatagramServer> dgramServers = new ArrayList<>();
+    for (int shard = 0; shard < udpShards; shard++) {
+      dgramServers.add(new NioDatagramServer(
+          Constants.PP_PORT, shard, udpShards > 1, agent, udpWorkerPool,
+          udpReceiveBatch, udpSendBuffers));
+    }
 
+    final LocationCoalescer locationCoalescer = LocationCoalescer.getInstance();
+    final LocationWriter locationWriter = LocationWriter.getInstance();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        locationCoalescer.close();
         try {
-          dgramSocket.receive(dgramPacket);
-
-          int packetLen = dgramPacket.getLength();
-//          System.out.println(String.format("Received packet of size %d bytes", packetLen));
-          byte[] msgBuffer = new byte[packetLen];
-          System.arraycopy(packetBuffer, 0, msgBuffer, 0, packetLen);
-
-          final InetSocketAddress remoteAddress =
-              new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
-          ResponseHandler rh =
-              createResponseHandler(dgramSocket);
-          System.out.println(String.format("Received packet from %s %d", dgramPacket.getAddress(), dgramPacket.getPort()));
-
-          agent.onMessage(msgBuffer, remoteAddress, rh);
-        } catch (IOException e) {
-          System.out.println("Error receiving datagram packet");
-          e.printStackTrace();
+          locationWriter.close(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
       }
+    }, "pp-location-writer-shutdown"));
+
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    registerGauges(metrics, dgramServers, locationCoalescer, locationWriter, LocationIndex.getInstance());
+    try {
+      MetricsMBean.register(metrics);
+    } catch (JMException e) {
+      LOG.warn("Unable to register the metrics MBean", e);
+    }
+    if (metricsPort > 0) {
+      new MetricsHttpServer(metrics, metricsPort).start();
     }
 
-    private ResponseHandler createResponseHandler(
-        final DatagramSocket dgramSocket) {
-      return new ResponseHandler() {
-        @Override
-        public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
-          System.out.println(String.format("Send packet to %s %d", destAddress.getHostAddress(), destPort));
+    ExecutorService executor = Executors.newFixedThreadPool(1 + dgramServers.size());
+    executor.submit(streamServer);
+    for (NioDatagramServer dgramServer : dgramServers) {
+      executor.submit(dgramServer);
+    }
+    executor.shutdown();
 
-          try {
-            DatagramPacket replyPacket = new DatagramPacket(
-                    messageData, messageData.length, destAddress, destPort);
-            dgramSocket.send(replyPacket);
-          } catch (IOException e) {
-            System.out.println("Error writing response to client");
-            e.printStackTrace();
+    if (statsInterval > 0) {
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("pp-stats").setDaemon(true).build());
+      reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          for (NioDatagramServer dgramServer : dgramServers) {
+            LOG.info("Datagram shard {}: {}", dgramServer.getShardId(), dgramServer.getCounters());
           }
+          LOG.info("Location coalescer: {}", locationCoalescer);
+          LOG.info("Location writer: {}", locationWriter);
         }
+      }, statsInterval, statsInterval, TimeUnit.SECONDS);
+    }
+  }
 
+  private static void registerGauges(MetricsRegistry metrics, List<NioDatagramServer> dgramServers,
+      final LocationCoalescer locationCoalescer, final LocationWriter locationWriter,
+      final LocationIndex locationIndex) {
+    for (final NioDatagramServer dgramServer : dgramServers) {
+      final PacketCounters counters = dgramServer.getCounters();
+      String prefix = "udp.shard" + dgramServer.getShardId();
+      metrics.register(prefix + ".received", new Gauge() {
         @Override
-        public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
-          System.out.println(String.format("Send packet to %s %d", destAddress.getHostAddress(), destPort));
-
-          try {
-            DatagramPacket replyPacket = new DatagramPacket(
-                messageData, messageData.length, destAddress, destPort);
-            dgramSocket.send(replyPacket);
-          } catch (IOException e) {
-            System.out.println("Error writing response to client");
-            e.printStackTrace();
-          }
+        public long getValue() {
+          return counters.getReceived();
         }
-
+      });
+      metrics.register(prefix + ".dropped", new Gauge() {
         @Override
-        public void onIndication(byte[] messageData, InetAddress destAddress, int destPort) {
-          onResponse(messageData, destAddress, destPort);
+        public long getValue() {
+          return counters.getDropped();
         }
-      };
-    }
-  }
-
-  private static class MultiThreadedServer implements Runnable {
-
-    private int serverPort;
-    private ServerSocket serverSocket;
-    private boolean isStopped;
-    private Thread runningThread;
-
-    MultiThreadedServer(int serverPort) {
-      this.serverPort = serverPort;
-    }
-
-    public void run() {
-      synchronized (this) {
-        this.runningThread = Thread.currentThread();
-      }
-
-      openServerSocket();
-
-      while (!isStopped) {
-        Socket clientSocket;
-        try {
-          clientSocket = serverSocket.accept();
-        } catch (IOException e) {
-          if (isStopped) {
-            System.out.println("Server stopped");
-            return;
-          }
-          throw new RuntimeException("Error accepting client connection");
+      });
+      metrics.register(prefix + ".sent", new Gauge() {
+        @Override
+        public long getValue() {
+          return counters.getSent();
         }
-
-        // connection accepted
-        if (clientSocket == null) {
-          System.out.println("Failed to accept client socket");
-        } else {
-          new Thread(new WorkerRunnable(clientSocket)).start();
+      });
+      metrics.register(prefix + ".sendFailed", new Gauge() {
+        @Override
+        public long getValue() {
+          return counters.getSendFailed();
         }
-      }
-
-      System.out.println("Server stopped");
-    }
-
-    public synchronized boolean isStopped() {
-      return isStopped;
+      });
+      metrics.register(prefix + ".sendQueue", new Gauge() {
+        @Override
+        public long getValue() {
+          return dgramServer.getSendQueueDepth();
+        }
+      });
     }
-
-    public synchronized void stop() {
-      isStopped = true;
-      try {
-        serverSocket.close();
-      } catch (IOException e) {
-        throw new RuntimeException("Error closing server socket", e);
+    metrics.register("db.coalescer.pending", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationCoalescer.getPendingCount();
       }
-    }
-
-    private void openServerSocket() {
-      try {
-        serverSocket = new ServerSocket(serverPort);
-        serverSocket.setReuseAddress(true);
-      } catch (IOException e) {
-        throw new RuntimeException("Error opening server socket", e);
+    });
+    metrics.register("db.writer.queueDepth", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationWriter.getQueueDepth();
       }
-      System.out.println(String.format("Stream server started on %d", serverPort));
-    }
-  }
-
-  private static class WorkerRunnable implements Runnable {
-
-    private final Socket clientSocket;
-    private final Agent agent;
-
-    WorkerRunnable(final Socket clientSocket) {
-      this.clientSocket = clientSocket;
-      this.agent = Agent.createBasicServer();
-    }
-
-    private void closeClient() {
-      if (clientSocket.isClosed()) {
-        return;
+    });
+    metrics.register("db.writer.written", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationWriter.getWritten();
       }
-
-      try {
-        clientSocket.close();
-        System.out.println("Closed client");
-      } catch(IOException e) {
-        System.out.println("Error closing client");
-        e.printStackTrace();
+    });
+    metrics.register("db.writer.dropped", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationWriter.getDropped();
       }
-    }
-
-    public void run() {
-      try {
-        DataInputStream inFromClient = new DataInputStream(clientSocket.getInputStream());
-        final DataOutputStream outToClient = new DataOutputStream(clientSocket.getOutputStream());
-
-        ResponseHandler rh = new ResponseHandler() {
-          @Override
-          public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
-            System.out.println(String.format("Received response: %d bytes", messageData.length));
-
-            try {
-              outToClient.write(messageData, 0, messageData.length);
-              outToClient.flush();
-            } catch (IOException e) {
-              System.out.println("Error writing response to client");
-              e.printStackTrace();
-              closeClient();
-            }
-          }
-
-          @Override
-            public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
-              System.out.println(String.format("Received response: %d bytes", messageData.length));
-
-              try {
-                outToClient.write(messageData, 0, messageData.length);
-                outToClient.flush();
-              } catch (IOException e) {
-                System.out.println("Error writing response to client");
-                e.printStackTrace();
-                closeClient();
-              }
-            }
-
-          @Override
-          public void onIndication(byte[] messageData, InetAddress destAddress, int destPort) {
-            onResponse(messageData, destAddress, destPort);
-          }
-
-        };
-        InetSocketAddress responseAddress =
-            new InetSocketAddress(clientSocket.getInetAddress(), clientSocket.getPort());
-
-        byte[] buffer = new byte[4];
-        while (!clientSocket.isClosed()) {
-          inFromClient.read(buffer);
-
-          int totalBytes = agent.totalBytesInMessage(buffer);
-          byte[] msgBuffer = new byte[totalBytes];
-          System.arraycopy(buffer, 0, msgBuffer, 0, buffer.length);
-          if (totalBytes > buffer.length) {
-            inFromClient.read(msgBuffer, 4, totalBytes - 4);
-          }
-
-          System.out.println(String.format("Received new message: %d bytes from %s %d", msgBuffer.length, clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort()));
-          agent.onMessage(msgBuffer, responseAddress, rh);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
-      } finally {
-        if (!clientSocket.isClosed()) {
-          closeClient();
-        }
+    });
+    metrics.register("db.writer.failed", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationWriter.getFailed();
       }
-    }
+    });
+    metrics.register("index.size", new Gauge() {
+      @Override
+      public long getValue() {
+        return locationIndex.size();
+      }
+    });
   }
 }
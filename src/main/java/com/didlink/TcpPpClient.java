@@ -7,6 +7,7 @@ import io.vos.stun.attribute.RFC5389AttributeFactory;
 import io.vos.stun.demo.EstablishListener;
 import io.vos.stun.message.Message;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.HashedWheelTimer;
 import io.vos.stun.protocol.ResponseHandler;
 import io.vos.stun.util.Bytes;
 
@@ -15,9 +16,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.vos.stun.message.Messages.MESSAGE_CLASS_REQUEST;
@@ -32,10 +30,7 @@ public class TcpPpClient {
   public void tryTest(String stunServer, int stunPort, EstablishListener establishListener) {
 //    timer = new Timer(true);
     ThreadedClient task = new ThreadedClient(stunServer, stunPort, timeout, establishListener);
-    ExecutorService executor = Executors.newFixedThreadPool(1);
-    executor.submit(task);
-    executor.shutdown();
-    //timer.schedule(task, 10);
+    HashedWheelTimer.getBlockingExecutor().execute(task);
 
   }
 
@@ -89,7 +84,7 @@ public class TcpPpClient {
       this.stunServer = stunServer;
       this.serverPort = serverPort;
       this.timeout = timeout;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
       this.establishListener = establishListener;
     }
 
@@ -100,7 +95,7 @@ public class TcpPpClient {
       try {
         socket = new Socket();
         socket.setReuseAddress(true);
-        socket.connect(new InetSocketAddress(stunServer, serverPort));
+        socket.connect(new InetSocketAddress(stunServer, serverPort), timeout);
         socket.setSoTimeout(timeout);
 
         System.out.println(String.format("Started tcp socket client on %s %d ", socket.getLocalAddress(), socket.getLocalPort()));
@@ -174,19 +169,14 @@ public class TcpPpClient {
       if (isError && establishListener != null) {
         if (this.timeout > 3000) {
           ErrorNotify task = new ErrorNotify(establishListener);
-          //timer.schedule(task, 10);
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-          executor.shutdown();
+          HashedWheelTimer.getInstance().schedule(task, 10, TimeUnit.MILLISECONDS, HashedWheelTimer.getBlockingExecutor());
 
         } else {
           System.out.println("Failed. Re-try.... ");
 
           ThreadedClient task = new ThreadedClient(this.stunServer, this.serverPort, this.timeout * 2, this.establishListener);
 
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 2000, TimeUnit.MILLISECONDS);
-          executor.shutdown();
+          HashedWheelTimer.getInstance().schedule(task, 2000, TimeUnit.MILLISECONDS, HashedWheelTimer.getBlockingExecutor());
         }
       }
 
@@ -234,10 +224,7 @@ public class TcpPpClient {
                     mappedAttribute.getPort(),
                     socket.getLocalPort(),
                     establishListener);
-            //timer.schedule(task, 10);
-            ExecutorService executor = Executors.newFixedThreadPool(1);
-            executor.submit(task);
-            executor.shutdown();
+            HashedWheelTimer.getBlockingExecutor().execute(task);
 
             System.out.println(String.format("Received Mapped Address: %s %d", mappedAddr.getHostAddress(), mappedAttribute.getPort()));
           } catch (UnknownHostException e) {
@@ -1,20 +1,20 @@
 package com.didlink;
 
-import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import io.vos.stun.attribute.*;
 import io.vos.stun.demo.EstablishListener;
 import io.vos.stun.message.Message;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.ClientTransactionManager;
+import io.vos.stun.protocol.HashedWheelTimer;
 import io.vos.stun.protocol.ResponseHandler;
 import io.vos.stun.util.Bytes;
 
-import java.io.IOException;
 import java.net.*;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static io.vos.stun.message.Messages.MESSAGE_CLASS_REQUEST;
 import static io.vos.stun.message.Messages.MESSAGE_METHOD_PP;
@@ -23,30 +23,41 @@ public class UdpPpClient {
 //  Timer timer;
 //  String stunServer = "www.disneyfans.cn";
 //  int port = 3478;
-  int timeout = 500; //ms
 
-  public void tryTest(DatagramSocket datagramSocket,
-                      String stunServer,
+  private final DatagramSocket dgramSocket;
+  private final ClientTransactionManager transactions;
+
+  /**
+   * Creates a client reporting through {@code datagramSocket}. Any number of
+   * reports may be in flight on it at once; {@link #close} closes the socket.
+   */
+  public UdpPpClient(DatagramSocket datagramSocket) {
+    this.dgramSocket = datagramSocket;
+    this.transactions = new ClientTransactionManager(datagramSocket);
+    this.transactions.start();
+  }
+
+  public void tryTest(String stunServer,
                       int stunPort,
                       long uid,
                       double latitude,
                       double longitude,
                       long locatetime,
                       EstablishListener udpEstablishedListener) {
-    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-
-    DatagramClient task = new DatagramClient(datagramSocket,
-            stunServer,
+    DatagramClient task = new DatagramClient(stunServer,
             stunPort,
             uid,
             latitude,
             longitude,
             locatetime,
-            timeout,
             udpEstablishedListener);
 
-    executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-    executor.shutdown();
+    HashedWheelTimer.getInstance().schedule(task, 10, TimeUnit.MILLISECONDS);
+  }
+
+  /** Closes the socket, failing the reports still waiting for a response. */
+  public void close() {
+    transactions.close();
   }
 
   private class FollowTask extends TimerTask {
@@ -86,12 +97,10 @@ public class UdpPpClient {
     }
   }
 
-  private class DatagramClient extends TimerTask {
+  private class DatagramClient implements Runnable {
 
-    private DatagramSocket dgramSocket;
     private String stunServer;
     private int serverPort;
-    private int timeout;
     private final Agent agent;
     private EstablishListener udpEstablishedListener;
 
@@ -100,141 +109,78 @@ public class UdpPpClient {
     private double longitude;
     private long locatetime;
 
-    DatagramClient(DatagramSocket dgramSocket,
-                   String stunServer,
+    DatagramClient(String stunServer,
                    int serverPort,
                    long uid,
                    double latitude,
                    double longitude,
                    long locatetime,
-                   int timeout,
                    EstablishListener udpEstablishedListener) {
-      super();
-      this.dgramSocket = dgramSocket;
       this.stunServer = stunServer;
       this.serverPort = serverPort;
       this.uid = uid;
       this.latitude = latitude;
       this.longitude = longitude;
-      this.timeout = timeout;
       this.locatetime = locatetime;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
       this.udpEstablishedListener = udpEstablishedListener;
     }
 
     public void run() {
 
-      //DatagramSocket dgramSocket = null;
-      boolean isError = false;
-      try {
-        //dgramSocket = new DatagramSocket();
-        //dgramSocket.setReuseAddress(true);
-//        dgramSocket.connect(InetAddress.getByName(stunServer), serverPort);
-        dgramSocket.setSoTimeout(timeout);
-
-        System.out.println(String.format("Started datagram client on %s %d ", dgramSocket.getLocalAddress(), dgramSocket.getLocalPort()));
-
-        Attribute attribute = LocationAttribute
-                .createAttribute(uid, latitude, longitude, locatetime);
-        AttributesCollection attributes = AttributesCollection.EMPTY_COLLECTION;
-
-        byte[] attributeBytes = attributes.replyBuilder()
-                .addAttribute(attribute)
-                .build()
-                .toByteArray();
-
-        Message request = Message.builder()
-                .setMessageClass(MESSAGE_CLASS_REQUEST)
-                .setMessageMethod(MESSAGE_METHOD_PP)
-                .generateTransactionID()
-                .setAttributeBytes(attributeBytes)
-                .build();
-
-        byte[] requestBytes = request.getBytes();
-        DatagramPacket replyPacket = new DatagramPacket(
-                requestBytes, requestBytes.length);
-        replyPacket.setSocketAddress(new InetSocketAddress(stunServer, serverPort));
-        dgramSocket.send(replyPacket);
-
-        byte[] packetBuffer = new byte[1024];
-
-        while (true) {
-          DatagramPacket dgramPacket = new DatagramPacket(packetBuffer, packetBuffer.length);
-
-          dgramSocket.receive(dgramPacket);
-          Message response = new Message(Preconditions.checkNotNull(packetBuffer));
-
-          if (request.equalTransactionID(response)) {
-            int packetLen = dgramPacket.getLength();
-//            System.out.println(String.format("Received packet of size %d bytes", packetLen));
-            byte[] msgBuffer = new byte[packetLen];
-            System.arraycopy(packetBuffer, 0, msgBuffer, 0, packetLen);
-
-            final InetSocketAddress remoteAddress =
-                    new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
-System.out.println(String.format("Received message from %s %d", dgramPacket.getAddress(), dgramPacket.getPort()));
-            ResponseHandler rh =
-                    createResponseHandler(dgramSocket);
-
-            agent.onMessage(msgBuffer, remoteAddress, rh);
-            break;
-          }
-        }
-
-      } catch (UnknownHostException s) {
+      final InetSocketAddress serverAddress = new InetSocketAddress(stunServer, serverPort);
+      if (serverAddress.isUnresolved()) {
         System.out.println("Unknown stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
-      } catch (PortUnreachableException s) {
-        System.out.println("Unreachable stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
-      } catch (SocketTimeoutException s) {
-        System.out.println("Timeout stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
-      } catch (SocketException s) {
-        System.out.println("Unable to create new datagram socket");
-        s.printStackTrace();
-        isError = true;
-      } catch (IOException e) {
-        System.out.println("Unable to send to / receive from stun server " + stunServer);
-        e.printStackTrace();
-        isError = true;
-      } finally  {
-//        if (dgramSocket != null) {
-//          if (dgramSocket.isConnected()) dgramSocket.disconnect();
-//          if (!dgramSocket.isClosed()) dgramSocket.close();
-//        }
+        onError();
+        return;
       }
 
-      if (isError && udpEstablishedListener != null) {
-        if (this.timeout > 3000) {
-          ErrorNotify task = new ErrorNotify(udpEstablishedListener);
-          //timer.schedule(task, 10);
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-          executor.shutdown();
-
-        } else {
-          System.out.println("Failed. Re-try.... ");
-
-          DatagramClient task = new DatagramClient(this.dgramSocket,
-                  this.stunServer,
-                  this.serverPort,
-                  this.uid,
-                  this.latitude,
-                  this.longitude,
-                  this.locatetime,
-                  this.timeout * 2,
-                  this.udpEstablishedListener);
-
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 2000, TimeUnit.MILLISECONDS);
-          executor.shutdown();
+      System.out.println(String.format("Started datagram client on %s %d ", dgramSocket.getLocalAddress(), dgramSocket.getLocalPort()));
+
+      Attribute attribute = LocationAttribute
+              .createAttribute(uid, latitude, longitude, locatetime);
+      AttributesCollection attributes = AttributesCollection.EMPTY_COLLECTION;
+
+      byte[] attributeBytes = attributes.replyBuilder()
+              .addAttribute(attribute)
+              .build()
+              .toByteArray();
+
+      Message request = Message.builder()
+              .setMessageClass(MESSAGE_CLASS_REQUEST)
+              .setMessageMethod(MESSAGE_METHOD_PP)
+              .generateTransactionID()
+              .setAttributeBytes(attributeBytes)
+              .build();
+
+      Futures.addCallback(transactions.send(request, serverAddress), new FutureCallback<Message>() {
+        @Override
+        public void onSuccess(Message response) {
+System.out.println(String.format("Received message from %s %d", serverAddress.getAddress(), serverAddress.getPort()));
+          ResponseHandler rh =
+                  createResponseHandler(dgramSocket);
+
+          agent.onMessage(response.getBytes(), serverAddress, rh);
         }
-      }
 
+        @Override
+        public void onFailure(Throwable t) {
+          if (t instanceof TimeoutException) {
+            System.out.println("Timeout stun server " + stunServer);
+          } else {
+            System.out.println("Unable to send to / receive from stun server " + stunServer);
+            t.printStackTrace();
+          }
+          onError();
+        }
+      });
+    }
+
+    private void onError() {
+      if (udpEstablishedListener != null) {
+        ErrorNotify task = new ErrorNotify(udpEstablishedListener);
+        HashedWheelTimer.getInstance().schedule(task, 10, TimeUnit.MILLISECONDS, HashedWheelTimer.getBlockingExecutor());
+      }
     }
 
     private int getPaddedLength(int length) {
@@ -279,10 +225,7 @@ System.out.println(String.format("Received message from %s %d", dgramPacket.getA
                     mappedAttribute.getPort(),
                     dgramSocket.getLocalPort(),
                     udpEstablishedListener);
-            //timer.schedule(task, 10);
-            ExecutorService executor = Executors.newFixedThreadPool(1);
-            executor.submit(task);
-            executor.shutdown();
+            HashedWheelTimer.getBlockingExecutor().execute(task);
 
             System.out.println(String.format("Received Mapped Address: %s %d", mappedAddr.getHostAddress(), mappedAttribute.getPort()));
           } catch (UnknownHostException e) {
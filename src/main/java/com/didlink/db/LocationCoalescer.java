@@ -0,0 +1,189 @@
+package com.didlink.db;
+
+import com.didlink.Constants;
+import com.didlink.models.UserLocation;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps only the newest location per uid for a window before passing it on.
+ * Clients re-send their location every few seconds, so without this most rows
+ * written to user_location would repeat the previous one. At the end of every
+ * window each uid seen during it is forwarded once, with the fix that has the
+ * latest locatetime.
+ */
+public class LocationCoalescer implements LocationSink {
+
+	private static final Logger LOGGER = Logger.getLogger(LocationCoalescer.class
+			.getName());
+
+	private static volatile LocationCoalescer m_oCoalescer = null;
+
+	private final LocationSink downstream;
+	private final long windowMillis;
+	private final ConcurrentMap<Long, UserLocation> pending = new ConcurrentHashMap<Long, UserLocation>();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong superseded = new AtomicLong();
+	private final AtomicLong forwarded = new AtomicLong();
+
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * Returns the shared coalescer in front of {@link LocationWriter#getInstance},
+	 * with the window from the pp.db.coalesceWindow system property.
+	 */
+	public static LocationCoalescer getInstance() {
+		if (m_oCoalescer == null) {
+			synchronized (LocationCoalescer.class) {
+				if (m_oCoalescer == null) {
+					LocationCoalescer coalescer = new LocationCoalescer(
+							LocationWriter.getInstance(),
+							Integer.getInteger("pp.db.coalesceWindow", Constants.DB_COALESCE_WINDOW));
+					coalescer.start();
+					m_oCoalescer = coalescer;
+				}
+			}
+		}
+		return m_oCoalescer;
+	}
+
+	/**
+	 * Creates a coalescer. A window of 0 turns it into a pass-through.
+	 */
+	public LocationCoalescer(LocationSink downstream, long windowMillis) {
+		Preconditions.checkArgument(windowMillis >= 0);
+		this.downstream = Preconditions.checkNotNull(downstream);
+		this.windowMillis = windowMillis;
+	}
+
+	public synchronized void start() {
+		if (windowMillis == 0) {
+			return;
+		}
+		Preconditions.checkState(flusher == null, "already started");
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("pp-location-coalescer").setDaemon(true).build());
+		flusher.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException ex) {
+					LOGGER.log(Level.WARNING, "ERROR flushing coalesced locations", ex);
+				}
+			}
+		}, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the periodic flush and forwards whatever is still pending. */
+	public void close() {
+		synchronized (this) {
+			if (flusher != null) {
+				flusher.shutdown();
+			}
+		}
+		flush();
+	}
+
+	@Override
+	public void save(UserLocation location) {
+		Preconditions.checkNotNull(location);
+		received.incrementAndGet();
+		if (windowMillis == 0) {
+			forwarded.incrementAndGet();
+			downstream.save(location);
+			return;
+		}
+
+		Long uid = location.getUid();
+		while (true) {
+			UserLocation current = pending.putIfAbsent(uid, location);
+			if (current == null) {
+				return;
+			}
+			if (current.getLocatetime() > location.getLocatetime()) {
+				// An out of order retransmission of an older fix.
+				superseded.incrementAndGet();
+				return;
+			}
+			if (pending.replace(uid, current, location)) {
+				superseded.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Accepts a batch. With a window, each location is coalesced like a single
+	 * one and the window's survivors are passed on together by {@link #flush}.
+	 */
+	@Override
+	public void saveAll(List<UserLocation> locations) {
+		if (windowMillis == 0) {
+			received.addAndGet(locations.size());
+			forwarded.addAndGet(locations.size());
+			downstream.saveAll(locations);
+			return;
+		}
+		for (UserLocation location : locations) {
+			save(location);
+		}
+	}
+
+	/**
+	 * Forwards the newest pending location of every uid, in one
+	 * {@link LocationSink#saveAll} call. A location saved while this runs is
+	 * either forwarded now or kept for the next window, never lost.
+	 */
+	public void flush() {
+		List<UserLocation> locations = new ArrayList<UserLocation>(pending.size());
+		for (Map.Entry<Long, UserLocation> entry : pending.entrySet()) {
+			UserLocation location = entry.getValue();
+			if (pending.remove(entry.getKey(), location)) {
+				locations.add(location);
+			}
+		}
+		if (!locations.isEmpty()) {
+			forwarded.addAndGet(locations.size());
+			downstream.saveAll(locations);
+		}
+	}
+
+	/** Users with a location waiting for the end of the window. */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	/** Locations replaced by a newer one for the same uid, and never written. */
+	public long getSuperseded() {
+		return superseded.get();
+	}
+
+	public long getForwarded() {
+		return forwarded.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("pending=%d received=%d superseded=%d forwarded=%d",
+				getPendingCount(), getReceived(), getSuperseded(), getForwarded());
+	}
+}
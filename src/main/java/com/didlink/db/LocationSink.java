@@ -0,0 +1,20 @@
+package com.didlink.db;
+
+import com.didlink.models.UserLocation;
+
+import java.util.List;
+
+/**
+ * Accepts user locations for persistence. Implementations may write them
+ * later, so callers on the packet path never wait for the database.
+ */
+public interface LocationSink {
+
+	void save(UserLocation location);
+
+	/**
+	 * Accepts several locations at once, such as the records of a batched
+	 * request, in order.
+	 */
+	void saveAll(List<UserLocation> locations);
+}
@@ -0,0 +1,404 @@
+package com.didlink.db;
+
+import com.didlink.Constants;
+import com.didlink.models.UserLocation;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue in front of {@link UserLocationDAO}. Locations are put on
+ * a bounded queue by the packet threads and a single background thread writes
+ * them with {@link UserLocationDAO#saveLocations}, flushing a batch once it is
+ * full or once its oldest row has waited for the flush interval. What happens
+ * when the queue is full is decided by the {@link OverflowPolicy}.
+ */
+public class LocationWriter implements LocationSink {
+
+	private static final Logger LOGGER = Logger.getLogger(LocationWriter.class
+			.getName());
+
+	/** What {@link LocationWriter#save} does when the queue is full. */
+	public enum OverflowPolicy {
+		/** Discard the oldest queued location to make room. */
+		DROP_OLDEST,
+		/** Make the caller wait for room. */
+		BLOCK,
+		/** Append the location to the spill file, replayed once the queue is idle. */
+		SPILL
+	}
+
+	/** How long to wait before replaying the spill file again after a failure. */
+	private static final long REPLAY_INTERVAL_MILLIS = 10000;
+
+	private static volatile LocationWriter m_oWriter = null;
+
+	private final UserLocationDAO dao;
+	private final BlockingQueue<UserLocation> queue;
+	private final int capacity;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final OverflowPolicy policy;
+	private final File spillFile;
+	private final Object spillLock = new Object();
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private volatile boolean running;
+	private Thread writerThread;
+	// Writer thread only.
+	private long nextReplay = System.nanoTime();
+	// Writer thread only: lines at the start of the replay file already
+	// written or spilled again, skipped when a failed replay is resumed.
+	private long replayedLines;
+
+	/**
+	 * Returns the shared writer, configured from the pp.db.* system properties
+	 * and started on first use.
+	 */
+	public static LocationWriter getInstance() {
+		if (m_oWriter == null) {
+			synchronized (LocationWriter.class) {
+				if (m_oWriter == null) {
+					LocationWriter writer = new LocationWriter(
+							new UserLocationDAO(),
+							Integer.getInteger("pp.db.queue", Constants.DB_QUEUE_CAPACITY),
+							Integer.getInteger("pp.db.batch", Constants.DB_BATCH_SIZE),
+							Integer.getInteger("pp.db.flushInterval", Constants.DB_FLUSH_INTERVAL),
+							OverflowPolicy.valueOf(System.getProperty(
+									"pp.db.overflow", Constants.DB_OVERFLOW_POLICY)),
+							new File(System.getProperty(
+									"pp.db.spillFile", Constants.DB_SPILL_FILE)));
+					writer.start();
+					m_oWriter = writer;
+				}
+			}
+		}
+		return m_oWriter;
+	}
+
+	public LocationWriter(UserLocationDAO dao, int capacity, int batchSize,
+			long flushIntervalMillis, OverflowPolicy policy, File spillFile) {
+		Preconditions.checkArgument(capacity > 0);
+		Preconditions.checkArgument(batchSize > 0);
+		Preconditions.checkArgument(flushIntervalMillis > 0);
+		this.dao = Preconditions.checkNotNull(dao);
+		this.queue = new ArrayBlockingQueue<UserLocation>(capacity);
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.policy = Preconditions.checkNotNull(policy);
+		this.spillFile = Preconditions.checkNotNull(spillFile);
+	}
+
+	public synchronized void start() {
+		Preconditions.checkState(writerThread == null, "already started");
+		running = true;
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "pp-location-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Lets the background thread exit once the queue is drained, and waits up
+	 * to {@code timeoutMillis} for it to do so.
+	 */
+	public void close(long timeoutMillis) throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			running = false;
+			thread = writerThread;
+		}
+		if (thread != null) {
+			thread.join(timeoutMillis);
+		}
+	}
+
+	@Override
+	public void save(UserLocation location) {
+		Preconditions.checkNotNull(location);
+		if (queue.offer(location)) {
+			enqueued.incrementAndGet();
+			return;
+		}
+
+		switch (policy) {
+		case DROP_OLDEST:
+			while (!queue.offer(location)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			enqueued.incrementAndGet();
+			break;
+		case BLOCK:
+			try {
+				queue.put(location);
+				enqueued.incrementAndGet();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+			}
+			break;
+		case SPILL:
+			spill(Collections.singletonList(location));
+			break;
+		default:
+			throw new AssertionError("Unknown overflow policy " + policy);
+		}
+	}
+
+	/**
+	 * Queues the locations in order. Once the queue is full the rest are left
+	 * to the overflow policy; a spill appends them in one write.
+	 */
+	@Override
+	public void saveAll(List<UserLocation> locations) {
+		int size = locations.size();
+		for (int i = 0; i < size; i++) {
+			UserLocation location = Preconditions.checkNotNull(locations.get(i));
+			if (queue.offer(location)) {
+				enqueued.incrementAndGet();
+			} else if (policy == OverflowPolicy.SPILL) {
+				spill(locations.subList(i, size));
+				return;
+			} else {
+				save(location);
+			}
+		}
+	}
+
+	/** Locations waiting to be written. */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getQueueCapacity() {
+		return capacity;
+	}
+
+	/** Locations accepted onto the queue. */
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	/** Locations written to the database, replayed ones included. */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/** Locations discarded by the overflow policy or a failed spill. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** Locations appended to the spill file. */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/** Locations in batches the database rejected. */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"depth=%d/%d enqueued=%d written=%d batches=%d dropped=%d spilled=%d failed=%d",
+				getQueueDepth(), getQueueCapacity(), getEnqueued(), getWritten(),
+				getBatches(), getDropped(), getSpilled(), getFailed());
+	}
+
+	private void writeLoop() {
+		List<UserLocation> batch = new ArrayList<UserLocation>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				UserLocation first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					replaySpill();
+					continue;
+				}
+				batch.add(first);
+
+				long deadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || remaining <= 0) {
+						break;
+					}
+					UserLocation next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException ex) {
+				running = false;
+			}
+
+			flush(batch);
+			batch.clear();
+		}
+		LOGGER.info("Location writer stopped: " + this);
+	}
+
+	private boolean flush(List<UserLocation> batch) {
+		if (batch.isEmpty()) {
+			return true;
+		}
+		try {
+			dao.saveLocations(batch);
+			written.addAndGet(batch.size());
+			batches.incrementAndGet();
+			return true;
+		} catch (Exception ex) {
+			failed.addAndGet(batch.size());
+			LOGGER.log(Level.WARNING, batch.size() + " user locations are not saved.");
+			if (policy == OverflowPolicy.SPILL) {
+				spill(batch);
+			}
+			return false;
+		}
+	}
+
+	private boolean spill(List<UserLocation> locations) {
+		if (locations.isEmpty()) {
+			return true;
+		}
+		synchronized (spillLock) {
+			try (BufferedWriter writer = new BufferedWriter(new FileWriter(spillFile, true))) {
+				for (UserLocation location : locations) {
+					writer.write(location.getUid() + "," + location.getAddress() + ","
+							+ location.getPort() + "," + location.getLatitude() + ","
+							+ location.getLongtitude() + "," + location.getLocatetime());
+					writer.newLine();
+				}
+				spilled.addAndGet(locations.size());
+				return true;
+			} catch (IOException ex) {
+				dropped.addAndGet(locations.size());
+				LOGGER.log(Level.WARNING, "ERROR spilling user locations to " + spillFile, ex);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Writes spilled locations back to the database. Only called by the writer
+	 * thread while the queue is empty, so replay never competes with live
+	 * traffic. Once a batch fails the rest of the file goes back to the spill
+	 * file, and the next attempt waits for the replay interval. A replay that
+	 * can't read its file to the end is resumed later from the first line not
+	 * yet handled, so no location is written twice.
+	 */
+	private void replaySpill() {
+		if (System.nanoTime() - nextReplay < 0) {
+			return;
+		}
+		File replayFile = new File(spillFile.getPath() + ".replay");
+		// A leftover replay file is resumed even when nothing new was spilled.
+		if (!replayFile.exists() && spillFile.length() == 0) {
+			return;
+		}
+		synchronized (spillLock) {
+			if (!replayFile.exists() && !spillFile.renameTo(replayFile)) {
+				LOGGER.log(Level.WARNING, "ERROR moving spill file " + spillFile);
+				return;
+			}
+		}
+
+		boolean ok = true;
+		long lineNumber = 0;
+		List<UserLocation> batch = new ArrayList<UserLocation>(batchSize);
+		try (BufferedReader reader = new BufferedReader(new FileReader(replayFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (lineNumber <= replayedLines) {
+					continue;
+				}
+				UserLocation location = parseSpilled(line);
+				if (location != null) {
+					batch.add(location);
+				}
+				if (batch.size() >= batchSize) {
+					// A failed flush has already put its batch back in the spill file.
+					if (ok) {
+						ok = flush(batch);
+					} else {
+						spill(batch);
+					}
+					batch.clear();
+					replayedLines = lineNumber;
+				}
+			}
+		} catch (IOException ex) {
+			// The lines of the unfinished batch are read again next time.
+			LOGGER.log(Level.WARNING, "ERROR replaying spill file " + replayFile, ex);
+			nextReplay = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLAY_INTERVAL_MILLIS);
+			return;
+		}
+		if (ok) {
+			ok = flush(batch);
+		} else {
+			spill(batch);
+		}
+		replayedLines = lineNumber;
+		if (!ok) {
+			nextReplay = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLAY_INTERVAL_MILLIS);
+		}
+		if (replayFile.delete()) {
+			replayedLines = 0;
+		} else {
+			LOGGER.log(Level.WARNING, "ERROR deleting spill file " + replayFile);
+		}
+	}
+
+	private static UserLocation parseSpilled(String line) {
+		String[] fields = line.split(",");
+		if (fields.length != 6) {
+			LOGGER.log(Level.WARNING, "Skipping malformed spilled location: " + line);
+			return null;
+		}
+		try {
+			return new UserLocation(Long.parseLong(fields[0]), fields[1],
+					Integer.parseInt(fields[2]), Double.parseDouble(fields[3]),
+					Double.parseDouble(fields[4]), Long.parseLong(fields[5]));
+		} catch (NumberFormatException ex) {
+			LOGGER.log(Level.WARNING, "Skipping malformed spilled location: " + line);
+			return null;
+		}
+	}
+}
@@ -13,6 +13,9 @@
 
 package com.didlink.db;
 
+import com.didlink.metrics.Counter;
+import com.didlink.metrics.LatencyHistogram;
+import com.didlink.metrics.MetricsRegistry;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -41,6 +44,8 @@ private long                           timeoutMs;
 private PrintWriter                    logWriter;
 private Semaphore                      semaphore;
 private PoolConnectionEventListener    poolConnectionEventListener;
+private LatencyHistogram               waitTime;                     // time spent waiting for a free connection, in microseconds
+private Counter                        timeouts;                     // checkouts that gave up waiting
 
 // The following variables must only be accessed within synchronized blocks.
 // @GuardedBy("this") could by used in the future.
@@ -93,7 +98,9 @@ public MiniConnectionPoolManager (ConnectionPoolDataSource dataSource, int maxCo
       throw new IllegalArgumentException("Invalid maxConnections value."); }
    semaphore = new Semaphore(maxConnections,true);
    recycledConnections = new LinkedList<PooledConnection>();
-   poolConnectionEventListener = new PoolConnectionEventListener(); }
+   poolConnectionEventListener = new PoolConnectionEventListener();
+   waitTime = MetricsRegistry.getInstance().histogram("db.pool.wait.us");
+   timeouts = MetricsRegistry.getInstance().counter("db.pool.timeouts"); }
 
 /**
 * Closes all unused pooled connections.
@@ -134,8 +141,12 @@ private Connection getConnection2 (long timeoutMs) throws SQLException {
    synchronized (this) {
       if (isDisposed) {
          throw new IllegalStateException("Connection pool has been disposed."); }}
+   long waitStart = System.nanoTime();
    try {
-      if (!semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+      boolean acquired = semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+      waitTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - waitStart));
+      if (!acquired) {
+         timeouts.increment();
          throw new TimeoutException(); }}
     catch (InterruptedException e) {
       throw new RuntimeException("Interrupted while waiting for a database connection.",e); }
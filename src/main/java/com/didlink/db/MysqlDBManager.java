@@ -1,5 +1,7 @@
 package com.didlink.db;
 
+import com.didlink.metrics.Gauge;
+import com.didlink.metrics.MetricsRegistry;
 import com.mysql.cj.jdbc.MysqlConnectionPoolDataSource;
 
 import java.io.PrintWriter;
@@ -22,7 +24,7 @@ public class MysqlDBManager {
 			.getName());
 	private HashMap<String, MiniConnectionPoolManager> m_hmConnectionManagers = null;
 
-	private static String DATASOURCE_DB_URL = "jdbc:mysql://localhost:3306/didlink";
+	private static String DATASOURCE_DB_URL = "jdbc:mysql://localhost:3306/didlink?rewriteBatchedStatements=true";
 	private static String DATASOURCE_USER_NAME = "root";
 	private static String DATASOURCE_DECODED_PASSWORD = "root";
 	private static int DATASOURCE_POOL_SIZE = 20;
@@ -93,6 +95,7 @@ public class MysqlDBManager {
 		poolMgr = new MiniConnectionPoolManager(dataSource, DATASOURCE_POOL_SIZE);
 
 		m_hmConnectionManagers.put(sPoolName, poolMgr);
+		registerPoolGauges(sPoolName, poolMgr);
 
 		Connection conn = null;
 		try {
@@ -109,6 +112,25 @@ public class MysqlDBManager {
 		}
 	}
 
+	private void registerPoolGauges(String sPoolName,
+			final MiniConnectionPoolManager oPoolMgr) {
+		String sPrefix = "db.pool." + sPoolName.toLowerCase();
+		MetricsRegistry.getInstance().register(sPrefix + ".active",
+				new Gauge() {
+					@Override
+					public long getValue() {
+						return oPoolMgr.getActiveConnections();
+					}
+				});
+		MetricsRegistry.getInstance().register(sPrefix + ".inactive",
+				new Gauge() {
+					@Override
+					public long getValue() {
+						return oPoolMgr.getInactiveConnections();
+					}
+				});
+	}
+
 	private ConnectionPoolDataSource createMysqlDataSource()
 			throws SQLException, Exception {
 
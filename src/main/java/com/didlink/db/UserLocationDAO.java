@@ -1,10 +1,15 @@
 package com.didlink.db;
 
+import com.didlink.metrics.Counter;
+import com.didlink.metrics.LatencyHistogram;
+import com.didlink.metrics.MetricsRegistry;
 import com.didlink.models.UserLocation;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +21,15 @@ public class UserLocationDAO {
 
 	private static final String SQL_SAVE_LOCATION = "insert into user_location(uid,address,port,latitude,longitude,locatetime) values(?,?,?,?,?,?)";
 
+	private static final LatencyHistogram SAVE_LATENCY = MetricsRegistry
+			.getInstance().histogram("db.save.us");
+	private static final LatencyHistogram BATCH_LATENCY = MetricsRegistry
+			.getInstance().histogram("db.batch.us");
+	private static final Counter BATCH_ROWS = MetricsRegistry.getInstance()
+			.counter("db.batch.rows");
+	private static final Counter SAVE_FAILURES = MetricsRegistry
+			.getInstance().counter("db.save.failures");
+
 	public UserLocationDAO() {
 	}
 
@@ -74,6 +88,7 @@ public class UserLocationDAO {
 	public void saveLocation(UserLocation oLocation)
 			throws Exception {
 
+		long start = System.nanoTime();
 		Connection con = null;
 		PreparedStatement statement = null;
 		try {
@@ -94,9 +109,12 @@ public class UserLocationDAO {
 			statement.setLong(6, oLocation.getLocatetime());
 
 			statement.executeUpdate();
+			SAVE_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(System
+					.nanoTime() - start));
 
 		} catch (Exception ex) {
 
+			SAVE_FAILURES.increment();
 			LOGGER.log(Level.INFO, "ERROR saving user location information", ex);
 			throw ex;
 		} finally {
@@ -104,6 +122,75 @@ public class UserLocationDAO {
 		}
 	}
 
+	/**
+	 * Saves the locations as one JDBC batch in a single transaction, so a
+	 * batch costs one connection checkout and one round trip to the database
+	 * instead of one per row.
+	 */
+	public void saveLocations(List<UserLocation> locations)
+			throws Exception {
+
+		if (locations.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		Connection con = null;
+		PreparedStatement statement = null;
+		boolean autoCommit = true;
+		try {
+
+			con = getConnection();
+			autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+
+			String sQry = SQL_SAVE_LOCATION;
+
+			LOGGER.finest("Batch Save Qry::[" + sQry + "] rows::" + locations.size());
+
+			statement = con.prepareStatement(sQry);
+
+			for (UserLocation oLocation : locations) {
+				statement.setLong(1, oLocation.getUid());
+				statement.setString(2, oLocation.getAddress());
+				statement.setInt(3, oLocation.getPort());
+				statement.setDouble(4, oLocation.getLatitude());
+				statement.setDouble(5, oLocation.getLongtitude());
+				statement.setLong(6, oLocation.getLocatetime());
+				statement.addBatch();
+			}
+
+			statement.executeBatch();
+			con.commit();
+			BATCH_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(System
+					.nanoTime() - start));
+			BATCH_ROWS.add(locations.size());
+
+		} catch (Exception ex) {
+
+			SAVE_FAILURES.increment();
+
+			if (con != null) {
+				try {
+					con.rollback();
+				} catch (Exception rollbackEx) {
+					LOGGER.log(Level.INFO, "ERROR rolling back user location batch", rollbackEx);
+				}
+			}
+			LOGGER.log(Level.INFO, "ERROR saving user location batch", ex);
+			throw ex;
+		} finally {
+			if (con != null) {
+				try {
+					con.setAutoCommit(autoCommit);
+				} catch (Exception ex) {
+					LOGGER.log(Level.INFO, "ERROR restoring auto commit", ex);
+				}
+			}
+			closeConnection(con, statement, null);
+		}
+	}
+
 /*
 	public void savePreviewRecord(PreviewRecord oPreviewRecord)
 			throws Exception {
@@ -9,10 +9,14 @@ import java.net.Socket;
  * Created by wuh56 on 4/25/2017.
  */
 public class AppSingleton {
-    private static AppSingleton instance;
+    private static volatile AppSingleton instance;
     public static AppSingleton getInstance() {
         if (instance == null) {
-            instance = new AppSingleton();
+            synchronized (AppSingleton.class) {
+                if (instance == null) {
+                    instance = new AppSingleton();
+                }
+            }
         }
         return instance;
     }
@@ -23,7 +27,7 @@ public class AppSingleton {
 
     public static int stunPort = 7366;
 
-    private PeerCollection nodeCollection = PeerCollection.EMPTY_COLLECTION;
+    private volatile PeerCollection nodeCollection = new PeerCollection();
 
     public PeerCollection getNodeCollection() {
         return this.nodeCollection;
@@ -32,7 +36,7 @@ public class AppSingleton {
         this.nodeCollection = nodeCollection;
     }
 
-    private SendService sendService;
+    private volatile SendService sendService;
 
     public void setSendService(SendService sendService) {
         this.sendService = sendService;
@@ -42,7 +46,7 @@ public class AppSingleton {
         return sendService;
     }
 
-    private DatagramSocket dgramSocket;
+    private volatile DatagramSocket dgramSocket;
     public void setDgramSocket(DatagramSocket dgramSocket) {
         this.dgramSocket = dgramSocket;
     }
@@ -51,7 +55,7 @@ public class AppSingleton {
         return this.dgramSocket;
     }
 
-    private Socket socket;
+    private volatile Socket socket;
     public void setSocket(Socket socket) {
         this.socket = socket;
     }
@@ -4,13 +4,12 @@ import io.vos.stun.demo.EstablishListener;
 import io.vos.stun.demo.TcpStunClient;
 import io.vos.stun.ice.Peer;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.HashedWheelTimer;
 
 import java.io.*;
 import java.net.*;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -84,9 +83,8 @@ public class TcpNegociator {
 
                     AcceptThread acceptThread = new AcceptThread(remoteAddress, remotePort, localPort, true, negociationObserver);
 
-                    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-                    executor.schedule(acceptThread, 10, TimeUnit.MILLISECONDS);
-                    executor.shutdown();
+                    HashedWheelTimer.getInstance().schedule(acceptThread, 10, TimeUnit.MILLISECONDS,
+                            HashedWheelTimer.getBlockingExecutor());
 
 //                    NegociationTask task = new NegociationTask(stunServer, stunPort, timeout,
 //                            publicAddress, publicPort,
@@ -167,7 +165,7 @@ public class TcpNegociator {
                 Socket clientSocket;
                 clientSocket = serverSocket.accept();
                 System.out.println("Accepted remote connection.");
-                String remoteAddress = clientSocket.getRemoteSocketAddress().toString();
+                InetAddress remoteAddress = clientSocket.getInetAddress();
                 int remotePort = clientSocket.getPort();
                 if (negociationObserver != null) {
                     Peer peer = new Peer(remoteAddress, remotePort, false);
@@ -198,7 +196,7 @@ public class TcpNegociator {
         return !isError;
     }
 
-    private class AcceptThread extends TimerTask {
+    private class AcceptThread implements Runnable {
 
         private String remoteAddress;
         private int remotePort;
@@ -220,9 +218,8 @@ public class TcpNegociator {
                 System.out.println("Succeed, congratulation!!");
             } else {
                 AcceptThread acceptThread = new AcceptThread(remoteAddress, remotePort, localPort,!isAccept,negociationObserver);
-                ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-                executor.schedule(acceptThread, 10, TimeUnit.MILLISECONDS);
-                executor.shutdown();
+                HashedWheelTimer.getInstance().schedule(acceptThread, 10, TimeUnit.MILLISECONDS,
+                        HashedWheelTimer.getBlockingExecutor());
             }
 
         }
@@ -279,7 +276,7 @@ public class TcpNegociator {
 
         ReceiveThread(Socket socket) {
             this.socket = socket;
-            this.agent = Agent.createBasicServer();
+            this.agent = Agent.getBasicServer();
         }
     }
 
@@ -7,7 +7,9 @@ import io.vos.stun.demo.UdpStunClient;
 import io.vos.stun.ice.Peer;
 import io.vos.stun.message.Message;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.HashedWheelTimer;
 import io.vos.stun.protocol.ResponseHandler;
+import io.vos.stun.protocol.RetransmissionPolicy;
 import io.vos.stun.util.Address;
 import io.vos.stun.util.Bytes;
 
@@ -15,9 +17,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.*;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.vos.stun.message.Messages.*;
@@ -28,7 +27,7 @@ import static io.vos.stun.message.Messages.*;
 public class UdpNegociator {
 //    String stunServer = "www.disneyfans.cn";
 //    int stunPort = 3478;
-    int timeout = 500;
+    int timeout = (int) RetransmissionPolicy.DEFAULT.getRtoMillis();
 //    Timer timer;
 
     NegociationObserver negociationObserver = new NegociationObserver() {
@@ -80,11 +79,7 @@ public class UdpNegociator {
                             publicAddress, publicPort,
                             remoteAddress, remotePort,
                             negociationObserver);
-                    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-                    executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-                    executor.shutdown();
-
-                    //timer.schedule(task, 10);
+                    HashedWheelTimer.getInstance().schedule(task, 10, TimeUnit.MILLISECONDS);
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
@@ -136,7 +131,12 @@ public class UdpNegociator {
         new Thread(receiveThread).start();
     }
 
-    private class NegociationTask extends TimerTask {
+    /**
+     * Punches a hole towards the remote peer: asks the server to relay an
+     * indication to it and sends it a request directly, every timeout until
+     * either gets through. Runs on the shared timer instead of sleeping.
+     */
+    private class NegociationTask implements Runnable {
         private String stunServer;
         private int stunPort;
         private int timeout;
@@ -154,7 +154,6 @@ public class UdpNegociator {
                         String remoteAddress,
                         int remotePort,
                         NegociationObserver negociationObserver) {
-            super();
             this.stunServer = stunServer;
             this.stunPort = stunPort;
             this.timeout = timeout;
@@ -165,12 +164,26 @@ public class UdpNegociator {
             this.negociationObserver = negociationObserver;
         }
 
+        /**
+         * Reports the outcome once the peer answered or timed out, otherwise
+         * sends another round of requests and runs again a timeout later.
+         */
         public void run() {
-            if (!AppSingleton.getInstance().getNodeCollection().hasPeer(remoteAddress, remotePort)) {
-                AppSingleton.getInstance().getNodeCollection().addPeer(remoteAddress, remotePort);
+            Peer peer = AppSingleton.getInstance().getNodeCollection().getFirstPeer(remoteAddress, remotePort);
+            if (peer.isSucceed()) {
+                if (negociationObserver != null) {
+                    negociationObserver.onSuccess(remoteAddress, remotePort);
+                }
+                return;
+            }
+            if (peer.isTimeout()) {
+                if (negociationObserver != null) {
+                    negociationObserver.onTimeout(remoteAddress, remotePort);
+                }
+                return;
             }
 
-            if (!AppSingleton.getInstance().getNodeCollection().getFirstPeer(remoteAddress, remotePort).getRequestReceived()) {
+            if (!peer.getRequestReceived()) {
                 byte[] attributesBytes = makeMappedAttrbytes(remoteAddress, remotePort);
                 Message request = Message.builder()
                         .setMessageClass(MESSAGE_CLASS_INDICATION)
@@ -183,7 +196,7 @@ public class UdpNegociator {
                 AppSingleton.getInstance().getSendService().sendMessage(requestBytes, stunServer, stunPort);
             }
 
-            if (!AppSingleton.getInstance().getNodeCollection().getFirstPeer(remoteAddress, remotePort).getResponseReceived()) {
+            if (!peer.getResponseReceived()) {
                 byte[] attributesBytes1 = makeMappedAttrbytes(publicAddress, publicPort);
                 Message request1 = Message.builder()
                         .setMessageClass(MESSAGE_CLASS_REQUEST)
@@ -196,31 +209,7 @@ public class UdpNegociator {
                 AppSingleton.getInstance().getSendService().sendMessage(requestBytes1, remoteAddress, remotePort);
             }
 
-
-            try {
-                Thread.sleep(500);
-                if (AppSingleton.getInstance().getNodeCollection().getFirstPeer(remoteAddress, remotePort).isSucceed()) {
-                    if (negociationObserver != null) {
-                        negociationObserver.onSuccess(remoteAddress, remotePort);
-                    }
-                } else if (AppSingleton.getInstance().getNodeCollection().getFirstPeer(remoteAddress, remotePort).isTimeout()) {
-                    if (negociationObserver != null) {
-                        negociationObserver.onTimeout(remoteAddress, remotePort);
-                    }
-                } else {
-                    NegociationTask task = new NegociationTask(stunServer, stunPort, timeout,
-                            publicAddress, publicPort,
-                            remoteAddress, remotePort,
-                            negociationObserver);
-                    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-                    executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-                    executor.shutdown();
-                    //timer.schedule(task, 10);
-                }
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            HashedWheelTimer.getInstance().schedule(this, timeout, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -301,7 +290,7 @@ public class UdpNegociator {
             this.dgramSocket = dgramSocket;
             this.publicAddress = publicAddress;
             this.publicPort = publicPort;
-            this.agent = Agent.createBasicServer();
+            this.agent = Agent.getBasicServer();
         }
     }
 
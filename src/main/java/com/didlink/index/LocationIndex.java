@@ -0,0 +1,289 @@
+package com.didlink.index;
+
+import com.didlink.Constants;
+import com.didlink.models.UserLocation;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * The last known location of every user, kept in memory so peer lookups never
+ * touch the database. Locations are found by uid, or by position through a
+ * grid of fixed size latitude/longitude cells: a spatial query only visits the
+ * cells that overlap its bounding box and then checks the exact distance.
+ * <p>
+ * All methods are thread safe. A query that runs concurrently with updates
+ * sees each user either at their old or their new location.
+ */
+public class LocationIndex {
+
+  /** Mean earth radius used for distances, in km. */
+  static final double EARTH_RADIUS_KM = 6371.0088;
+
+  private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+
+  private static volatile LocationIndex instance;
+
+  private final double cellDegrees;
+  private final int rows;
+  private final int columns;
+  private final ConcurrentMap<Long, UserLocation> byUid = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, Set<Long>> cells = new ConcurrentHashMap<>();
+
+  /** Returns the index shared by the servers, with cells of pp.index.cellDegrees. */
+  public static LocationIndex getInstance() {
+    if (instance == null) {
+      synchronized (LocationIndex.class) {
+        if (instance == null) {
+          String cellDegrees = System.getProperty("pp.index.cellDegrees");
+          instance = new LocationIndex(cellDegrees == null
+              ? Constants.INDEX_CELL_DEGREES : Double.parseDouble(cellDegrees));
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Creates an index whose grid cells span {@code cellDegrees} of latitude and
+   * longitude. Cells about the size of a typical query radius work best; the
+   * grid must have fewer than 2^31 columns, so cells of less than about 2e-7
+   * degrees are refused.
+   */
+  public LocationIndex(double cellDegrees) {
+    Preconditions.checkArgument(
+        cellDegrees > 0 && cellDegrees <= 90 && 360 / cellDegrees < Integer.MAX_VALUE,
+        "Invalid cell size %s", cellDegrees);
+    this.cellDegrees = cellDegrees;
+    this.rows = (int) Math.ceil(180 / cellDegrees);
+    this.columns = (int) Math.ceil(360 / cellDegrees);
+  }
+
+  /**
+   * Records a location, unless the index already holds a newer one for the
+   * same uid. Returns whether the location was recorded.
+   */
+  public boolean update(UserLocation location) {
+    Preconditions.checkNotNull(location);
+    Preconditions.checkArgument(isValid(location.getLatitude(), location.getLongtitude()),
+        "Invalid coordinates %s,%s", location.getLatitude(), location.getLongtitude());
+
+    Long uid = location.getUid();
+    UserLocation previous;
+    while (true) {
+      previous = byUid.putIfAbsent(uid, location);
+      if (previous == null) {
+        break;
+      }
+      if (previous.getLocatetime() > location.getLocatetime()) {
+        return false;
+      }
+      if (byUid.replace(uid, previous, location)) {
+        break;
+      }
+    }
+
+    long cell = cellOf(location.getLatitude(), location.getLongtitude());
+    cellMembers(cell).add(uid);
+    if (previous != null) {
+      long previousCell = cellOf(previous.getLatitude(), previous.getLongtitude());
+      if (previousCell != cell) {
+        removeFromCell(previousCell, uid);
+      }
+    }
+    return true;
+  }
+
+  /** Removes the user from the index. Returns their last location, if any. */
+  @Nullable
+  public UserLocation remove(long uid) {
+    UserLocation location = byUid.remove(uid);
+    if (location != null) {
+      removeFromCell(cellOf(location.getLatitude(), location.getLongtitude()), uid);
+    }
+    return location;
+  }
+
+  /** Returns the last known location of the user, or null. */
+  @Nullable
+  public UserLocation get(long uid) {
+    return byUid.get(uid);
+  }
+
+  /** Returns the number of users in the index. */
+  public int size() {
+    return byUid.size();
+  }
+
+  /**
+   * Returns up to {@code limit} users within {@code radiusKm} of the point,
+   * nearest first. Only the {@code limit} nearest matches are kept while the
+   * cells are scanned, but the scan itself grows with the radius, so callers
+   * serving clients should bound it.
+   */
+  public List<UserLocation> withinRadius(
+      double latitude, double longitude, double radiusKm, int limit) {
+    Preconditions.checkArgument(isValid(latitude, longitude));
+    Preconditions.checkArgument(radiusKm >= 0);
+    Preconditions.checkArgument(limit > 0);
+
+    // The farthest of the nearest matches so far on top, to be replaced by a nearer one.
+    PriorityQueue<Candidate> nearest = new PriorityQueue<>(limit, Collections.reverseOrder());
+    double latSpan = radiusKm / KM_PER_DEGREE;
+    int minRow = rowOf(Math.max(-90, latitude - latSpan));
+    int maxRow = rowOf(Math.min(90, latitude + latSpan));
+
+    // The longitude span widens towards the poles; give up narrowing it when
+    // the box reaches a pole or would wrap all the way around.
+    double maxAbsLat = Math.min(90, Math.abs(latitude) + latSpan);
+    double cosLat = Math.cos(Math.toRadians(maxAbsLat));
+    double lonSpan = cosLat > 1e-9 ? latSpan / cosLat : 360;
+    int firstColumn;
+    int columnCount;
+    if (lonSpan >= 180) {
+      firstColumn = 0;
+      columnCount = columns;
+    } else {
+      firstColumn = columnOf(longitude - lonSpan);
+      columnCount = floorMod(columnOf(longitude + lonSpan) - firstColumn, columns) + 1;
+    }
+
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int i = 0; i < columnCount; i++) {
+        long cell = (long) row * columns + (firstColumn + (long) i) % columns;
+        Set<Long> members = cells.get(cell);
+        if (members == null) {
+          continue;
+        }
+        for (Long uid : members) {
+          UserLocation location = byUid.get(uid);
+          // A concurrent update may have moved the user out of this cell, in
+          // which case they are found (or skipped) through their new cell.
+          if (location == null || cellOf(location.getLatitude(), location.getLongtitude()) != cell) {
+            continue;
+          }
+          double distance = distanceKm(latitude, longitude, location.getLatitude(), location.getLongtitude());
+          if (distance > radiusKm) {
+            continue;
+          }
+          if (nearest.size() < limit) {
+            nearest.add(new Candidate(location, distance));
+          } else if (distance < nearest.peek().distanceKm) {
+            nearest.poll();
+            nearest.add(new Candidate(location, distance));
+          }
+        }
+      }
+    }
+
+    UserLocation[] found = new UserLocation[nearest.size()];
+    for (int i = found.length - 1; i >= 0; i--) {
+      found[i] = nearest.poll().location;
+    }
+    return new ArrayList<>(Arrays.asList(found));
+  }
+
+  /**
+   * Returns the {@code k} users nearest to the point, nearest first, looking
+   * no further than {@code maxRadiusKm}. The search radius starts at one cell
+   * and doubles until enough users are found.
+   */
+  public List<UserLocation> nearest(double latitude, double longitude, int k, double maxRadiusKm) {
+    Preconditions.checkArgument(k > 0);
+    Preconditions.checkArgument(maxRadiusKm > 0);
+    double radiusKm = Math.min(cellDegrees * KM_PER_DEGREE, maxRadiusKm);
+    while (true) {
+      List<UserLocation> found = withinRadius(latitude, longitude, radiusKm, k);
+      if (found.size() >= k || radiusKm >= maxRadiusKm) {
+        return found;
+      }
+      radiusKm = Math.min(radiusKm * 2, maxRadiusKm);
+    }
+  }
+
+  /** Great-circle distance between two points in km. */
+  public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+        * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  private static boolean isValid(double latitude, double longitude) {
+    return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+  }
+
+  private int rowOf(double latitude) {
+    return Math.min(rows - 1, (int) Math.floor((latitude + 90) / cellDegrees));
+  }
+
+  private int columnOf(double longitude) {
+    int column = (int) Math.floor((longitude + 180) / cellDegrees);
+    return floorMod(column, columns);
+  }
+
+  private static int floorMod(int x, int y) {
+    int mod = x % y;
+    return mod < 0 ? mod + y : mod;
+  }
+
+  /** The key of a cell, a long since rows * columns can exceed an int. */
+  private long cellOf(double latitude, double longitude) {
+    return (long) rowOf(latitude) * columns + columnOf(longitude);
+  }
+
+  private Set<Long> cellMembers(long cell) {
+    Set<Long> members = cells.get(cell);
+    if (members == null) {
+      Set<Long> created = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+      members = cells.putIfAbsent(cell, created);
+      if (members == null) {
+        members = created;
+      }
+    }
+    return members;
+  }
+
+  private void removeFromCell(long cell, Long uid) {
+    Set<Long> members = cells.get(cell);
+    if (members == null) {
+      return;
+    }
+    members.remove(uid);
+    // A concurrent update may have moved the user back into this cell after
+    // it was added here; make sure the cell still lists them in that case.
+    UserLocation current = byUid.get(uid);
+    if (current != null && cellOf(current.getLatitude(), current.getLongtitude()) == cell) {
+      members.add(uid);
+    }
+  }
+
+  /** A match of a radius search, ordered by its distance from the point. */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    final UserLocation location;
+    final double distanceKm;
+
+    Candidate(UserLocation location, double distanceKm) {
+      this.location = location;
+      this.distanceKm = distanceKm;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      return Double.compare(distanceKm, other.distanceKm);
+    }
+  }
+}
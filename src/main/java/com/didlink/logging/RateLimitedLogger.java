@@ -0,0 +1,125 @@
+package com.didlink.logging;
+
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs at most one warning per key and interval, so a client that keeps
+ * sending bad packets produces one line per interval rather than one per
+ * packet. Warnings dropped in the meantime are counted and the count is
+ * appended to the next one logged for that key.
+ * <p>
+ * At most {@code maxKeys} keys are tracked. Once that many are active, keys
+ * without a window of their own share a single one, so a flood from many
+ * sources is still limited. Idle keys are forgotten by a sweep that runs at
+ * most once per interval.
+ */
+public final class RateLimitedLogger {
+
+  private static final Object OVERFLOW_KEY = new Object();
+
+  private final Logger logger;
+  private final long intervalNanos;
+  private final int maxKeys;
+  private final ConcurrentMap<Object, Window> windows = new ConcurrentHashMap<>();
+  private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+  public RateLimitedLogger(Logger logger, long interval, TimeUnit unit, int maxKeys) {
+    Preconditions.checkArgument(interval > 0);
+    Preconditions.checkArgument(maxKeys > 0);
+    this.logger = Preconditions.checkNotNull(logger);
+    this.intervalNanos = unit.toNanos(interval);
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Logs a warning for {@code key}, e.g. a client address, formatted the slf4j
+   * way, unless one was already logged for that key during the interval.
+   */
+  public void warn(Object key, String format, Object... args) {
+    if (!logger.isWarnEnabled()) {
+      return;
+    }
+    int suppressed = windowFor(key).tryAcquire(System.nanoTime());
+    if (suppressed < 0) {
+      return;
+    }
+    if (suppressed == 0) {
+      logger.warn(format, args);
+    } else {
+      // The count goes before a trailing Throwable, which slf4j only treats
+      // as the exception to log when it is the last argument.
+      int countIndex = args.length > 0 && args[args.length - 1] instanceof Throwable
+          ? args.length - 1 : args.length;
+      Object[] withCount = new Object[args.length + 1];
+      System.arraycopy(args, 0, withCount, 0, countIndex);
+      withCount[countIndex] = suppressed;
+      System.arraycopy(args, countIndex, withCount, countIndex + 1, args.length - countIndex);
+      logger.warn(format + " ({} similar warnings suppressed)", withCount);
+    }
+  }
+
+  private Window windowFor(Object key) {
+    Window window = windows.get(key);
+    if (window != null) {
+      return window;
+    }
+    if (windows.size() >= maxKeys) {
+      // Sweep at most once an interval, so a flood of new keys doesn't pay
+      // for a walk of the whole map each.
+      long now = System.nanoTime();
+      long sweep = nextSweep.get();
+      if (now - sweep >= 0 && nextSweep.compareAndSet(sweep, now + intervalNanos)) {
+        evictIdle(now);
+      }
+      if (windows.size() >= maxKeys) {
+        key = OVERFLOW_KEY;
+      }
+    }
+    Window created = new Window(System.nanoTime());
+    window = windows.putIfAbsent(key, created);
+    return window == null ? created : window;
+  }
+
+  /** Forgets keys that have logged nothing, and suppressed nothing, for a whole interval. */
+  private void evictIdle(long now) {
+    Iterator<Window> it = windows.values().iterator();
+    while (it.hasNext()) {
+      Window window = it.next();
+      if (now - window.nextAllowed.get() > intervalNanos && window.suppressed.get() == 0) {
+        it.remove();
+      }
+    }
+  }
+
+  private final class Window {
+
+    final AtomicLong nextAllowed;
+    final AtomicInteger suppressed = new AtomicInteger();
+
+    Window(long now) {
+      nextAllowed = new AtomicLong(now);
+    }
+
+    /**
+     * Returns the number of warnings suppressed since the last one if the
+     * caller may log now, or -1 if it must stay quiet.
+     */
+    int tryAcquire(long now) {
+      long next = nextAllowed.get();
+      if (now - next >= 0 && nextAllowed.compareAndSet(next, now + intervalNanos)) {
+        return suppressed.getAndSet(0);
+      }
+      suppressed.incrementAndGet();
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.didlink.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A monotonic counter for the hot path. Increments are spread over several
+ * cells, each on its own cache line and picked by thread, so threads counting
+ * the same event rarely contend; reading the counter sums the cells.
+ */
+public final class Counter implements Metric {
+
+  // Longs per 64 byte cache line, so neighbouring cells never share one.
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment() {
+    add(1);
+  }
+
+  public void add(long delta) {
+    // Thread ids are handed out sequentially, so the low bits spread threads
+    // evenly over the stripes.
+    int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    cells.addAndGet(stripe * PADDING, delta);
+  }
+
+  /** Returns the sum of every increment so far. */
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  @Override
+  public void snapshot(String name, Map<String, Number> values) {
+    values.put(name, get());
+  }
+
+  private static int stripeCount(int processors) {
+    int stripes = 1;
+    while (stripes < processors * 2) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
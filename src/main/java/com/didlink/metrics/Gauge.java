@@ -0,0 +1,17 @@
+package com.didlink.metrics;
+
+import java.util.Map;
+
+/**
+ * A value read when the metrics are reported rather than updated on the hot
+ * path, such as a queue depth or a counter another class already keeps.
+ */
+public abstract class Gauge implements Metric {
+
+  public abstract long getValue();
+
+  @Override
+  public void snapshot(String name, Map<String, Number> values) {
+    values.put(name, getValue());
+  }
+}
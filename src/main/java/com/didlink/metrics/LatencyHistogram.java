@@ -0,0 +1,170 @@
+package com.didlink.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory histogram of non-negative values, laid out like
+ * HdrHistogram: values below 128 get a bucket each, and above that every
+ * power of two is split into 64 linear buckets, so any recorded value is
+ * reported to within about 1.5%. Recording is lock free and may happen from
+ * any number of threads while another thread reads percentiles.
+ * <p>
+ * The histogram has no unit; callers usually record microseconds.
+ */
+public final class LatencyHistogram implements Metric {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  private static final int BUCKET_COUNT =
+      SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records one occurrence of {@code value}. Negative values are recorded as 0. */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(indexOf(value));
+    totalCount.incrementAndGet();
+    sum.addAndGet(value);
+    updateMin(value);
+    updateMax(value);
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  /** Smallest recorded value, or 0 if nothing was recorded. */
+  public long getMin() {
+    long value = min.get();
+    return value == Long.MAX_VALUE ? 0 : value;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the value below or at which {@code percentile} percent of the
+   * recorded values fall, e.g. 99.9 for the p99.9 latency. The result is the
+   * upper bound of the bucket holding that value, capped at the largest
+   * recorded value.
+   */
+  public long getValueAtPercentile(double percentile) {
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100);
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestValueAt(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /** Adds every value recorded in {@code other} to this histogram. */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long c = other.counts.get(i);
+      if (c > 0) {
+        counts.addAndGet(i, c);
+      }
+    }
+    long otherCount = other.totalCount.get();
+    if (otherCount > 0) {
+      totalCount.addAndGet(otherCount);
+      sum.addAndGet(other.sum.get());
+      updateMin(other.min.get());
+      updateMax(other.max.get());
+    }
+  }
+
+  /** Clears every recorded value. Not atomic with respect to concurrent recording. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(0);
+  }
+
+  /** Reports the count, mean, max and p50, p99 and p99.9 values. */
+  @Override
+  public void snapshot(String name, Map<String, Number> values) {
+    values.put(name + ".count", getCount());
+    values.put(name + ".mean", getMean());
+    values.put(name + ".p50", getValueAtPercentile(50));
+    values.put(name + ".p99", getValueAtPercentile(99));
+    values.put(name + ".p999", getValueAtPercentile(99.9));
+    values.put(name + ".max", getMax());
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    // Keep the top SUB_BUCKET_BITS - 1 bits below the leading one, so the
+    // shifted value lies in [SUB_BUCKET_HALF_COUNT, SUB_BUCKET_COUNT).
+    int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+  }
+
+  static long highestValueAt(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+    long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+    long lowest = subBucket << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  private void updateMin(long value) {
+    long current;
+    while (value < (current = min.get())) {
+      if (min.compareAndSet(current, value)) {
+        return;
+      }
+    }
+  }
+
+  private void updateMax(long value) {
+    long current;
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d min=%d p50=%d p90=%d p99=%d p99.9=%d max=%d mean=%.1f",
+        getCount(), getMin(), getValueAtPercentile(50), getValueAtPercentile(90),
+        getValueAtPercentile(99), getValueAtPercentile(99.9), getMax(), getMean());
+  }
+}
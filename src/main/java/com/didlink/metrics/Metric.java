@@ -0,0 +1,13 @@
+package com.didlink.metrics;
+
+import java.util.Map;
+
+/** Something the {@link MetricsRegistry} can report. */
+public interface Metric {
+
+  /**
+   * Adds the current values of this metric to {@code values}, keyed by
+   * {@code name} or by names starting with {@code name + "."}.
+   */
+  void snapshot(String name, Map<String, Number> values);
+}
@@ -0,0 +1,74 @@
+package com.didlink.metrics;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the registry as plain text on {@code GET /metrics}, one
+ * {@code name value} line per metric, for scraping or a quick look with curl.
+ * Requests are answered on a single daemon thread, away from the packet
+ * threads.
+ */
+public final class MetricsHttpServer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+  private final MetricsRegistry registry;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  public MetricsHttpServer(MetricsRegistry registry, int port) throws IOException {
+    this.registry = Preconditions.checkNotNull(registry);
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("pp-metrics-http").setDaemon(true).build());
+    server.setExecutor(executor);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+    LOG.info("Metrics served on http://{}:{}/metrics",
+        server.getAddress().getHostString(), server.getAddress().getPort());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = registry.toText().getBytes(Charsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.didlink.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the registry over JMX as one read-only attribute per reported
+ * value. The attribute list follows the registry, so metrics registered after
+ * the bean show up the next time a client asks for the bean's info.
+ */
+public final class MetricsMBean implements DynamicMBean {
+
+  public static final String OBJECT_NAME = "com.didlink:type=Metrics";
+
+  private final MetricsRegistry registry;
+
+  public MetricsMBean(MetricsRegistry registry) {
+    this.registry = Preconditions.checkNotNull(registry);
+  }
+
+  /** Registers a bean for {@code registry} with the platform MBean server. */
+  public static void register(MetricsRegistry registry) throws JMException {
+    ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(new MetricsMBean(registry), new ObjectName(OBJECT_NAME));
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Number value = registry.snapshot().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    SortedMap<String, Number> values = registry.snapshot();
+    AttributeList list = new AttributeList();
+    for (String name : attributes) {
+      Number value = values.get(name);
+      if (value != null) {
+        list.add(new Attribute(name, value));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (Map.Entry<String, Number> entry : registry.snapshot().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+          entry.getKey(), true /* isReadable */, false /* isWritable */, false /* isIs */));
+    }
+    return new MBeanInfo(getClass().getName(), "PP service metrics",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+        null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature)
+      throws MBeanException, ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+}
@@ -0,0 +1,98 @@
+package com.didlink.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named metrics for the whole process. Hot paths look their counters and
+ * histograms up once, when they are constructed, and update them directly;
+ * the registry itself is only consulted again when the metrics are reported,
+ * by {@link MetricsHttpServer} or over JMX through {@link MetricsMBean}.
+ * <p>
+ * Names are dotted and lower case, e.g. {@code stun.messages.pp.request}.
+ * Histograms of durations are in microseconds and end in {@code .us}.
+ */
+public final class MetricsRegistry {
+
+  private static volatile MetricsRegistry instance;
+
+  private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+  /** Returns the registry shared by the whole process. */
+  public static MetricsRegistry getInstance() {
+    if (instance == null) {
+      synchronized (MetricsRegistry.class) {
+        if (instance == null) {
+          instance = new MetricsRegistry();
+        }
+      }
+    }
+    return instance;
+  }
+
+  /** Returns the counter called {@code name}, creating it on first use. */
+  public Counter counter(String name) {
+    return getOrCreate(name, Counter.class);
+  }
+
+  /** Returns the histogram called {@code name}, creating it on first use. */
+  public LatencyHistogram histogram(String name) {
+    return getOrCreate(name, LatencyHistogram.class);
+  }
+
+  /**
+   * Registers a metric the caller has built, typically a {@link Gauge},
+   * replacing any metric already registered under {@code name}.
+   */
+  public void register(String name, Metric metric) {
+    metrics.put(Preconditions.checkNotNull(name), Preconditions.checkNotNull(metric));
+  }
+
+  public void remove(String name) {
+    metrics.remove(name);
+  }
+
+  /** Returns the current value of every metric, sorted by name. */
+  public SortedMap<String, Number> snapshot() {
+    SortedMap<String, Number> values = new TreeMap<>();
+    for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+      entry.getValue().snapshot(entry.getKey(), values);
+    }
+    return values;
+  }
+
+  /** Writes every metric as one {@code name value} line, sorted by name. */
+  public String toText() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+      text.append(entry.getKey()).append(' ');
+      Number value = entry.getValue();
+      if (value instanceof Double) {
+        text.append(String.format(Locale.ROOT, "%.1f", value.doubleValue()));
+      } else {
+        text.append(value.longValue());
+      }
+      text.append('\n');
+    }
+    return text.toString();
+  }
+
+  private <T extends Metric> T getOrCreate(String name, Class<T> type) {
+    Metric metric = metrics.get(name);
+    if (metric == null) {
+      Metric created = type == Counter.class ? new Counter() : new LatencyHistogram();
+      metric = metrics.putIfAbsent(name, created);
+      if (metric == null) {
+        metric = created;
+      }
+    }
+    Preconditions.checkState(type.isInstance(metric), "%s is not a %s", name, type.getSimpleName());
+    return type.cast(metric);
+  }
+}
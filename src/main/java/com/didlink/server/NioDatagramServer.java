@@ -0,0 +1,493 @@
+package com.didlink.server;
+
+import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.BufferResponseHandler;
+import io.vos.stun.protocol.OutboundPacket;
+
+import com.didlink.Constants;
+import com.didlink.logging.RateLimitedLogger;
+import com.didlink.metrics.LatencyHistogram;
+import com.didlink.metrics.MetricsRegistry;
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking datagram server. A single I/O thread drains the
+ * {@link DatagramChannel} through a {@link Selector} and hands the packets to
+ * a pool of worker threads, which decode and process them with the
+ * {@link Agent}. A slow method processor (e.g. the database write done for PP
+ * requests) only ties up one worker instead of stalling the receive loop for
+ * every client.
+ * <p>
+ * On every wakeup the I/O thread reads datagrams until the socket is empty,
+ * straight into a ring of reusable direct buffers, and hands them to the
+ * workers in batches: one task per batch, processed in place. Java has no
+ * recvmmsg, so every datagram is still one receive call, but nothing is
+ * copied or allocated per packet and the wakeup and hand-off are paid once per
+ * batch. When every batch is with the workers, reading pauses and the packets
+ * wait in the socket buffer, which is enlarged for that.
+ * <p>
+ * Workers write replies into a fixed pool of direct buffers and queue them;
+ * the I/O thread sends everything queued once per loop iteration, so the
+ * reply path allocates nothing per packet. When the socket buffer is full the
+ * queue waits for the channel to become writable, and when every buffer is
+ * queued further replies are dropped, which the client's retransmission
+ * covers like any lost datagram.
+ * <p>
+ * Several servers can share one port when they are created with
+ * {@code reusePort}: each binds its own channel with SO_REUSEPORT and the
+ * kernel spreads flows across them, so receiving scales past one core.
+ */
+public class NioDatagramServer implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioDatagramServer.class);
+  private static final RateLimitedLogger SEND_ERRORS =
+      new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS, 1024 /* maxKeys */);
+  private static final RateLimitedLogger PROCESS_ERRORS =
+      new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS, 1024 /* maxKeys */);
+
+  /**
+   * The largest UDP payload that fits an Ethernet frame unfragmented, enough
+   * for a LOCATION-BATCH of {@link io.vos.stun.attribute.LocationBatchAttribute#MAX_RECORDS}.
+   */
+  static final int MAX_PACKET_SIZE = 1472;
+
+  /** Room for a reply: the request's attributes echoed back plus the server's own. */
+  static final int MAX_REPLY_SIZE = 2048;
+
+  private static final LatencyHistogram BATCH_SIZES =
+      MetricsRegistry.getInstance().histogram("udp.receive.batchSize");
+
+  private final int serverPort;
+  private final int shardId;
+  private final boolean reusePort;
+  private final Agent agent;
+  private final ExecutorService workers;
+  private final SendQueue sendQueue;
+  private final BlockingQueue<ReceiveBatch> freeBatches;
+  // Set by the I/O thread when it stopped reading for want of a free batch,
+  // cleared by the worker that frees the next one.
+  private final AtomicBoolean readPaused = new AtomicBoolean();
+  private final PacketCounters counters;
+
+  private volatile boolean isStopped;
+  private volatile Selector selector;
+  private DatagramChannel channel;
+  private SelectionKey key;
+
+  public NioDatagramServer(int serverPort, Agent agent, ExecutorService workers) {
+    this(serverPort, 0, false /* reusePort */, agent, workers,
+        Constants.UDP_RECEIVE_BATCH_SIZE, Constants.UDP_SEND_BUFFERS);
+  }
+
+  /**
+   * Creates one shard of a port served by several sockets. Every shard must
+   * be created with {@code reusePort} set; the shards can share one
+   * {@link Agent}. A shard hands at most {@code receiveBatchSize} packets to
+   * a worker at once, and has {@code sendBuffers} direct buffers of
+   * {@link #MAX_REPLY_SIZE} bytes for its replies. It has as many receive
+   * buffers as send buffers, so every packet in flight can get a reply.
+   */
+  public NioDatagramServer(int serverPort, int shardId, boolean reusePort, Agent agent,
+      ExecutorService workers, int receiveBatchSize, int sendBuffers) {
+    Preconditions.checkArgument(!reusePort || isReusePortSupported(), "SO_REUSEPORT is not supported");
+    Preconditions.checkArgument(receiveBatchSize > 0);
+    Preconditions.checkArgument(sendBuffers > 0);
+    this.serverPort = serverPort;
+    this.shardId = shardId;
+    this.reusePort = reusePort;
+    this.agent = Preconditions.checkNotNull(agent);
+    this.workers = Preconditions.checkNotNull(workers);
+    this.sendQueue = new SendQueue(sendBuffers);
+    int batches = Math.max(2, sendBuffers / receiveBatchSize);
+    this.freeBatches = new ArrayBlockingQueue<>(batches);
+    for (int i = 0; i < batches; i++) {
+      freeBatches.add(new ReceiveBatch(receiveBatchSize));
+    }
+    this.counters = new PacketCounters();
+  }
+
+  /**
+   * Returns true if this JVM and platform can bind several datagram channels
+   * to one port with SO_REUSEPORT. The option only exists in
+   * {@link StandardSocketOptions} from Java 9, so it is looked up by name.
+   */
+  public static boolean isReusePortSupported() {
+    SocketOption<Boolean> option = reusePortOption();
+    if (option == null) {
+      return false;
+    }
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      return probe.supportedOptions().contains(option);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+      return (SocketOption<Boolean>) field.get(null);
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Creates a worker pool suitable for this server. The queue is bounded so a
+   * flood of packets is shed at the receive loop rather than buffered without
+   * limit, like the kernel would do with a full socket buffer.
+   */
+  public static ExecutorService newWorkerPool(int threads, int queueCapacity) {
+    return ServerThreads.newBoundedPool("pp-udp-worker-%d", threads, queueCapacity);
+  }
+
+  @Override
+  public void run() {
+    try {
+      selector = Selector.open();
+      channel = DatagramChannel.open();
+      channel.configureBlocking(false);
+      if (reusePort) {
+        channel.setOption(reusePortOption(), true);
+      }
+      // Room for the packets that arrive while reading is paused. The kernel
+      // caps it at net.core.rmem_max.
+      channel.setOption(StandardSocketOptions.SO_RCVBUF,
+          Integer.getInteger("pp.udp.rcvbuf", Constants.UDP_SOCKET_RECEIVE_BUFFER));
+      channel.bind(new InetSocketAddress(serverPort));
+      key = channel.register(selector, SelectionKey.OP_READ);
+      LOG.info("Started datagram server shard {} on port {}", shardId, serverPort);
+    } catch (IOException e) {
+      LOG.error("Unable to create new datagram channel", e);
+      closeQuietly();
+      return;
+    }
+
+    while (!isStopped) {
+      try {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey selected = keys.next();
+          keys.remove();
+          if (selected.isValid() && selected.isReadable()) {
+            drainChannel();
+          }
+        }
+        sendQueue.flush();
+        updateInterestOps();
+      } catch (IOException e) {
+        if (isStopped) {
+          break;
+        }
+        LOG.warn("Error receiving datagram packet", e);
+      }
+    }
+
+    closeQuietly();
+    LOG.info("Datagram server shard {} stopped", shardId);
+  }
+
+  /** Stops the I/O loop and closes the channel. Queued packets are still processed. */
+  public void stop() {
+    isStopped = true;
+    Selector s = selector;
+    if (s != null) {
+      s.wakeup();
+    }
+  }
+
+  public boolean isStopped() {
+    return isStopped;
+  }
+
+  public int getShardId() {
+    return shardId;
+  }
+
+  public PacketCounters getCounters() {
+    return counters;
+  }
+
+  /** Replies written by the workers and not yet sent by the I/O thread. */
+  public int getSendQueueDepth() {
+    return sendQueue.pending.size();
+  }
+
+  /**
+   * Reads every datagram currently queued on the channel into free batches,
+   * and dispatches each batch once it is full or the channel is empty.
+   */
+  private void drainChannel() throws IOException {
+    boolean channelEmpty = false;
+    while (!channelEmpty) {
+      ReceiveBatch batch = nextFreeBatch();
+      if (batch == null) {
+        return;
+      }
+      channelEmpty = !batch.fill();
+      if (batch.size == 0) {
+        freeBatches.add(batch);
+      } else {
+        dispatch(batch);
+      }
+    }
+  }
+
+  /**
+   * Returns a free batch, or pauses reading and returns null if the workers
+   * hold all of them.
+   */
+  private ReceiveBatch nextFreeBatch() {
+    ReceiveBatch batch = freeBatches.poll();
+    if (batch == null) {
+      readPaused.set(true);
+      // A worker may have freed one before seeing the flag.
+      batch = freeBatches.poll();
+      if (batch != null) {
+        readPaused.set(false);
+      }
+    }
+    return batch;
+  }
+
+  private void dispatch(ReceiveBatch batch) {
+    BATCH_SIZES.record(batch.size);
+    try {
+      workers.execute(batch);
+    } catch (RejectedExecutionException e) {
+      counters.onDropped(batch.size);
+      LOG.debug("Dropped {} packets, workers are saturated", batch.size);
+      batch.release();
+    }
+  }
+
+  /** Applies the read and write interest of the I/O loop, on the I/O thread. */
+  private void updateInterestOps() {
+    int ops = (readPaused.get() ? 0 : SelectionKey.OP_READ)
+        | (sendQueue.writeBlocked ? SelectionKey.OP_WRITE : 0);
+    if (key.interestOps() != ops) {
+      key.interestOps(ops);
+    }
+  }
+
+  /**
+   * Datagrams read in one go, each in its own direct buffer. The I/O thread
+   * fills a batch and a worker processes it, then puts it back in the ring.
+   */
+  private final class ReceiveBatch implements Runnable {
+
+    private final ByteBuffer[] buffers;
+    private final InetSocketAddress[] sources;
+    private int size;
+
+    ReceiveBatch(int capacity) {
+      buffers = new ByteBuffer[capacity];
+      sources = new InetSocketAddress[capacity];
+      for (int i = 0; i < capacity; i++) {
+        buffers[i] = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+      }
+    }
+
+    /**
+     * Reads datagrams until the batch is full or the channel is empty.
+     * Returns false if the channel is empty.
+     */
+    boolean fill() throws IOException {
+      while (size < buffers.length) {
+        ByteBuffer buffer = buffers[size];
+        SocketAddress source = channel.receive(buffer);
+        if (source == null) {
+          return false;
+        }
+        counters.onReceived();
+        buffer.flip();
+        sources[size++] = (InetSocketAddress) source;
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < size; i++) {
+          LOG.debug("Received packet from {}", sources[i]);
+          try {
+            agent.onMessage(buffers[i], sources[i], sendQueue);
+          } catch (RuntimeException e) {
+            // Keep going, the rest of the batch is from other requests.
+            PROCESS_ERRORS.warn(sources[i].getAddress(), "Error processing packet from {}: {}",
+                sources[i], e.toString());
+          }
+        }
+      } finally {
+        release();
+      }
+    }
+
+    void release() {
+      for (int i = 0; i < size; i++) {
+        buffers[i].clear();
+        sources[i] = null;
+      }
+      size = 0;
+      freeBatches.add(this);
+      if (readPaused.compareAndSet(true, false)) {
+        Selector s = selector;
+        if (s != null) {
+          s.wakeup();
+        }
+      }
+    }
+  }
+
+  /**
+   * The replies of one socket. Workers fill packets from a fixed pool and
+   * queue them, waking the I/O thread only when the queue was flushed since
+   * the last wakeup; the I/O thread sends them in {@link #flush}. Both queues
+   * are array backed, so queueing a packet allocates nothing.
+   */
+  private final class SendQueue implements BufferResponseHandler {
+
+    private final BlockingQueue<OutboundPacket> free;
+    private final BlockingQueue<OutboundPacket> pending;
+    // Set while the I/O thread has a flush coming, either from a wakeup or
+    // from waiting for the channel to become writable.
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Whether the last flush stopped at a full socket buffer. I/O thread only.
+    private boolean writeBlocked;
+
+    SendQueue(int size) {
+      free = new ArrayBlockingQueue<>(size);
+      pending = new ArrayBlockingQueue<>(size);
+      for (int i = 0; i < size; i++) {
+        free.add(new OutboundPacket(MAX_REPLY_SIZE));
+      }
+    }
+
+    @Override
+    public OutboundPacket acquire() {
+      return free.poll();
+    }
+
+    @Override
+    public void send(OutboundPacket packet) {
+      packet.getBuffer().flip();
+      // Never full: it holds at most every packet of the pool.
+      pending.add(packet);
+      if (flushScheduled.compareAndSet(false, true)) {
+        Selector s = selector;
+        if (s != null) {
+          s.wakeup();
+        }
+      }
+    }
+
+    @Override
+    public void release(OutboundPacket packet) {
+      packet.clear();
+      free.add(packet);
+    }
+
+    @Override
+    public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
+      sendCopy(messageData, destAddress, destPort);
+    }
+
+    @Override
+    public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
+      sendCopy(messageData, destAddress, destPort);
+    }
+
+    @Override
+    public void onIndication(byte[] messageData, InetAddress destAddress, int destPort) {
+      sendCopy(messageData, destAddress, destPort);
+    }
+
+    private void sendCopy(byte[] messageData, InetAddress destAddress, int destPort) {
+      if (messageData.length > MAX_REPLY_SIZE) {
+        counters.onSendFailed();
+        LOG.warn("Dropped a {} byte reply to {} {}, longer than {} bytes",
+            messageData.length, destAddress.getHostAddress(), destPort, MAX_REPLY_SIZE);
+        return;
+      }
+      OutboundPacket packet = acquire();
+      if (packet == null) {
+        // Every buffer is waiting to be sent, so the socket can't keep up.
+        counters.onSendFailed();
+        return;
+      }
+      packet.getBuffer().put(messageData);
+      packet.setDestination(new InetSocketAddress(destAddress, destPort));
+      send(packet);
+    }
+
+    /**
+     * Sends every queued reply, on the I/O thread. Stops at a full socket
+     * buffer and waits for the channel to become writable.
+     */
+    void flush() {
+      flushScheduled.set(false);
+      writeBlocked = false;
+      OutboundPacket packet;
+      while ((packet = pending.peek()) != null) {
+        InetSocketAddress destination = packet.getDestination();
+        try {
+          if (channel.send(packet.getBuffer(), destination) == 0) {
+            // Keep the flag set so workers don't wake the selector for
+            // nothing, OP_WRITE brings the loop back here.
+            flushScheduled.set(true);
+            writeBlocked = true;
+            return;
+          }
+          counters.onSent();
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Send packet to {}", destination);
+          }
+        } catch (IOException e) {
+          counters.onSendFailed();
+          SEND_ERRORS.warn(destination.getAddress(), "Error writing response to {}",
+              destination, e);
+        }
+        pending.poll();
+        release(packet);
+      }
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+      if (selector != null) {
+        selector.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Error closing datagram channel", e);
+    }
+  }
+}
@@ -0,0 +1,452 @@
+package com.didlink.server;
+
+import io.vos.stun.Exception.MessageTooLargeException;
+import io.vos.stun.message.MessageFramer;
+import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.ResponseHandler;
+
+import com.didlink.logging.RateLimitedLogger;
+
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector driven STUN over TCP server. One I/O thread accepts, reads and
+ * writes every connection, and all connections share a single {@link Agent}.
+ * Complete messages are processed on a worker pool, one connection at a time
+ * per worker so messages from a client are handled in order.
+ * <p>
+ * An idle connection costs a selection key and a small read buffer rather
+ * than a platform thread, so the server can hold a large number of mostly
+ * idle mobile clients. A connection stops being read while it has too many
+ * unprocessed messages or unsent response bytes, and connections that are
+ * silent for longer than the idle timeout are closed.
+ */
+public class NioStreamServer implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioStreamServer.class);
+  private static final RateLimitedLogger PROCESS_ERRORS =
+      new RateLimitedLogger(LOG, 10, TimeUnit.SECONDS, 1024 /* maxKeys */);
+
+  /** Read buffer per connection while no long message is pending. */
+  static final int READ_BUFFER_SIZE = 256;
+
+  /** Longest message accepted; a client announcing a longer one is disconnected. */
+  static final int MAX_MESSAGE_SIZE = 8 * 1024;
+
+  /** Messages processed per worker hand-off before yielding to other connections. */
+  private static final int MAX_FRAMES_PER_RUN = 16;
+
+  /** How often the I/O thread looks for idle connections. */
+  private static final long REAP_INTERVAL_MILLIS = 1000;
+
+  /** How soon the I/O thread retries connections the worker pool rejected. */
+  private static final long RETRY_INTERVAL_MILLIS = 10;
+
+  private final int serverPort;
+  private final Agent agent;
+  private final ExecutorService workers;
+  private final long idleTimeoutNanos;
+  private final int maxPendingFrames;
+  private final int maxPendingWriteBytes;
+
+  // Connections whose interest set must be recomputed by the I/O thread.
+  private final Queue<Connection> interestUpdates = new ConcurrentLinkedQueue<>();
+  // Connections with frames waiting for the worker pool to accept them.
+  private final Queue<Connection> starved = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  private volatile boolean isStopped;
+  private volatile Selector selector;
+  private ServerSocketChannel serverChannel;
+
+  /**
+   * Creates a stream server.
+   *
+   * @param idleTimeoutMillis connections without traffic for this long are closed
+   * @param maxPendingFrames stop reading a connection with this many unprocessed messages
+   * @param maxPendingWriteBytes stop reading a connection with this many unsent bytes
+   */
+  public NioStreamServer(int serverPort, Agent agent, ExecutorService workers,
+      long idleTimeoutMillis, int maxPendingFrames, int maxPendingWriteBytes) {
+    Preconditions.checkArgument(idleTimeoutMillis > 0);
+    Preconditions.checkArgument(maxPendingFrames > 0);
+    Preconditions.checkArgument(maxPendingWriteBytes > 0);
+    this.serverPort = serverPort;
+    this.agent = Preconditions.checkNotNull(agent);
+    this.workers = Preconditions.checkNotNull(workers);
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.maxPendingFrames = maxPendingFrames;
+    this.maxPendingWriteBytes = maxPendingWriteBytes;
+  }
+
+  /** Creates a worker pool suitable for this server. */
+  public static ExecutorService newWorkerPool(int threads, int queueCapacity) {
+    return ServerThreads.newBoundedPool("pp-tcp-worker-%d", threads, queueCapacity);
+  }
+
+  @Override
+  public void run() {
+    try {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      serverChannel.bind(new InetSocketAddress(serverPort), 1024 /* backlog */);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      closeServer();
+      throw new RuntimeException("Error opening server socket", e);
+    }
+    LOG.info("Stream server started on {}", serverPort);
+
+    long nextReap = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REAP_INTERVAL_MILLIS);
+    while (!isStopped) {
+      try {
+        selector.select(starved.isEmpty() ? REAP_INTERVAL_MILLIS : RETRY_INTERVAL_MILLIS);
+      } catch (IOException e) {
+        LOG.warn("Error selecting stream channels", e);
+        continue;
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+
+        Connection connection = (Connection) key.attachment();
+        if (key.isReadable()) {
+          connection.read();
+        }
+        if (key.isValid() && key.isWritable()) {
+          connection.write();
+        }
+      }
+
+      retryStarved();
+      applyInterestUpdates();
+
+      long now = System.nanoTime();
+      if (now - nextReap >= 0) {
+        reapIdleConnections(now);
+        nextReap = now + TimeUnit.MILLISECONDS.toNanos(REAP_INTERVAL_MILLIS);
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        ((Connection) key.attachment()).close();
+      }
+    }
+    closeServer();
+    LOG.info("Stream server stopped");
+  }
+
+  public boolean isStopped() {
+    return isStopped;
+  }
+
+  public void stop() {
+    isStopped = true;
+    Selector s = selector;
+    if (s != null) {
+      s.wakeup();
+    }
+  }
+
+  /** Returns the number of open client connections. */
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  private void accept() {
+    SocketChannel clientChannel;
+    try {
+      while ((clientChannel = serverChannel.accept()) != null) {
+        try {
+          clientChannel.configureBlocking(false);
+          clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          Connection connection = new Connection(
+              clientChannel, (InetSocketAddress) clientChannel.getRemoteAddress());
+          connection.key = clientChannel.register(selector, SelectionKey.OP_READ, connection);
+          connectionCount.incrementAndGet();
+        } catch (IOException e) {
+          LOG.warn("Failed to accept client socket", e);
+          clientChannel.close();
+        }
+      }
+    } catch (IOException e) {
+      if (!isStopped) {
+        LOG.warn("Error accepting client connection", e);
+      }
+    }
+  }
+
+  private void retryStarved() {
+    int retries = starved.size();
+    Connection connection;
+    while (retries-- > 0 && (connection = starved.poll()) != null) {
+      schedule(connection);
+    }
+  }
+
+  private void applyInterestUpdates() {
+    Connection connection;
+    while ((connection = interestUpdates.poll()) != null) {
+      connection.updateInterest();
+    }
+  }
+
+  private void reapIdleConnections(long now) {
+    List<Connection> idle = new ArrayList<>();
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Connection && ((Connection) attachment).isIdle(now)) {
+        idle.add((Connection) attachment);
+      }
+    }
+    for (Connection connection : idle) {
+      connection.close();
+    }
+  }
+
+  /** Hands the connection to a worker unless one is already processing it. */
+  private void schedule(Connection connection) {
+    if (!connection.scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      workers.execute(connection);
+    } catch (RejectedExecutionException e) {
+      connection.scheduled.set(false);
+      starved.add(connection);
+    }
+  }
+
+  private void requestInterestUpdate(Connection connection) {
+    interestUpdates.add(connection);
+    Selector s = selector;
+    if (s != null) {
+      s.wakeup();
+    }
+  }
+
+  private void closeServer() {
+    try {
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+      if (selector != null) {
+        selector.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Error closing server socket", e);
+    }
+  }
+
+  /**
+   * A client connection. Reading, writing and interest changes happen on the
+   * I/O thread; {@link #run} processes queued messages on a worker thread.
+   */
+  private final class Connection implements Runnable {
+
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private final ResponseHandler responseHandler;
+    private final MessageFramer framer = new MessageFramer(READ_BUFFER_SIZE, MAX_MESSAGE_SIZE);
+    private final MessageFramer.FrameHandler frameHandler = new MessageFramer.FrameHandler() {
+      @Override
+      public void onFrame(byte[] data, int offset, int length) {
+        // The framer reuses its buffer, so the message is copied once here to
+        // cross over to the worker thread.
+        byte[] msgBuffer = new byte[length];
+        System.arraycopy(data, offset, msgBuffer, 0, length);
+        inbound.add(msgBuffer);
+        pendingFrames.incrementAndGet();
+      }
+    };
+
+    private final Queue<byte[]> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWriteBytes = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private SelectionKey key;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean closed;
+
+    Connection(SocketChannel channel, InetSocketAddress remoteAddress) {
+      this.channel = channel;
+      this.remoteAddress = remoteAddress;
+      this.responseHandler = createResponseHandler();
+    }
+
+    void read() {
+      try {
+        if (framer.read(channel) < 0) {
+          close();
+          return;
+        }
+        lastActivity = System.nanoTime();
+        framer.drain(frameHandler);
+      } catch (MessageTooLargeException e) {
+        LOG.info("Closing {}, {}", remoteAddress, e.getMessage());
+        close();
+        return;
+      } catch (IOException e) {
+        close();
+        return;
+      }
+
+      if (!inbound.isEmpty()) {
+        schedule(this);
+      }
+      updateInterest();
+    }
+
+    void write() {
+      try {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+          int written = channel.write(buffer);
+          pendingWriteBytes.addAndGet(-written);
+          if (buffer.hasRemaining()) {
+            break;
+          }
+          outbound.poll();
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+      lastActivity = System.nanoTime();
+      updateInterest();
+    }
+
+    /** Recomputes read/write interest, applying backpressure. I/O thread only. */
+    void updateInterest() {
+      if (closed || !key.isValid()) {
+        return;
+      }
+      int ops = 0;
+      if (pendingFrames.get() < maxPendingFrames
+          && pendingWriteBytes.get() < maxPendingWriteBytes) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (!outbound.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      if (key.interestOps() != ops) {
+        key.interestOps(ops);
+      }
+    }
+
+    boolean isIdle(long now) {
+      return now - lastActivity > idleTimeoutNanos
+          && pendingFrames.get() == 0
+          && outbound.isEmpty();
+    }
+
+    /** Processes queued messages on a worker thread. */
+    @Override
+    public void run() {
+      int processed = 0;
+      byte[] msgBuffer;
+      try {
+        while (processed < MAX_FRAMES_PER_RUN && !closed && (msgBuffer = inbound.poll()) != null) {
+          pendingFrames.decrementAndGet();
+          processed++;
+          agent.onMessage(msgBuffer, remoteAddress, responseHandler);
+        }
+      } catch (RuntimeException e) {
+        // Protocol errors are answered by the agent; anything else means the
+        // stream can't be trusted any more.
+        PROCESS_ERRORS.warn(remoteAddress.getAddress(),
+            "Closing {} after an error processing its message", remoteAddress, e);
+        close();
+      } finally {
+        scheduled.set(false);
+      }
+
+      if (!closed && !inbound.isEmpty()) {
+        schedule(this);
+      }
+      // Reading may have been paused while messages were queued.
+      requestInterestUpdate(this);
+    }
+
+    void enqueueResponse(byte[] messageData) {
+      if (closed) {
+        return;
+      }
+      outbound.add(ByteBuffer.wrap(messageData));
+      pendingWriteBytes.addAndGet(messageData.length);
+      requestInterestUpdate(this);
+    }
+
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      connectionCount.decrementAndGet();
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("Error closing client {}", remoteAddress, e);
+      }
+    }
+
+    private ResponseHandler createResponseHandler() {
+      return new ResponseHandler() {
+        @Override
+        public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
+          enqueueResponse(messageData);
+        }
+
+        @Override
+        public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
+          enqueueResponse(messageData);
+        }
+
+        @Override
+        public void onIndication(byte[] messageData, InetAddress destAddress, int destPort) {
+          onResponse(messageData, destAddress, destPort);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.didlink.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packet counters for a single datagram socket. Updated from the socket's I/O
+ * thread and from the workers replying on it, so every counter is atomic.
+ */
+public final class PacketCounters {
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sendFailed = new AtomicLong();
+
+  void onReceived() {
+    received.incrementAndGet();
+  }
+
+  void onDropped(int count) {
+    dropped.addAndGet(count);
+  }
+
+  void onSent() {
+    sent.incrementAndGet();
+  }
+
+  void onSendFailed() {
+    sendFailed.incrementAndGet();
+  }
+
+  /** Datagrams read off the socket. */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /** Datagrams discarded because the worker pool was saturated. */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /** Replies written to the socket. */
+  public long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * Replies that could not be written, either from an error or because every
+   * send buffer was already queued.
+   */
+  public long getSendFailed() {
+    return sendFailed.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("received=%d dropped=%d sent=%d sendFailed=%d",
+        getReceived(), getDropped(), getSent(), getSendFailed());
+  }
+}
@@ -0,0 +1,31 @@
+package com.didlink.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Thread pools shared by the servers in this package. */
+final class ServerThreads {
+
+  private ServerThreads() {}
+
+  /**
+   * Creates a fixed size pool of daemon threads with a bounded queue. Work
+   * submitted to a full pool is rejected with a
+   * {@link java.util.concurrent.RejectedExecutionException}, leaving the caller
+   * to decide whether to shed or retry it.
+   */
+  static ExecutorService newBoundedPool(String nameFormat, int threads, int queueCapacity) {
+    Preconditions.checkArgument(threads > 0);
+    Preconditions.checkArgument(queueCapacity > 0);
+    return new ThreadPoolExecutor(
+        threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+}
@@ -0,0 +1,438 @@
+package com.didlink.tools;
+
+import static io.vos.stun.message.Messages.*;
+
+import com.didlink.Constants;
+import com.didlink.metrics.LatencyHistogram;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.LocationAttribute;
+import io.vos.stun.attribute.MappedAddressAttribute;
+import io.vos.stun.message.Message;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a PP server with a steady rate of binding, PP and negotiate requests
+ * sent from many UDP sockets, standing in for many clients behind distinct
+ * source ports, and reports throughput and latency percentiles.
+ * <p>
+ * Requests are sent on a fixed schedule and latency is measured from the
+ * time each request was due to be sent, not from when the sender got round
+ * to it, so a stalled sender or server shows up in the percentiles instead
+ * of silently lowering the offered rate. Responses are matched to requests
+ * by transaction ID: the first 4 bytes identify the run and the last 8 carry
+ * a sequence number.
+ * <p>
+ * Configured with system properties:
+ * <pre>
+ *   pp.load.host      server address (127.0.0.1)
+ *   pp.load.port      server port (Constants.PP_PORT)
+ *   pp.load.rate      requests per second (1000)
+ *   pp.load.duration  seconds to send for (30)
+ *   pp.load.warmup    seconds at the start left out of the latencies (5)
+ *   pp.load.sockets   number of source sockets (64)
+ *   pp.load.timeout   milliseconds before a request counts as lost (1000)
+ *   pp.load.mix       relative weights, e.g. binding:1,pp:1,negotiate:1
+ * </pre>
+ * For example, against a {@code PpService} on the same host:
+ * <pre>
+ *   java -cp ppservice-1.0-SNAPSHOT-jar-with-dependencies.jar \
+ *       -Dpp.load.rate=20000 -Dpp.load.mix=pp:8,binding:2 com.didlink.tools.LoadGenerator
+ * </pre>
+ */
+public final class LoadGenerator {
+
+  private static final int MAX_PACKET_SIZE = 1024;
+  private static final int SOCKET_BUFFER_SIZE = 1024 * 1024;
+
+  /** The request methods the generator can send, in report order. */
+  enum RequestType {
+    BINDING(MESSAGE_METHOD_BINDING),
+    PP(MESSAGE_METHOD_PP),
+    NEGOTIATE(MESSAGE_METHOD_NEGOCIATE);
+
+    final int method;
+
+    RequestType(int method) {
+      this.method = method;
+    }
+  }
+
+  private final InetSocketAddress serverAddress;
+  private final int rate;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final long timeoutNanos;
+  private final RequestType[] schedule;
+
+  private final int runId = new SecureRandom().nextInt();
+  // Sequence number of every outstanding request, mapped to its due time.
+  private final Map<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+  private final LatencyHistogram[] histograms = new LatencyHistogram[RequestType.values().length];
+  private final LatencyHistogram allLatencies = new LatencyHistogram();
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sendFailed = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong errorResponses = new AtomicLong();
+  private final AtomicLong unmatched = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+
+  private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+  private Selector selector;
+  private volatile boolean receiving = true;
+  private volatile long measureFromNanos;
+
+  LoadGenerator(InetSocketAddress serverAddress, int rate, int durationSeconds, int warmupSeconds,
+      int timeoutMillis, RequestType[] schedule) {
+    Preconditions.checkArgument(rate > 0);
+    Preconditions.checkArgument(durationSeconds > warmupSeconds);
+    Preconditions.checkArgument(schedule.length > 0);
+    this.serverAddress = serverAddress;
+    this.rate = rate;
+    this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.schedule = schedule;
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    InetSocketAddress serverAddress = new InetSocketAddress(
+        System.getProperty("pp.load.host", "127.0.0.1"),
+        Integer.getInteger("pp.load.port", Constants.PP_PORT));
+    LoadGenerator generator = new LoadGenerator(
+        serverAddress,
+        Integer.getInteger("pp.load.rate", 1000),
+        Integer.getInteger("pp.load.duration", 30),
+        Integer.getInteger("pp.load.warmup", 5),
+        Integer.getInteger("pp.load.timeout", 1000),
+        parseMix(System.getProperty("pp.load.mix", "binding:1,pp:1,negotiate:1")));
+    generator.run(Integer.getInteger("pp.load.sockets", 64));
+  }
+
+  /**
+   * Turns weights like {@code pp:8,binding:2} into a repeating schedule of
+   * request types, interleaved so every window of the schedule has roughly
+   * the requested mix.
+   */
+  static RequestType[] parseMix(String mix) {
+    int[] weights = new int[RequestType.values().length];
+    int total = 0;
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(mix)) {
+      List<String> parts = Splitter.on(':').trimResults().splitToList(entry);
+      Preconditions.checkArgument(parts.size() == 2, "Bad mix entry %s", entry);
+      RequestType type = RequestType.valueOf(parts.get(0).toUpperCase());
+      int weight = Integer.parseInt(parts.get(1));
+      Preconditions.checkArgument(weight >= 0, "Negative weight for %s", type);
+      weights[type.ordinal()] += weight;
+      total += weight;
+    }
+    Preconditions.checkArgument(total > 0, "Mix %s has no requests", mix);
+
+    RequestType[] schedule = new RequestType[total];
+    int[] credit = new int[weights.length];
+    for (int slot = 0; slot < total; slot++) {
+      int best = -1;
+      for (int i = 0; i < weights.length; i++) {
+        credit[i] += weights[i];
+        if (weights[i] > 0 && (best < 0 || credit[i] > credit[best])) {
+          best = i;
+        }
+      }
+      credit[best] -= total;
+      schedule[slot] = RequestType.values()[best];
+    }
+    return schedule;
+  }
+
+  void run(int socketCount) throws IOException, InterruptedException {
+    Preconditions.checkArgument(socketCount > 0);
+    selector = Selector.open();
+    List<byte[][]> templates = new ArrayList<byte[][]>();
+    for (int i = 0; i < socketCount; i++) {
+      DatagramChannel channel = DatagramChannel.open();
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+      channel.connect(serverAddress);
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+      channels.add(channel);
+      templates.add(createTemplates(i, (InetSocketAddress) channel.getLocalAddress()));
+    }
+
+    System.out.println(String.format(
+        "Sending %d requests/s to %s from %d sockets for %d s (%d s warmup), mix %s",
+        rate, serverAddress, socketCount, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+        TimeUnit.NANOSECONDS.toSeconds(warmupNanos), describeSchedule()));
+
+    ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("pp-load-%d").setDaemon(true).build();
+    Thread receiver = threads.newThread(new Runnable() {
+      @Override
+      public void run() {
+        receive();
+      }
+    });
+    receiver.start();
+
+    long start = System.nanoTime();
+    measureFromNanos = start + warmupNanos;
+    Thread sender = threads.newThread(new Sender(start, templates));
+    sender.start();
+
+    long lastSent = 0;
+    long lastReceived = 0;
+    while (sender.isAlive()) {
+      sender.join(1000);
+      expirePending(System.nanoTime());
+      long nowSent = sent.get();
+      long nowReceived = received.get();
+      System.out.println(String.format("sent=%d/s received=%d/s lost=%d outstanding=%d",
+          nowSent - lastSent, nowReceived - lastReceived, lost.get(), pending.size()));
+      lastSent = nowSent;
+      lastReceived = nowReceived;
+    }
+    long sendingEnded = System.nanoTime();
+
+    // Give the last requests their full timeout to be answered.
+    while (!pending.isEmpty() && System.nanoTime() - sendingEnded < timeoutNanos) {
+      Thread.sleep(10);
+    }
+    receiving = false;
+    selector.wakeup();
+    receiver.join(1000);
+    lost.addAndGet(pending.size());
+    pending.clear();
+
+    report(sendingEnded - start);
+    for (DatagramChannel channel : channels) {
+      channel.close();
+    }
+    selector.close();
+  }
+
+  /**
+   * Sends requests on schedule, one every {@code 1 / rate} seconds. When the
+   * sender falls behind it sends back to back until it has caught up.
+   */
+  private final class Sender implements Runnable {
+
+    private final long start;
+    private final List<byte[][]> templates;
+
+    Sender(long start, List<byte[][]> templates) {
+      this.start = start;
+      this.templates = templates;
+    }
+
+    @Override
+    public void run() {
+      double intervalNanos = 1e9 / rate;
+      ByteBuffer transactionId = ByteBuffer.allocate(MESSAGE_LEN_TRANSACTION_ID);
+      for (long seq = 0; ; seq++) {
+        long due = start + (long) (seq * intervalNanos);
+        if (due - start >= durationNanos) {
+          return;
+        }
+        long now;
+        while ((now = System.nanoTime()) < due) {
+          LockSupport.parkNanos(due - now);
+        }
+
+        int socket = (int) (seq % channels.size());
+        RequestType type = schedule[(int) (seq % schedule.length)];
+        byte[] request = templates.get(socket)[type.ordinal()];
+        transactionId.clear();
+        transactionId.putInt(runId).putLong(seq);
+        System.arraycopy(transactionId.array(), 0, request, MESSAGE_POS_TRANSACTION_ID,
+            MESSAGE_LEN_TRANSACTION_ID);
+
+        pending.put(seq, due);
+        try {
+          if (channels.get(socket).write(ByteBuffer.wrap(request)) > 0) {
+            sent.incrementAndGet();
+          } else {
+            pending.remove(seq);
+            sendFailed.incrementAndGet();
+          }
+        } catch (IOException e) {
+          pending.remove(seq);
+          sendFailed.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void receive() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    while (receiving) {
+      try {
+        selector.select(100);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          DatagramChannel channel = (DatagramChannel) key.channel();
+          buffer.clear();
+          while (channel.read(buffer) > 0) {
+            buffer.flip();
+            onResponse(buffer);
+            buffer.clear();
+          }
+        }
+      } catch (IOException e) {
+        // A port unreachable error surfaces here while the server is down;
+        // those requests are counted as lost when they time out.
+      }
+    }
+  }
+
+  private void onResponse(ByteBuffer buffer) {
+    long now = System.nanoTime();
+    if (buffer.remaining() < MESSAGE_LEN_HEADER) {
+      unmatched.incrementAndGet();
+      return;
+    }
+    Message response = Message.wrap(buffer);
+    Long due = response.getTransactionIdHigh() == runId
+        ? pending.remove(response.getTransactionIdLow())
+        : null;
+    if (due == null) {
+      // Late, duplicated or not ours.
+      unmatched.incrementAndGet();
+      return;
+    }
+    received.incrementAndGet();
+    if (response.getMessageClass() == MESSAGE_CLASS_ERROR_RESPONSE) {
+      errorResponses.incrementAndGet();
+    }
+    if (due >= measureFromNanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(now - due);
+      allLatencies.record(micros);
+      RequestType type = typeOf(response.getMessageMethod());
+      if (type != null) {
+        histograms[type.ordinal()].record(micros);
+      }
+    }
+  }
+
+  private void expirePending(long now) {
+    Iterator<Map.Entry<Long, Long>> entries = pending.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Long, Long> entry = entries.next();
+      if (now - entry.getValue() > timeoutNanos && pending.remove(entry.getKey()) != null) {
+        lost.incrementAndGet();
+      }
+    }
+  }
+
+  private void report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    System.out.println();
+    System.out.println(String.format(
+        "sent=%d sendFailed=%d received=%d errors=%d lost=%d unmatched=%d in %.1f s",
+        sent.get(), sendFailed.get(), received.get(), errorResponses.get(), lost.get(),
+        unmatched.get(), seconds));
+    System.out.println(String.format("throughput: offered %.0f/s, answered %.0f/s",
+        sent.get() / seconds, received.get() / seconds));
+    System.out.println("latency (us), after warmup:");
+    System.out.println(String.format("  %-9s %s", "all", allLatencies));
+    for (RequestType type : RequestType.values()) {
+      if (histograms[type.ordinal()].getCount() > 0) {
+        System.out.println(String.format(
+            "  %-9s %s", type.name().toLowerCase(), histograms[type.ordinal()]));
+      }
+    }
+  }
+
+  private static RequestType typeOf(int method) {
+    for (RequestType type : RequestType.values()) {
+      if (type.method == method) {
+        return type;
+      }
+    }
+    return null;
+  }
+
+  private String describeSchedule() {
+    int[] counts = new int[RequestType.values().length];
+    for (RequestType type : schedule) {
+      counts[type.ordinal()]++;
+    }
+    StringBuilder description = new StringBuilder();
+    for (RequestType type : RequestType.values()) {
+      if (counts[type.ordinal()] > 0) {
+        if (description.length() > 0) {
+          description.append(',');
+        }
+        description.append(type.name().toLowerCase()).append(':').append(counts[type.ordinal()]);
+      }
+    }
+    return description.toString();
+  }
+
+  /**
+   * Builds one request of each type for the socket bound to
+   * {@code localAddress}. The sender only rewrites their transaction IDs. Each
+   * socket reports locations for its own uid, and its negotiate requests name
+   * the socket itself as the peer, so the server's reply comes back to it.
+   */
+  private static byte[][] createTemplates(int socket, InetSocketAddress localAddress) {
+    byte[][] templates = new byte[RequestType.values().length][];
+    templates[RequestType.BINDING.ordinal()] = request(MESSAGE_METHOD_BINDING, new byte[0]);
+    templates[RequestType.PP.ordinal()] = request(MESSAGE_METHOD_PP,
+        AttributesCollection.builder()
+            .addAttribute(LocationAttribute.createAttribute(
+                100000L + socket, 31.2 + socket * 0.001, 121.5, System.currentTimeMillis()))
+            .build()
+            .toByteArray());
+    templates[RequestType.NEGOTIATE.ordinal()] = request(MESSAGE_METHOD_NEGOCIATE,
+        AttributesCollection.builder()
+            .addAttribute(xorMappedAddress(localAddress))
+            .build()
+            .toByteArray());
+    return templates;
+  }
+
+  private static byte[] request(int method, byte[] attributeBytes) {
+    return Message.builder()
+        .setMessageClass(MESSAGE_CLASS_REQUEST)
+        .setMessageMethod(method)
+        .generateTransactionID()
+        .setAttributeBytes(attributeBytes)
+        .build()
+        .getBytes();
+  }
+
+  private static MappedAddressAttribute xorMappedAddress(InetSocketAddress address) {
+    Preconditions.checkArgument(
+        address.getAddress() instanceof Inet4Address, "Negotiate requests need an IPv4 source");
+    // Only an IPv6 address is XOR'd with the transaction ID, so any will do here.
+    return MappedAddressAttribute.createXorMappedAddress(
+        address, new byte[MESSAGE_LEN_TRANSACTION_ID]);
+  }
+
+}
@@ -0,0 +1,33 @@
+package io.vos.stun.Exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a stream announces a message longer than the reader accepts.
+ * The stream can't be resynchronized after that, so the connection should be
+ * closed.
+ */
+public class MessageTooLargeException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	int length, maxLength;
+
+	public MessageTooLargeException(int length, int maxLength) {
+		this.length = length;
+		this.maxLength = maxLength;
+	}
+
+	@Override
+	public String getMessage() {
+		return "Message too large. Length: " + length + " Max: " + maxLength;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+}
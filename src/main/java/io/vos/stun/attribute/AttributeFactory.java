@@ -7,4 +7,10 @@ public interface AttributeFactory {
    */
   Attribute createAttribute(int type, int length, byte[] valueData);
 
+  /**
+   * Returns whether {@link #createAttribute} supports the type, i.e. does not
+   * return an {@code UnsupportedAttribute} for it.
+   */
+  boolean isKnownType(int type);
+
 }
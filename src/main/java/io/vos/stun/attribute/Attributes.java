@@ -32,6 +32,11 @@ public final class Attributes {
   public static final int ATTRIBUTE_SIMPLE = 0x1001;
   public static final int ATTRIBUTE_DATA = 0x1002;
   public static final int ATTRIBUTE_LOCATION = 0x1003;
+  public static final int ATTRIBUTE_LOCATION_QUERY = 0x1004;
+  public static final int ATTRIBUTE_PEER_LOCATION = 0x1005;
+  public static final int ATTRIBUTE_LOCATION_BATCH = 0x1006;
+  public static final int ATTRIBUTE_LOCATION_STATUS = 0x1007;
+  public static final int ATTRIBUTE_COMPACT_LOCATION = 0x1008;
 
   /** RFC 5389 Comprehension-optional range (0x8000-0xFFFF) */
   public static final int ATTRIBUTE_SOFTWARE = 0x8022;
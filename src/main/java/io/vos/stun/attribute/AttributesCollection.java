@@ -1,22 +1,28 @@
 package io.vos.stun.attribute;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.TreeMultimap;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.NavigableSet;
-import java.util.Objects;
+import java.util.List;
+import java.util.NoSuchElementException;
 import javax.annotation.Nullable;
 
 /**
- * A sorted collection of {@code Attribute} objects. This object provides
- * ordered iteration and map like lookup for {@code Attribute} objects. It is
- * immutable, however via the {@link Builder} supports
- * adding and removing attributes.
+ * An ordered collection of {@code Attribute} objects. This object provides
+ * iteration in the order the attributes were added, which is the order they
+ * appear in the message, and map like lookup for {@code Attribute} objects.
+ * It is immutable, however via the {@link Builder} supports adding and
+ * removing attributes.
+ * <p>
+ * A collection made by {@link AttributesDecoder#decodeMessageAttributesLazily}
+ * only indexes where each attribute is in the message, and creates the
+ * {@code Attribute} the first time it is asked for. Such a collection reads
+ * the message bytes, so like the message it must not outlive them, and it
+ * must not be shared between threads.
  * <p>
  * To build a new {@code AttributeCollection}
  * see the {@link AttributesCollection#replyBuilder} and {@link
@@ -26,23 +32,21 @@ public final class AttributesCollection implements Iterable<Attribute> {
 
   public static AttributesCollection EMPTY_COLLECTION = builder().build();
 
-  private static final Function<AttributeEntry, Attribute> ENTRY_TO_ATTRIBUTE_TRANSFORM =
-      new Function<AttributeEntry, Attribute>() {
-    @Override
-    public Attribute apply(AttributeEntry attrEntry) {
-      return attrEntry.getAttribute();
-    }
-  };
-
-  // Using a TreeMultimap as the internal data structure because it organizes
-  // the attributes exactly as the spec defines. Using the attribute type (an
-  // int) as the key allows fast'ish (log N?) lookups for all attributes of a
-  // given type. The multimap feature means we can store multiple attributes at
-  // a given type, like the spec allows for. The tree keeps the map values in
-  // sorted order by natural ordering of the AttributeEntry.position, aka the
-  // order it was added in. This is the most important aspect because if
-  // multiple attributes are in the message, then only the first one matters.
-  private final TreeMultimap<Integer, AttributeEntry> attributeMap;
+  // A message rarely has more than a handful of attributes, so the collection
+  // is a set of parallel arrays in message order and lookups scan them. Entry
+  // i has type types[i], and its encoding takes lengths[i] bytes starting at
+  // offsets[i] of the array returned by toByteArray. If multiple attributes of
+  // a type are in the message, then only the first one matters.
+  private final int size;
+  private final int[] types;
+  private final int[] offsets;
+  private final int[] lengths;
+  // Null entries have not been decoded yet. Their encoding starts at
+  // sourceOffsets[i] of source, and factory creates them.
+  private final Attribute[] attributes;
+  @Nullable private final ByteBuffer source;
+  @Nullable private final int[] sourceOffsets;
+  @Nullable private final AttributeFactory factory;
 
   // The total size of all attributes in bytes, helps when writing the
   // attributes back out to a byte array.
@@ -53,8 +57,24 @@ public final class AttributesCollection implements Iterable<Attribute> {
    * {@code AttributesCollection.builder} to use this.
    */
   private AttributesCollection(Builder builder) {
-    attributeMap = TreeMultimap.create(builder.builderMap);
-    totalByteSize = builder.totalByteSize;
+    size = builder.size;
+    types = Arrays.copyOf(builder.types, size);
+    attributes = Arrays.copyOf(builder.attributes, size);
+    source = builder.source;
+    sourceOffsets = source == null ? null : Arrays.copyOf(builder.sourceOffsets, size);
+    factory = builder.factory;
+    offsets = new int[size];
+    lengths = new int[size];
+
+    int offset = 0;
+    for (int i = 0; i < size; i++) {
+      offsets[i] = offset;
+      lengths[i] = attributes[i] != null
+          ? attributes[i].getTotalLength()
+          : 4 + getPaddedLength(source.getShort(sourceOffsets[i] + 2) & 0xffff);
+      offset += lengths[i];
+    }
+    totalByteSize = offset;
   }
 
   /**
@@ -62,28 +82,30 @@ public final class AttributesCollection implements Iterable<Attribute> {
    * pairs.
    */
   public boolean isEmpty() {
-    return attributeMap.isEmpty();
+    return size == 0;
   }
 
   /** Returns the number of type/Attribute pairs in the collection. */
   public int size() {
-    return attributeMap.size();
+    return size;
   }
 
   @Override
   public Iterator<Attribute> iterator() {
-    // Using this backing iterator is probably slower, but not worried about
-    // that now...
-    final Iterator<AttributeEntry> backingIterator = attributeMap.values().iterator();
     return new Iterator<Attribute>() {
+      private int next;
+
       @Override
       public boolean hasNext() {
-        return backingIterator.hasNext();
+        return next < size;
       }
 
       @Override
       public Attribute next() {
-        return backingIterator.next().getAttribute();
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return attributeAt(next++);
       }
 
       @Override
@@ -94,7 +116,7 @@ public final class AttributesCollection implements Iterable<Attribute> {
   }
 
   public boolean hasAttributeType(int type) {
-    return attributeMap.containsKey(type);
+    return indexOf(type) >= 0;
   }
 
   /**
@@ -102,7 +124,17 @@ public final class AttributesCollection implements Iterable<Attribute> {
    * {@code type}. Returns an empty {@link Iterable} if there are none.
    */
   public Iterable<Attribute> getAttributesOfType(int type) {
-    return Iterables.transform(attributeMap.get(type), ENTRY_TO_ATTRIBUTE_TRANSFORM);
+    int first = indexOf(type);
+    if (first < 0) {
+      return Collections.emptyList();
+    }
+    List<Attribute> matches = new ArrayList<>(size - first);
+    for (int i = first; i < size; i++) {
+      if (types[i] == type) {
+        matches.add(attributeAt(i));
+      }
+    }
+    return Collections.unmodifiableList(matches);
   }
 
   /**
@@ -113,10 +145,29 @@ public final class AttributesCollection implements Iterable<Attribute> {
    */
   @Nullable
   public Attribute getFirstAttributeOfType(int type) {
-    NavigableSet<AttributeEntry> entrySet = attributeMap.get(type);
-    return entrySet.isEmpty()
-        ? null
-        : entrySet.first().getAttribute();
+    int index = indexOf(type);
+    return index < 0 ? null : attributeAt(index);
+  }
+
+  /**
+   * Returns the types of the comprehension-required attributes that this
+   * implementation does not support, in message order. Attributes that have
+   * not been decoded yet stay that way.
+   */
+  public List<Integer> getUnknownRequiredTypes() {
+    List<Integer> unknownTypes = new ArrayList<>(0);
+    for (int i = 0; i < size; i++) {
+      if (!Attributes.isComprehensionRequired(types[i])) {
+        continue;
+      }
+      boolean known = attributes[i] != null
+          ? !Attributes.isUnknownAttribute(attributes[i])
+          : factory.isKnownType(types[i]);
+      if (!known) {
+        unknownTypes.add(types[i]);
+      }
+    }
+    return unknownTypes;
   }
 
   /**
@@ -125,11 +176,18 @@ public final class AttributesCollection implements Iterable<Attribute> {
    */
   public byte[] toByteArray() {
     byte[] byteOutput = new byte[totalByteSize];
-    int currentIndex = 0;
-    for (Attribute attr : this) {
-      int attrByteSize = attr.getTotalLength();
-      System.arraycopy(attr.toByteArray(), 0, byteOutput, currentIndex, attrByteSize);
-      currentIndex += attrByteSize;
+    for (int i = 0; i < size; i++) {
+      Attribute attr = attributes[i];
+      if (attr == null) {
+        // Not decoded, copy the encoding straight from the message.
+        ByteBuffer encoded = source.duplicate();
+        encoded.position(sourceOffsets[i]);
+        encoded.get(byteOutput, offsets[i], lengths[i]);
+      } else if (attr instanceof BaseAttribute) {
+        ((BaseAttribute) attr).writeTo(byteOutput, offsets[i]);
+      } else {
+        System.arraycopy(attr.toByteArray(), 0, byteOutput, offsets[i], lengths[i]);
+      }
     }
     return byteOutput;
   }
@@ -140,10 +198,13 @@ public final class AttributesCollection implements Iterable<Attribute> {
    * the attributes for a reply.
    */
   public Builder replyBuilder() {
-    Builder builder = new Builder();
-    for (Attribute attr : this) {
-      builder.addAttribute(attr);
+    Builder builder = new Builder(size + 1, source, factory);
+    System.arraycopy(types, 0, builder.types, 0, size);
+    System.arraycopy(attributes, 0, builder.attributes, 0, size);
+    if (source != null) {
+      System.arraycopy(sourceOffsets, 0, builder.sourceOffsets, 0, size);
     }
+    builder.size = size;
     return builder;
   }
 
@@ -152,33 +213,103 @@ public final class AttributesCollection implements Iterable<Attribute> {
    * {@code AttributeCollection} for a newly received message.
    */
   public static Builder builder() {
-    return new Builder();
+    return new Builder(4, null, null);
   }
 
-  public static class Builder {
+  /**
+   * Returns a builder for a lazily decoded collection over the attribute
+   * bytes of a message, see {@link Builder#addEncodedAttribute}.
+   */
+  static Builder lazyBuilder(ByteBuffer source, AttributeFactory factory) {
+    return new Builder(8, Preconditions.checkNotNull(source), Preconditions.checkNotNull(factory));
+  }
+
+  private Attribute attributeAt(int index) {
+    Attribute attr = attributes[index];
+    if (attr == null) {
+      int sourceOffset = sourceOffsets[index];
+      int length = source.getShort(sourceOffset + 2) & 0xffff;
+      // we can just copy to length, because the valueData array is already
+      // initialized to 0 byte values
+      byte[] valueData = new byte[lengths[index] - 4];
+      ByteBuffer value = source.duplicate();
+      value.position(sourceOffset + 4);
+      value.get(valueData, 0, length);
+      attr = factory.createAttribute(types[index], length, valueData);
+      attributes[index] = attr;
+    }
+    return attr;
+  }
+
+  private static int getPaddedLength(int length) {
+    int remainder = length % 4;
+    return remainder == 0 ? length : length + 4 - remainder;
+  }
+
+  private int indexOf(int type) {
+    for (int i = 0; i < size; i++) {
+      if (types[i] == type) {
+        return i;
+      }
+    }
+    return -1;
+  }
 
-    private int position;
-    private Multimap<Integer, AttributeEntry> builderMap;
-    private int totalByteSize;
+  public static class Builder {
 
-    Builder() {
-      position = 0;
-      totalByteSize = 0;
-      // Using a hashmultimap because I have hunch (no proof) that's its
-      // fast to build.
-      builderMap = HashMultimap.create();
+    private int size;
+    private int[] types;
+    private Attribute[] attributes;
+    @Nullable private final ByteBuffer source;
+    @Nullable private int[] sourceOffsets;
+    @Nullable private final AttributeFactory factory;
+
+    Builder(int initialCapacity, @Nullable ByteBuffer source, @Nullable AttributeFactory factory) {
+      size = 0;
+      types = new int[initialCapacity];
+      attributes = new Attribute[initialCapacity];
+      this.source = source;
+      this.sourceOffsets = source == null ? null : new int[initialCapacity];
+      this.factory = factory;
     }
 
     /**
-     * Adds a new {@code Attribute} to the multimap, capable of being looked up
-     * by its type and sorted by its position in the message.
+     * Adds a new {@code Attribute} after the ones already added, capable of
+     * being looked up by its type.
      */
     public Builder addAttribute(Attribute attr) {
-      builderMap.put(attr.getType(), new AttributeEntry(attr, position++));
-      totalByteSize += attr.getTotalLength();
+      Preconditions.checkNotNull(attr);
+      add(attr.getType(), attr, -1);
       return this;
     }
 
+    /**
+     * Adds the attribute whose encoding starts at {@code sourceOffset} of the
+     * bytes this builder was created over, without decoding it.
+     */
+    Builder addEncodedAttribute(int type, int sourceOffset) {
+      Preconditions.checkState(source != null, "not a lazy builder");
+      add(type, null, sourceOffset);
+      return this;
+    }
+
+    private void add(int type, @Nullable Attribute attr, int sourceOffset) {
+      if (size == types.length) {
+        int capacity = Math.max(4, size * 2);
+        types = Arrays.copyOf(types, capacity);
+        attributes = Arrays.copyOf(attributes, capacity);
+        if (sourceOffsets != null) {
+          sourceOffsets = Arrays.copyOf(sourceOffsets, capacity);
+        }
+      }
+      types[size] = type;
+      attributes[size] = attr;
+      if (sourceOffsets != null) {
+        sourceOffsets[size] = sourceOffset;
+      }
+      size++;
+    }
+
     public Builder addAllAttributes(Iterable<Attribute> attrs) {
       for (Attribute attr : attrs) {
         addAttribute(attr);
@@ -190,7 +321,19 @@ public final class AttributesCollection implements Iterable<Attribute> {
      * Removes all attributes of the given {@code type}.
      */
     public Builder removeAllAttributesByType(int type) {
-      builderMap.removeAll(type);
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        if (types[i] != type) {
+          types[kept] = types[i];
+          attributes[kept] = attributes[i];
+          if (sourceOffsets != null) {
+            sourceOffsets[kept] = sourceOffsets[i];
+          }
+          kept++;
+        }
+      }
+      Arrays.fill(attributes, kept, size, null);
+      size = kept;
       return this;
     }
 
@@ -198,47 +341,4 @@ public final class AttributesCollection implements Iterable<Attribute> {
       return new AttributesCollection(this);
     }
   }
-
-  /**
-   * An entry in the internal multimap used to keep the sorted order that the
-   * entry is added in.
-   */
-  private static class AttributeEntry implements Comparable<AttributeEntry> {
-
-    private final int position;
-    private final Attribute attribute;
-
-    AttributeEntry(Attribute attribute, int position) {
-      Preconditions.checkArgument(position >= 0);
-      this.position = position;
-      this.attribute = Preconditions.checkNotNull(attribute);
-    }
-
-    Attribute getAttribute() {
-      return attribute;
-    }
-
-    @Override
-    public int compareTo(AttributeEntry other) {
-      return position - other.position;
-    }
-
-    /** The comparators used in a TreeMap must be consistent with equals. */
-    @Override
-    public boolean equals(Object other) {
-      if (other == null || !(other instanceof AttributeEntry)) {
-        return false;
-      } else if (this == other) {
-        return true;
-      }
-
-      AttributeEntry otherAttrEntry = (AttributeEntry)other;
-      return position == otherAttrEntry.position && attribute.equals(otherAttrEntry.attribute);
-    }
-
-    @Override
-    public int hashCode() {
-      return Objects.hash(position, attribute);
-    }
-  }
 }
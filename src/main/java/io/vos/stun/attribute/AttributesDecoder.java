@@ -1,10 +1,11 @@
 package io.vos.stun.attribute;
 
 import io.vos.stun.message.Message;
-import io.vos.stun.util.Bytes;
 
 import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
+
 /**
  * @see https://tools.ietf.org/html/rfc5389#section-15
  *
@@ -40,23 +41,28 @@ public final class AttributesDecoder {
       return AttributesCollection.EMPTY_COLLECTION;
     }
 
-    byte[] attributeData = message.getAttributeBytes();
+    // Read in place, only each attribute value is copied out.
+    ByteBuffer attributeData = message.getAttributesBuffer();
 
-    Preconditions.checkState(attributeData.length % 4 == 0);
+    Preconditions.checkState(attributeData.limit() % 4 == 0);
     AttributesCollection.Builder attrCollectionBuilder = AttributesCollection.builder();
 
     int currentByte = 0;
-    while (currentByte < attributeData.length - 1) {
-      int type = Bytes.twoBytesToInt(attributeData[currentByte++], attributeData[currentByte++]);
-      int length = Bytes.twoBytesToInt(attributeData[currentByte++], attributeData[currentByte++]);
+    while (currentByte < attributeData.limit() - 1) {
+      int type = attributeData.getShort(currentByte) & 0xffff;
+      int length = attributeData.getShort(currentByte + 2) & 0xffff;
+      currentByte += 4;
 
       byte[] valueData;
       if (length > 0) {
         int paddedLength = getPaddedLength(length);
+        Preconditions.checkState(currentByte + length <= attributeData.limit(),
+            "Attribute length %s overruns the message", length);
         valueData = new byte[paddedLength];
         // we can just copy to length, because the valueData array is already
         // initialized to 0 byte values
-        System.arraycopy(attributeData, currentByte, valueData, 0, length);
+        attributeData.position(currentByte);
+        attributeData.get(valueData, 0, length);
         currentByte += paddedLength;
       } else {
         valueData = new byte[0];
@@ -68,6 +74,36 @@ public final class AttributesDecoder {
     return attrCollectionBuilder.build();
   }
 
+  /**
+   * Returns the attributes of the message without decoding them. A single
+   * pass records where each attribute starts, and an {@code Attribute} is
+   * only created when it is looked up or iterated over. See
+   * {@link AttributesCollection} for how long the result may be used.
+   */
+  public AttributesCollection decodeMessageAttributesLazily(Message message) {
+    if (!message.hasAttributes()) {
+      return AttributesCollection.EMPTY_COLLECTION;
+    }
+
+    ByteBuffer attributeData = message.getAttributesBuffer();
+
+    Preconditions.checkState(attributeData.limit() % 4 == 0);
+    AttributesCollection.Builder attrCollectionBuilder =
+        AttributesCollection.lazyBuilder(attributeData, attributeFactory);
+
+    int currentByte = 0;
+    while (currentByte < attributeData.limit() - 1) {
+      int type = attributeData.getShort(currentByte) & 0xffff;
+      int length = attributeData.getShort(currentByte + 2) & 0xffff;
+      Preconditions.checkState(currentByte + 4 + length <= attributeData.limit(),
+          "Attribute length %s overruns the message", length);
+
+      attrCollectionBuilder.addEncodedAttribute(type, currentByte);
+      currentByte += 4 + getPaddedLength(length);
+    }
+    return attrCollectionBuilder.build();
+  }
+
   private static int getPaddedLength(int length) {
     int remainder = length % 4;
     return remainder == 0 ? length : length + 4 - remainder;
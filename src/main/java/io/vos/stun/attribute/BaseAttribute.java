@@ -1,7 +1,5 @@
 package io.vos.stun.attribute;
 
-import io.vos.stun.util.Bytes;
-
 import com.google.common.base.Preconditions;
 
 import java.util.Arrays;
@@ -64,13 +62,22 @@ public class BaseAttribute implements Attribute {
 
   @Override
   public final byte[] toByteArray() {
-    byte[] typeBytes = Bytes.intToBytes(type);
-    byte[] lengthBytes = Bytes.intToBytes(length);
-    byte[] headerData = new byte[] {
-      typeBytes[2], typeBytes[3],
-      lengthBytes[2], lengthBytes[3]
-    };
-    return com.google.common.primitives.Bytes.concat(headerData, valueData);
+    byte[] byteOutput = new byte[getTotalLength()];
+    writeTo(byteOutput, 0);
+    return byteOutput;
+  }
+
+  /**
+   * Writes the same bytes as {@link #toByteArray} into {@code dest} starting
+   * at {@code offset}, which must have room for {@link #getTotalLength} bytes.
+   */
+  public final void writeTo(byte[] dest, int offset) {
+    Preconditions.checkPositionIndexes(offset, offset + getTotalLength(), dest.length);
+    dest[offset] = (byte) (type >>> 8);
+    dest[offset + 1] = (byte) type;
+    dest[offset + 2] = (byte) (length >>> 8);
+    dest[offset + 3] = (byte) length;
+    System.arraycopy(valueData, 0, dest, offset + 4, valueData.length);
   }
 
   @Override
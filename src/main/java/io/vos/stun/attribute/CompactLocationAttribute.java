@@ -0,0 +1,145 @@
+package io.vos.stun.attribute;
+
+import com.google.common.base.Preconditions;
+import io.vos.stun.util.Bytes;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_COMPACT_LOCATION;
+
+/**
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                    Latitude (microdegrees)                    |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                    Longitude (microdegrees)                   |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                    Time base (seconds)                        |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |         Uid (varint)          ...     Time delta (varint)     |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ *                 Figure: Format of CompactLocation Attribute
+ *
+ * The same report as a LOCATION in usually 20 bytes instead of 32. The
+ * coordinates are signed fixed point microdegrees, about 11cm at the equator.
+ * The locatetime is the time base, in unsigned seconds since the epoch, plus
+ * the zigzag encoded millisecond delta. A client keeps the same base for its
+ * session and only moves it once the delta no longer fits 3 bytes, so the
+ * base is the part that repeats from one report to the next.
+ */
+
+public class CompactLocationAttribute extends BaseAttribute {
+
+	/** The largest delta that zigzag encodes into 3 varint bytes, about 17 minutes. */
+	public static final long MAX_SHORT_DELTA_MILLIS = (1L << 20) - 1;
+
+	static final int FIXED_LENGTH = 12;
+
+	/** The longest value, with a uid and a delta of 10 varint bytes each. */
+	public static final int MAX_LENGTH = FIXED_LENGTH + 2 * Bytes.MAX_VARLONG_LENGTH;
+
+	private static final double MICRODEGREES = 1e6;
+
+	long uid;
+	int latitudeE6;
+	int longitudeE6;
+	long locatetime;
+
+	public CompactLocationAttribute(int type, int length, byte[] valueData) {
+		super(type, length, valueData);
+
+		ByteBuffer value = ByteBuffer.wrap(valueData, 0, length);
+		latitudeE6 = value.getInt();
+		longitudeE6 = value.getInt();
+		long baseSeconds = value.getInt() & 0xffffffffL;
+		uid = Bytes.getVarLong(value);
+		locatetime = baseSeconds * 1000 + Bytes.zigZagDecode(Bytes.getVarLong(value));
+	}
+
+	@Override
+	protected void validateInternal(int type, int length, byte[] valueData) {
+		Preconditions.checkState(length >= FIXED_LENGTH + 2 && length <= MAX_LENGTH, String.format(
+				"Invalid value data length %d, expected %d to %d", length, FIXED_LENGTH + 2, MAX_LENGTH));
+		ByteBuffer value = ByteBuffer.wrap(valueData, 0, length);
+		int latitudeE6 = value.getInt();
+		int longitudeE6 = value.getInt();
+		Preconditions.checkState(latitudeE6 >= -90000000 && latitudeE6 <= 90000000
+				&& longitudeE6 >= -180000000 && longitudeE6 <= 180000000, String.format(
+				"Invalid coordinates %d,%d microdegrees", latitudeE6, longitudeE6));
+		value.position(FIXED_LENGTH);
+		try {
+			Bytes.getVarLong(value);
+			Bytes.getVarLong(value);
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IllegalStateException("Malformed varint", ex);
+		}
+		Preconditions.checkState(!value.hasRemaining(), "Trailing bytes after the time delta");
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public double getLatitude() {
+		return latitudeE6 / MICRODEGREES;
+	}
+
+	public double getLongitude() {
+		return longitudeE6 / MICRODEGREES;
+	}
+
+	public long getLocatetime() {
+		return locatetime;
+	}
+
+	/**
+	 * Returns the length of the value for a report, before the padding to
+	 * 4 bytes.
+	 */
+	public static int valueLength(long uid, long locatetime, long baseSeconds) {
+		return FIXED_LENGTH + Bytes.varLongLength(uid)
+				+ Bytes.varLongLength(Bytes.zigZagEncode(locatetime - baseSeconds * 1000));
+	}
+
+	/**
+	 * Writes the value for a report at the position of {@code out}, without
+	 * the padding, for encoders writing a request without creating the
+	 * attribute. The coordinates must be in range and {@code baseSeconds} an
+	 * unsigned 32 bit count of seconds.
+	 */
+	public static void putValue(ByteBuffer out, long uid, double latitude, double longitude,
+			long locatetime, long baseSeconds) {
+		Preconditions.checkArgument(latitude >= -90 && latitude <= 90
+				&& longitude >= -180 && longitude <= 180,
+				"Invalid coordinates %s,%s", latitude, longitude);
+		Preconditions.checkArgument(baseSeconds >= 0 && baseSeconds <= 0xffffffffL,
+				"Time base %s out of range", baseSeconds);
+		out.putInt((int) Math.round(latitude * MICRODEGREES));
+		out.putInt((int) Math.round(longitude * MICRODEGREES));
+		out.putInt((int) baseSeconds);
+		Bytes.putVarLong(out, uid);
+		Bytes.putVarLong(out, Bytes.zigZagEncode(locatetime - baseSeconds * 1000));
+	}
+
+	public static CompactLocationAttribute createAttribute(long uid, double latitude,
+			double longitude, long locatetime, long baseSeconds) {
+		int length = valueLength(uid, locatetime, baseSeconds);
+		byte[] valueData = new byte[(length + 3) & ~3];
+		putValue(ByteBuffer.wrap(valueData), uid, latitude, longitude, locatetime, baseSeconds);
+		return new CompactLocationAttribute(
+				ATTRIBUTE_COMPACT_LOCATION,
+				length,
+				valueData);
+	}
+
+	/** Creates the attribute with the locatetime's own second as the base. */
+	public static CompactLocationAttribute createAttribute(long uid, double latitude,
+			double longitude, long locatetime) {
+		return createAttribute(uid, latitude, longitude, locatetime, locatetime / 1000);
+	}
+
+}
@@ -1,8 +1,10 @@
 package io.vos.stun.attribute;
 
-import io.vos.stun.util.Bytes;
+import com.google.common.base.Preconditions;
 import io.vos.stun.util.InternetChecksum;
 
+import java.nio.ByteBuffer;
+
 import static io.vos.stun.attribute.Attributes.ATTRIBUTE_DATA;
 import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION;
 
@@ -38,21 +40,17 @@ public class LocationAttribute extends BaseAttribute {
 	public LocationAttribute(int type, int length, byte[] valueData) {
 		super(type, length, valueData);
 
-		byte[] uidData = new byte[8];
-		byte[] latiData = new byte[8];
-		byte[] longiData = new byte[8];
-		byte[] locatetimeData = new byte[8];
-		// we can just copy to length, because the valueData array is already
-		// initialized to 0 byte values
-		System.arraycopy(valueData, 0, uidData, 0, 8);
-		System.arraycopy(valueData, 8, latiData, 0, 8);
-		System.arraycopy(valueData, 16, longiData, 0, 8);
-		System.arraycopy(valueData, 24, locatetimeData, 0, 8);
+		ByteBuffer value = ByteBuffer.wrap(valueData);
+		uid = value.getLong();
+		latitude = value.getDouble();
+		longitude = value.getDouble();
+		locatetime = value.getLong();
+	}
 
-		uid = Bytes.bytes2Long(uidData);
-		latitude = Bytes.bytes2Double(latiData);
-		longitude = Bytes.bytes2Double(longiData);
-		locatetime = Bytes.bytes2Long(locatetimeData);
+	@Override
+	protected void validateInternal(int type, int length, byte[] valueData) {
+		Preconditions.checkState(length == 32, String.format(
+				"Invalid value data length %d, expected 32", length));
 	}
 
 	public long getUid() {
@@ -60,7 +58,7 @@ public class LocationAttribute extends BaseAttribute {
 	}
 
 	public double getLatitude() {
-		return longitude;
+		return latitude;
 	}
 	
 	public double getLongitude() {
@@ -73,15 +71,17 @@ public class LocationAttribute extends BaseAttribute {
 	
 	public static LocationAttribute createAttribute(long uid, double latitude, double longitude, long locatetime) {
 
-		byte[] valueData = Bytes.concat(
-				Bytes.long2Bytes(uid),
-				Bytes.double2Bytes(latitude),
-				Bytes.double2Bytes(longitude),
-				Bytes.long2Bytes(locatetime));
+		// 32 bytes, already on a 4 byte boundary.
+		byte[] valueData = new byte[32];
+		ByteBuffer.wrap(valueData)
+				.putLong(uid)
+				.putDouble(latitude)
+				.putDouble(longitude)
+				.putLong(locatetime);
 		return new LocationAttribute(
 				ATTRIBUTE_LOCATION,
 				valueData.length,
-				Bytes.padTo4ByteBoundary(valueData));
+				valueData);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package io.vos.stun.attribute;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_BATCH;
+
+/**
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Uid 1                                |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Latitude 1                           |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Longitude 1                          |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Locatetime 1                         |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          ...                                  |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ *                 Figure: Format of LocationBatch Attribute
+ *
+ * Any number of LOCATION records back to back, so that a gateway can report
+ * for many users in one request. The server answers with a LOCATION-STATUS
+ * attribute holding a status per record, in the same order. A request has to
+ * fit the server's 1472 byte datagrams, which leaves room for 45 records.
+ */
+
+public class LocationBatchAttribute extends BaseAttribute {
+
+	static final int RECORD_LENGTH = 32;
+
+	/** The most records a request can carry in one datagram. */
+	public static final int MAX_RECORDS = 45;
+
+	long[] uids;
+	double[] latitudes;
+	double[] longitudes;
+	long[] locatetimes;
+
+	public LocationBatchAttribute(int type, int length, byte[] valueData) {
+		super(type, length, valueData);
+
+		int count = length / RECORD_LENGTH;
+		uids = new long[count];
+		latitudes = new double[count];
+		longitudes = new double[count];
+		locatetimes = new long[count];
+		ByteBuffer value = ByteBuffer.wrap(valueData);
+		for (int i = 0; i < count; i++) {
+			uids[i] = value.getLong();
+			latitudes[i] = value.getDouble();
+			longitudes[i] = value.getDouble();
+			locatetimes[i] = value.getLong();
+		}
+	}
+
+	@Override
+	protected void validateInternal(int type, int length, byte[] valueData) {
+		Preconditions.checkState(length % RECORD_LENGTH == 0, String.format(
+				"Invalid value data length %d, expected a multiple of %d", length, RECORD_LENGTH));
+	}
+
+	/** The number of records in the batch. */
+	public int size() {
+		return uids.length;
+	}
+
+	public long getUid(int index) {
+		return uids[index];
+	}
+
+	public double getLatitude(int index) {
+		return latitudes[index];
+	}
+
+	public double getLongitude(int index) {
+		return longitudes[index];
+	}
+
+	public long getLocatetime(int index) {
+		return locatetimes[index];
+	}
+
+	/** Creates a batch of the records at the same index of each array. */
+	public static LocationBatchAttribute createAttribute(long[] uids, double[] latitudes,
+			double[] longitudes, long[] locatetimes) {
+		int count = uids.length;
+		Preconditions.checkArgument(latitudes.length == count && longitudes.length == count
+				&& locatetimes.length == count, "Columns of different lengths");
+
+		byte[] valueData = new byte[count * RECORD_LENGTH];
+		putRecords(ByteBuffer.wrap(valueData), uids, latitudes, longitudes, locatetimes);
+		return new LocationBatchAttribute(
+				ATTRIBUTE_LOCATION_BATCH,
+				valueData.length,
+				valueData);
+	}
+
+	/**
+	 * Writes the records of a batch value at the position of {@code out}, for
+	 * encoders writing a request without creating the attribute.
+	 */
+	public static void putRecords(ByteBuffer out, long[] uids, double[] latitudes,
+			double[] longitudes, long[] locatetimes) {
+		for (int i = 0; i < uids.length; i++) {
+			out.putLong(uids[i]);
+			out.putDouble(latitudes[i]);
+			out.putDouble(longitudes[i]);
+			out.putLong(locatetimes[i]);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package io.vos.stun.attribute;
+
+import io.vos.stun.util.Bytes;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_QUERY;
+
+/**
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Uid                                  |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Latitude                             |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Longitude                            |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Radius (meters)                      |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Limit                                |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ *                 Figure: Format of LocationQuery Attribute
+ *
+ * A non-zero uid asks for that user's last known location. Otherwise a
+ * non-zero radius asks for the users within it, and a zero radius for the
+ * limit users nearest to the point.
+ */
+
+public class LocationQueryAttribute extends BaseAttribute {
+
+	static final int VALUE_LENGTH = 32;
+
+	long uid;
+	double latitude;
+	double longitude;
+	int radiusMeters;
+	int limit;
+
+	public LocationQueryAttribute(int type, int length, byte[] valueData) {
+		super(type, length, valueData);
+
+		ByteBuffer value = ByteBuffer.wrap(valueData);
+		uid = value.getLong();
+		latitude = value.getDouble();
+		longitude = value.getDouble();
+		radiusMeters = value.getInt();
+		limit = value.getInt();
+	}
+
+	@Override
+	protected void validateInternal(int type, int length, byte[] valueData) {
+		Preconditions.checkState(length == VALUE_LENGTH, String.format(
+				"Invalid value data length %d, expected %d", length, VALUE_LENGTH));
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public int getRadiusMeters() {
+		return radiusMeters;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public static LocationQueryAttribute createUidQuery(long uid) {
+		return createAttribute(uid, 0, 0, 0, 1);
+	}
+
+	public static LocationQueryAttribute createRadiusQuery(double latitude, double longitude, int radiusMeters, int limit) {
+		return createAttribute(0, latitude, longitude, radiusMeters, limit);
+	}
+
+	public static LocationQueryAttribute createNearestQuery(double latitude, double longitude, int limit) {
+		return createAttribute(0, latitude, longitude, 0, limit);
+	}
+
+	private static LocationQueryAttribute createAttribute(long uid, double latitude, double longitude, int radiusMeters, int limit) {
+
+		byte[] valueData = Bytes.concat(
+				Bytes.long2Bytes(uid),
+				Bytes.double2Bytes(latitude),
+				Bytes.double2Bytes(longitude),
+				Bytes.intToBytes(radiusMeters),
+				Bytes.intToBytes(limit));
+		return new LocationQueryAttribute(
+				ATTRIBUTE_LOCATION_QUERY,
+				valueData.length,
+				valueData);
+	}
+
+}
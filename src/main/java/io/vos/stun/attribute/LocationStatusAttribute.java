@@ -0,0 +1,60 @@
+package io.vos.stun.attribute;
+
+import io.vos.stun.util.Bytes;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_STATUS;
+
+/**
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |   Status 1    |   Status 2    |   Status 3    |     ...       |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ *                 Figure: Format of LocationStatus Attribute
+ *
+ * The server's answer to a LOCATION-BATCH, one status byte per record in the
+ * order of the batch. The attribute length is the number of records; the
+ * value is padded to a multiple of 4 bytes like any other.
+ */
+
+public class LocationStatusAttribute extends BaseAttribute {
+
+	/** The location was stored and is the newest known for the user. */
+	public static final byte STATUS_OK = 0;
+	/** The coordinates are out of range, the location was not stored. */
+	public static final byte STATUS_INVALID = 1;
+	/** The server already knew a newer location for the user, this one was not stored. */
+	public static final byte STATUS_STALE = 2;
+
+	byte[] statuses;
+
+	public LocationStatusAttribute(int type, int length, byte[] valueData) {
+		super(type, length, valueData);
+
+		statuses = new byte[length];
+		System.arraycopy(valueData, 0, statuses, 0, length);
+	}
+
+	/** The number of records the statuses are for. */
+	public int size() {
+		return statuses.length;
+	}
+
+	public byte getStatus(int index) {
+		return statuses[index];
+	}
+
+	public byte[] getStatuses() {
+		return statuses.clone();
+	}
+
+	public static LocationStatusAttribute createAttribute(byte[] statuses) {
+		return new LocationStatusAttribute(
+				ATTRIBUTE_LOCATION_STATUS,
+				statuses.length,
+				Bytes.padTo4ByteBoundary(statuses));
+	}
+
+}
@@ -1,11 +1,15 @@
 package io.vos.stun.attribute;
 
 import static io.vos.stun.attribute.Attributes.*;
+import static io.vos.stun.message.Messages.MAGIC_COOKIE_FIXED_VALUE;
+import static io.vos.stun.message.Messages.MESSAGE_LEN_TRANSACTION_ID;
 
 import io.vos.stun.util.Bytes;
 
 import com.google.common.base.Preconditions;
 
+import java.net.InetSocketAddress;
+
 /**
  * @see //https://www.iana.org/assignments/stun-parameters/stun-parameters.txt
  *
@@ -110,4 +114,52 @@ public final class MappedAddressAttribute extends BaseAttribute {
         valueData.length,
         Bytes.padTo4ByteBoundary(valueData));
   }
+
+  /** Creates a MAPPED-ADDRESS attribute holding {@code address} as is. */
+  public static MappedAddressAttribute createMappedAddress(InetSocketAddress address) {
+    byte[] addressBytes = address.getAddress().getAddress();
+    byte[] portBytes = Bytes.intToBytes(address.getPort(), 2 /* maxBytes */);
+    return createAttribute(familyOf(addressBytes), portBytes, addressBytes, false /* isXor */);
+  }
+
+  /** Creates an XOR-MAPPED-ADDRESS attribute for {@code address}, see below. */
+  public static MappedAddressAttribute createXorMappedAddress(
+      InetSocketAddress address, byte[] transactionId) {
+    return createXorMappedAddress(
+        address.getAddress().getAddress(), address.getPort(), transactionId);
+  }
+
+  /**
+   * Creates an XOR-MAPPED-ADDRESS attribute for the IPv4 or IPv6 address
+   * {@code addressBytes} and {@code port}. The port and an IPv4 address are
+   * XOR'd with the magic cookie, an IPv6 address with the magic cookie
+   * followed by {@code transactionId}. XOR is its own inverse, so passing the
+   * address and port of a received XOR-MAPPED-ADDRESS gives the plain ones.
+   */
+  public static MappedAddressAttribute createXorMappedAddress(
+      byte[] addressBytes, int port, byte[] transactionId) {
+    Preconditions.checkArgument(transactionId.length == MESSAGE_LEN_TRANSACTION_ID);
+    int addressFamily = familyOf(addressBytes);
+
+    int xPort = port ^ (MAGIC_COOKIE_FIXED_VALUE >>> 16);
+    byte[] xPortBytes = new byte[] {(byte) (xPort >>> 8), (byte) xPort};
+
+    byte[] xAddressBytes = new byte[addressBytes.length];
+    for (int i = 0; i < addressBytes.length; i++) {
+      byte mask = i < 4
+          ? (byte) (MAGIC_COOKIE_FIXED_VALUE >>> (24 - i * 8))
+          : transactionId[i - 4];
+      xAddressBytes[i] = (byte) (addressBytes[i] ^ mask);
+    }
+    return createAttribute(addressFamily, xPortBytes, xAddressBytes, true /* isXor */);
+  }
+
+  private static byte familyOf(byte[] addressBytes) {
+    if (addressBytes.length == 4) {
+      return AF_IPV4;
+    } else if (addressBytes.length == 16) {
+      return AF_IPV6;
+    }
+    throw new IllegalArgumentException("Should either have an IPv4 or IPv6 address");
+  }
 }
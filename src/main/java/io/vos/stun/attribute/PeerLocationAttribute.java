@@ -0,0 +1,124 @@
+package io.vos.stun.attribute;
+
+import io.vos.stun.util.Bytes;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_PEER_LOCATION;
+
+/**
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Uid                                  |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Latitude                             |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Longitude                            |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                          Locatetime                           |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |0 0 0 0 0 0 0 0|    Family     |           Port                |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                                                               |
+ *    |                 Address (32 bits or 128 bits)                 |
+ *    |                                                               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ *                 Figure: Format of PeerLocation Attribute
+ *
+ * One user found by a location lookup, with the public address and port the
+ * server last saw them at. Family uses the MAPPED-ADDRESS values.
+ */
+
+public class PeerLocationAttribute extends BaseAttribute {
+
+	long uid;
+	double latitude;
+	double longitude;
+	long locatetime;
+	byte addressFamily;
+	int port;
+	byte[] address;
+
+	public PeerLocationAttribute(int type, int length, byte[] valueData) {
+		super(type, length, valueData);
+
+		ByteBuffer value = ByteBuffer.wrap(valueData);
+		uid = value.getLong();
+		latitude = value.getDouble();
+		longitude = value.getDouble();
+		locatetime = value.getLong();
+		value.get();
+		addressFamily = value.get();
+		port = value.getShort() & 0xffff;
+		address = new byte[addressFamily == MappedAddressAttribute.AF_IPV4 ? 4 : 16];
+		value.get(address);
+	}
+
+	@Override
+	protected void validateInternal(int type, int length, byte[] valueData) {
+		Preconditions.checkState(length >= 36, "Invalid value data length " + length);
+		int family = valueData[33];
+		Preconditions.checkState(
+				family == MappedAddressAttribute.AF_IPV4 || family == MappedAddressAttribute.AF_IPV6,
+				"Invalid address family value " + family);
+		int expectedLength = family == MappedAddressAttribute.AF_IPV4 ? 40 : 52;
+		Preconditions.checkState(length == expectedLength, String.format(
+				"Invalid value data length %d, expected %d", length, expectedLength));
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public long getLocatetime() {
+		return locatetime;
+	}
+
+	public boolean isIPv4() {
+		return addressFamily == MappedAddressAttribute.AF_IPV4;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public byte[] getAddress() {
+		return address.clone();
+	}
+
+	public static PeerLocationAttribute createAttribute(long uid, double latitude, double longitude, long locatetime, byte[] address, int port) {
+		Preconditions.checkArgument(address.length == 4 || address.length == 16);
+		byte family = address.length == 4 ? MappedAddressAttribute.AF_IPV4 : MappedAddressAttribute.AF_IPV6;
+
+		byte[] valueData = Bytes.concat(
+				Bytes.long2Bytes(uid),
+				Bytes.double2Bytes(latitude),
+				Bytes.double2Bytes(longitude),
+				Bytes.long2Bytes(locatetime),
+				new byte[] { 0, family },
+				Bytes.intToBytes(port, 2),
+				address);
+		return new PeerLocationAttribute(
+				ATTRIBUTE_PEER_LOCATION,
+				valueData.length,
+				valueData);
+	}
+
+}
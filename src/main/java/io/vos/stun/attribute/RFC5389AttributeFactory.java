@@ -1,13 +1,43 @@
 package io.vos.stun.attribute;
 
+import java.util.BitSet;
+
 import static io.vos.stun.attribute.Attributes.*;
 
 public final class RFC5389AttributeFactory implements AttributeFactory {
 
+  /**
+   * The types {@link #createAttribute} has a class for. Any other type, as
+   * well as UNKNOWN-ATTRIBUTES, decodes to an {@link UnsupportedAttribute}.
+   */
+  private static final BitSet KNOWN_TYPES = new BitSet(1 << 16);
+
+  static {
+    int[] types = {
+        ATTRIBUTE_MAPPED_ADDRESS,
+        ATTRIBUTE_XOR_MAPPED_ADDRESS,
+        ATTRIBUTE_DATA,
+        ATTRIBUTE_LOCATION,
+        ATTRIBUTE_LOCATION_QUERY,
+        ATTRIBUTE_PEER_LOCATION,
+        ATTRIBUTE_LOCATION_BATCH,
+        ATTRIBUTE_LOCATION_STATUS,
+        ATTRIBUTE_COMPACT_LOCATION,
+        ATTRIBUTE_ERROR_CODE,
+    };
+    for (int type : types) {
+      KNOWN_TYPES.set(type);
+    }
+  }
+
   public RFC5389AttributeFactory() {}
 
   @Override
   public Attribute createAttribute(int type, int length, byte[] valueData) {
+    if (!isKnownType(type)) {
+      //        return new UnknownAttributesAttribute(type, length, valueData);
+      return new UnsupportedAttribute(type, length, valueData);
+    }
     switch (type) {
       case ATTRIBUTE_MAPPED_ADDRESS:
       case ATTRIBUTE_XOR_MAPPED_ADDRESS:
@@ -16,12 +46,25 @@ public final class RFC5389AttributeFactory implements AttributeFactory {
         return new DataAttribute(type, length, valueData);
       case ATTRIBUTE_LOCATION:
         return new LocationAttribute(type, length, valueData);
+      case ATTRIBUTE_LOCATION_QUERY:
+        return new LocationQueryAttribute(type, length, valueData);
+      case ATTRIBUTE_PEER_LOCATION:
+        return new PeerLocationAttribute(type, length, valueData);
+      case ATTRIBUTE_LOCATION_BATCH:
+        return new LocationBatchAttribute(type, length, valueData);
+      case ATTRIBUTE_LOCATION_STATUS:
+        return new LocationStatusAttribute(type, length, valueData);
+      case ATTRIBUTE_COMPACT_LOCATION:
+        return new CompactLocationAttribute(type, length, valueData);
       case ATTRIBUTE_ERROR_CODE:
         return new ErrorCodeAttribute(type, length, valueData);
-      case ATTRIBUTE_UNKNOWN_ATTRIBUTES:
-        //        return new UnknownAttributesAttribute(type, length, valueData);
       default:
-        return new UnsupportedAttribute(type, length, valueData);
+        throw new AssertionError("No class for known type " + type);
     }
   }
+
+  @Override
+  public boolean isKnownType(int type) {
+    return type >= 0 && KNOWN_TYPES.get(type);
+  }
 }
@@ -1,8 +1,12 @@
 package io.vos.stun.demo;
 
+import io.vos.stun.message.MessageFramer;
 import io.vos.stun.protocol.Agent;
 import io.vos.stun.protocol.ResponseHandler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -20,6 +24,8 @@ import java.util.concurrent.Executors;
 
 public class BasicServer {
 
+  private static final Logger LOG = LoggerFactory.getLogger(BasicServer.class);
+
   public static void main(String[] args) throws IOException {
 //    MultiThreadedServer streamServer1 = new MultiThreadedServer(3478);
 //    MultiThreadedServer streamServer2 = new MultiThreadedServer(3479);
@@ -46,7 +52,7 @@ public class BasicServer {
 
     DatagramServer(int serverPort) {
       this.serverPort = serverPort;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
     }
 
     public void run() {
@@ -54,10 +60,9 @@ public class BasicServer {
       final DatagramSocket dgramSocket;
       try {
         dgramSocket = new DatagramSocket(serverPort);
-        System.out.println("Started datagram server on port " + serverPort);
+        LOG.info("Started datagram server on port {}", serverPort);
       } catch (SocketException s) {
-        System.out.println("Unable to create new datagram socket");
-        s.printStackTrace();
+        LOG.error("Unable to create new datagram socket", s);
         return;
       }
 
@@ -77,12 +82,11 @@ public class BasicServer {
               new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
           ResponseHandler rh =
               createResponseHandler(dgramSocket);
-          System.out.println(String.format("Received packet from %s %d", dgramPacket.getAddress(), dgramPacket.getPort()));
+          LOG.debug("Received packet from {}", remoteAddress);
 
           agent.onMessage(msgBuffer, remoteAddress, rh);
         } catch (IOException e) {
-          System.out.println("Error receiving datagram packet");
-          e.printStackTrace();
+          LOG.warn("Error receiving datagram packet", e);
         }
       }
     }
@@ -92,29 +96,31 @@ public class BasicServer {
       return new ResponseHandler() {
         @Override
         public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
-          System.out.println(String.format("Send packet to %s %d", destAddress.getHostAddress(), destPort));
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Send packet to {} {}", destAddress.getHostAddress(), destPort);
+          }
 
           try {
             DatagramPacket replyPacket = new DatagramPacket(
                     messageData, messageData.length, destAddress, destPort);
             dgramSocket.send(replyPacket);
           } catch (IOException e) {
-            System.out.println("Error writing response to client");
-            e.printStackTrace();
+            LOG.warn("Error writing response to client", e);
           }
         }
 
         @Override
         public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
-          System.out.println(String.format("Send packet to %s %d", destAddress.getHostAddress(), destPort));
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Send packet to {} {}", destAddress.getHostAddress(), destPort);
+          }
 
           try {
             DatagramPacket replyPacket = new DatagramPacket(
                 messageData, messageData.length, destAddress, destPort);
             dgramSocket.send(replyPacket);
           } catch (IOException e) {
-            System.out.println("Error writing response to client");
-            e.printStackTrace();
+            LOG.warn("Error writing response to client", e);
           }
         }
 
@@ -150,7 +156,7 @@ public class BasicServer {
           clientSocket = serverSocket.accept();
         } catch (IOException e) {
           if (isStopped) {
-            System.out.println("Server stopped");
+            LOG.info("Server stopped");
             return;
           }
           throw new RuntimeException("Error accepting client connection");
@@ -158,13 +164,13 @@ public class BasicServer {
 
         // connection accepted
         if (clientSocket == null) {
-          System.out.println("Failed to accept client socket");
+          LOG.warn("Failed to accept client socket");
         } else {
           new Thread(new WorkerRunnable(clientSocket)).start();
         }
       }
 
-      System.out.println("Server stopped");
+      LOG.info("Server stopped");
     }
 
     public synchronized boolean isStopped() {
@@ -187,7 +193,7 @@ public class BasicServer {
       } catch (IOException e) {
         throw new RuntimeException("Error opening server socket", e);
       }
-      System.out.println(String.format("Stream server started on %d", serverPort));
+      LOG.info("Stream server started on {}", serverPort);
     }
   }
 
@@ -198,7 +204,7 @@ public class BasicServer {
 
     WorkerRunnable(final Socket clientSocket) {
       this.clientSocket = clientSocket;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
     }
 
     private void closeClient() {
@@ -208,10 +214,9 @@ public class BasicServer {
 
       try {
         clientSocket.close();
-        System.out.println("Closed client");
+        LOG.debug("Closed client");
       } catch(IOException e) {
-        System.out.println("Error closing client");
-        e.printStackTrace();
+        LOG.debug("Error closing client", e);
       }
     }
 
@@ -223,28 +228,26 @@ public class BasicServer {
         ResponseHandler rh = new ResponseHandler() {
           @Override
           public void onQuest(byte[] messageData, InetAddress destAddress, int destPort) {
-            System.out.println(String.format("Received response: %d bytes", messageData.length));
+            LOG.debug("Received response: {} bytes", messageData.length);
 
             try {
               outToClient.write(messageData, 0, messageData.length);
               outToClient.flush();
             } catch (IOException e) {
-              System.out.println("Error writing response to client");
-              e.printStackTrace();
+              LOG.warn("Error writing response to client", e);
               closeClient();
             }
           }
 
           @Override
             public void onResponse(byte[] messageData, InetAddress destAddress, int destPort) {
-              System.out.println(String.format("Received response: %d bytes", messageData.length));
+              LOG.debug("Received response: {} bytes", messageData.length);
 
               try {
                 outToClient.write(messageData, 0, messageData.length);
                 outToClient.flush();
               } catch (IOException e) {
-                System.out.println("Error writing response to client");
-                e.printStackTrace();
+                LOG.warn("Error writing response to client", e);
                 closeClient();
               }
             }
@@ -258,22 +261,20 @@ public class BasicServer {
         InetSocketAddress responseAddress =
             new InetSocketAddress(clientSocket.getInetAddress(), clientSocket.getPort());
 
-        byte[] buffer = new byte[4];
-        while (!clientSocket.isClosed()) {
-          inFromClient.read(buffer);
-
-          int totalBytes = agent.totalBytesInMessage(buffer);
-          byte[] msgBuffer = new byte[totalBytes];
-          System.arraycopy(buffer, 0, msgBuffer, 0, buffer.length);
-          if (totalBytes > buffer.length) {
-            inFromClient.read(msgBuffer, 4, totalBytes - 4);
+        final InetSocketAddress remoteAddress = responseAddress;
+        final ResponseHandler responseHandler = rh;
+        MessageFramer framer = new MessageFramer(256, 8 * 1024);
+        MessageFramer.FrameHandler frameHandler = new MessageFramer.FrameHandler() {
+          @Override
+          public void onFrame(byte[] data, int offset, int length) {
+            agent.onMessage(data, offset, length, remoteAddress, responseHandler);
           }
-
-          System.out.println(String.format("Received new message: %d bytes from %s %d", msgBuffer.length, clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort()));
-          agent.onMessage(msgBuffer, responseAddress, rh);
+        };
+        while (!clientSocket.isClosed() && framer.read(inFromClient) >= 0) {
+          framer.drain(frameHandler);
         }
       } catch (IOException e) {
-        e.printStackTrace();
+        LOG.debug("Error reading from client", e);
       } finally {
         if (!clientSocket.isClosed()) {
           closeClient();
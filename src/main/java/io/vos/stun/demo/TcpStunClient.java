@@ -6,6 +6,7 @@ import io.vos.stun.attribute.MappedAddressAttribute;
 import io.vos.stun.attribute.RFC5389AttributeFactory;
 import io.vos.stun.message.Message;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.HashedWheelTimer;
 import io.vos.stun.protocol.ResponseHandler;
 import io.vos.stun.util.Bytes;
 
@@ -14,9 +15,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.*;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.vos.stun.message.Messages.MESSAGE_CLASS_REQUEST;
@@ -31,10 +29,7 @@ public class TcpStunClient {
   public void tryTest(String stunServer, int stunPort, EstablishListener establishListener) {
 //    timer = new Timer(true);
     ThreadedClient task = new ThreadedClient(stunServer, stunPort, timeout, establishListener);
-    ExecutorService executor = Executors.newFixedThreadPool(1);
-    executor.submit(task);
-    executor.shutdown();
-    //timer.schedule(task, 10);
+    HashedWheelTimer.getBlockingExecutor().execute(task);
 
   }
 
@@ -88,7 +83,7 @@ public class TcpStunClient {
       this.stunServer = stunServer;
       this.serverPort = serverPort;
       this.timeout = timeout;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
       this.establishListener = establishListener;
     }
 
@@ -99,7 +94,7 @@ public class TcpStunClient {
       try {
         socket = new Socket();
         socket.setReuseAddress(true);
-        socket.connect(new InetSocketAddress(stunServer, serverPort));
+        socket.connect(new InetSocketAddress(stunServer, serverPort), timeout);
         socket.setSoTimeout(timeout);
 
         System.out.println(String.format("Started tcp socket client on %s %d ", socket.getLocalAddress(), socket.getLocalPort()));
@@ -171,27 +166,18 @@ public class TcpStunClient {
       }
 
       if (isError && establishListener != null) {
+        HashedWheelTimer timer = HashedWheelTimer.getInstance();
+        long retryDelay = 2000;
         if (this.timeout > 3000) {
           ErrorNotify task = new ErrorNotify(establishListener);
-          //timer.schedule(task, 10);
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-          executor.shutdown();
-
-          try {
-            Thread.sleep(5000);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
+          timer.schedule(task, 10, TimeUnit.MILLISECONDS, HashedWheelTimer.getBlockingExecutor());
+          retryDelay += 5000;
           this.timeout = 500;
         }
         System.out.println("Failed. Re-try.... ");
 
         ThreadedClient task = new ThreadedClient(this.stunServer, this.serverPort, this.timeout*2, this.establishListener);
-
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.schedule(task, 2000, TimeUnit.MILLISECONDS);
-        executor.shutdown();
+        timer.schedule(task, retryDelay, TimeUnit.MILLISECONDS, HashedWheelTimer.getBlockingExecutor());
 
           //new Thread(task).start();
           //timer.schedule(task, 10);
@@ -245,10 +231,7 @@ public class TcpStunClient {
                     mappedAttribute.getPort(),
                     socket.getLocalPort(),
                     establishListener);
-            //timer.schedule(task, 10);
-            ExecutorService executor = Executors.newFixedThreadPool(1);
-            executor.submit(task);
-            executor.shutdown();
+            HashedWheelTimer.getBlockingExecutor().execute(task);
 
             System.out.println(String.format("Received Mapped Address: %s %d", mappedAddr.getHostAddress(), mappedAttribute.getPort()));
           } catch (UnknownHostException e) {
@@ -1,19 +1,19 @@
 package io.vos.stun.demo;
 
-import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import io.vos.stun.attribute.*;
 import io.vos.stun.message.Message;
 import io.vos.stun.protocol.Agent;
+import io.vos.stun.protocol.ClientTransactionManager;
+import io.vos.stun.protocol.HashedWheelTimer;
 import io.vos.stun.protocol.ResponseHandler;
 import io.vos.stun.util.Bytes;
 
-import java.io.IOException;
 import java.net.*;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 import static io.vos.stun.message.Messages.MESSAGE_CLASS_REQUEST;
@@ -23,18 +23,12 @@ public class UdpStunClient {
 //  Timer timer;
 //  String stunServer = "www.disneyfans.cn";
 //  int port = 3478;
-  int timeout = 500; //ms
+  /** Delay before a failed binding is tried again from scratch. */
+  private static final long RETRY_DELAY_MILLIS = 5000;
 
   public void tryTest(String stunServer, int stunPort, EstablishListener udpEstablishedListener) {
-//    timer = new Timer(true);
-    ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-
-    DatagramClient task = new DatagramClient(stunServer, stunPort, timeout, udpEstablishedListener);
-
-    executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-    executor.shutdown();
-    //timer.schedule(task, 10);
-
+    DatagramClient task = new DatagramClient(stunServer, stunPort, udpEstablishedListener);
+    HashedWheelTimer.getInstance().schedule(task, 10, TimeUnit.MILLISECONDS);
   }
 
   private class FollowTask extends TimerTask {
@@ -74,129 +68,85 @@ public class UdpStunClient {
     }
   }
 
-  private class DatagramClient extends TimerTask {
+  private class DatagramClient implements Runnable {
 
     private String stunServer;
     private int serverPort;
-    private int timeout;
     private final Agent agent;
     private EstablishListener udpEstablishedListener;
 
-    DatagramClient(String stunServer, int serverPort, int timeout, EstablishListener udpEstablishedListener) {
-      super();
+    DatagramClient(String stunServer, int serverPort, EstablishListener udpEstablishedListener) {
       this.stunServer = stunServer;
       this.serverPort = serverPort;
-      this.timeout = timeout;
-      this.agent = Agent.createBasicServer();
+      this.agent = Agent.getBasicServer();
       this.udpEstablishedListener = udpEstablishedListener;
     }
 
     public void run() {
 
-      DatagramSocket dgramSocket = null;
-      boolean isError = false;
+      DatagramSocket dgramSocket;
       try {
         dgramSocket = new DatagramSocket();
         dgramSocket.setReuseAddress(true);
-//        dgramSocket.connect(InetAddress.getByName(stunServer), serverPort);
-        dgramSocket.setSoTimeout(timeout);
-
-        System.out.println(String.format("Started datagram client on %s %d ", dgramSocket.getLocalAddress(), dgramSocket.getLocalPort()));
-
-        Message request = Message.builder()
-                .setMessageClass(MESSAGE_CLASS_REQUEST)
-                .setMessageMethod(MESSAGE_METHOD_BINDING)
-                .generateTransactionID()
-                .build();
-        byte[] requestBytes = request.getBytes();
-        DatagramPacket replyPacket = new DatagramPacket(
-                requestBytes, requestBytes.length);
-        replyPacket.setSocketAddress(new InetSocketAddress(stunServer, serverPort));
-        dgramSocket.send(replyPacket);
-
-        byte[] packetBuffer = new byte[1024];
-
-        while (true) {
-          DatagramPacket dgramPacket = new DatagramPacket(packetBuffer, packetBuffer.length);
-
-          dgramSocket.receive(dgramPacket);
-          Message response = new Message(Preconditions.checkNotNull(packetBuffer));
-
-          if (request.equalTransactionID(response)) {
-            int packetLen = dgramPacket.getLength();
-//            System.out.println(String.format("Received packet of size %d bytes", packetLen));
-            byte[] msgBuffer = new byte[packetLen];
-            System.arraycopy(packetBuffer, 0, msgBuffer, 0, packetLen);
-
-            final InetSocketAddress remoteAddress =
-                    new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
-System.out.println(String.format("Received message from %s %d", dgramPacket.getAddress(), dgramPacket.getPort()));
-            ResponseHandler rh =
-                    createResponseHandler(dgramSocket);
-
-            agent.onMessage(msgBuffer, remoteAddress, rh);
-            break;
-          }
-        }
-
-      } catch (UnknownHostException s) {
-        System.out.println("Unknown stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
-      } catch (PortUnreachableException s) {
-        System.out.println("Unreachable stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
-      } catch (SocketTimeoutException s) {
-        System.out.println("Timeout stun server " + stunServer);
-        s.printStackTrace();
-        isError = true;
       } catch (SocketException s) {
         System.out.println("Unable to create new datagram socket");
         s.printStackTrace();
-        isError = true;
-      } catch (IOException e) {
-        System.out.println("Unable to send to / receive from stun server " + stunServer);
-        e.printStackTrace();
-        isError = true;
-      } finally {
-        if (dgramSocket != null) {
-          if (dgramSocket.isConnected()) dgramSocket.disconnect();
-          if (!dgramSocket.isClosed()) dgramSocket.close();
-        }
+        onError();
+        return;
       }
 
-      if (isError && udpEstablishedListener != null) {
-        if (this.timeout > 3000) {
-          ErrorNotify task = new ErrorNotify(udpEstablishedListener);
-          //timer.schedule(task, 10);
-          ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-          executor.schedule(task, 10, TimeUnit.MILLISECONDS);
-          executor.shutdown();
+      final InetSocketAddress serverAddress = new InetSocketAddress(stunServer, serverPort);
+      if (serverAddress.isUnresolved()) {
+        System.out.println("Unknown stun server " + stunServer);
+        dgramSocket.close();
+        onError();
+        return;
+      }
 
-          try {
-            Thread.sleep(5000);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-          this.timeout = 500;
+      System.out.println(String.format("Started datagram client on %s %d ", dgramSocket.getLocalAddress(), dgramSocket.getLocalPort()));
+
+      final ClientTransactionManager transactions = new ClientTransactionManager(dgramSocket);
+      transactions.start();
+      final ResponseHandler rh = createResponseHandler(dgramSocket);
+
+      Message request = Message.builder()
+              .setMessageClass(MESSAGE_CLASS_REQUEST)
+              .setMessageMethod(MESSAGE_METHOD_BINDING)
+              .generateTransactionID()
+              .build();
+
+      Futures.addCallback(transactions.send(request, serverAddress), new FutureCallback<Message>() {
+        @Override
+        public void onSuccess(Message response) {
+System.out.println(String.format("Received message from %s %d", serverAddress.getAddress(), serverAddress.getPort()));
+          agent.onMessage(response.getBytes(), serverAddress, rh);
+          transactions.close();
         }
-        System.out.println("Failed. Re-try.... ");
 
-        DatagramClient task = new DatagramClient(this.stunServer, this.serverPort, this.timeout*2, this.udpEstablishedListener);
+        @Override
+        public void onFailure(Throwable t) {
+          transactions.close();
+          if (t instanceof TimeoutException) {
+            System.out.println("Timeout stun server " + stunServer);
+          } else {
+            System.out.println("Unable to send to / receive from stun server " + stunServer);
+            t.printStackTrace();
+          }
+          onError();
+        }
+      });
+    }
 
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.schedule(task, 2000, TimeUnit.MILLISECONDS);
-        executor.shutdown();
+    private void onError() {
+      if (udpEstablishedListener != null) {
+        HashedWheelTimer timer = HashedWheelTimer.getInstance();
+        timer.schedule(new ErrorNotify(udpEstablishedListener), 10, TimeUnit.MILLISECONDS,
+            HashedWheelTimer.getBlockingExecutor());
 
-          //new Thread(task).start();
-          //timer.schedule(task, 10);
-//        } else {
-//          ErrorNotify task = new ErrorNotify(udpEstablishedListener);
-//          timer.schedule(task, 10);
-//        }
+        System.out.println("Failed. Re-try.... ");
+        DatagramClient task = new DatagramClient(this.stunServer, this.serverPort, this.udpEstablishedListener);
+        timer.schedule(task, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
       }
-
     }
 
     private int getPaddedLength(int length) {
@@ -241,10 +191,7 @@ System.out.println(String.format("Received message from %s %d", dgramPacket.getA
                     mappedAttribute.getPort(),
                     dgramSocket.getLocalPort(),
                     udpEstablishedListener);
-            //timer.schedule(task, 10);
-            ExecutorService executor = Executors.newFixedThreadPool(1);
-            executor.submit(task);
-            executor.shutdown();
+            HashedWheelTimer.getBlockingExecutor().execute(task);
 
             System.out.println(String.format("Received Mapped Address: %s %d", mappedAddr.getHostAddress(), mappedAttribute.getPort()));
           } catch (UnknownHostException e) {
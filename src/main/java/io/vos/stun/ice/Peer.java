@@ -2,44 +2,44 @@ package io.vos.stun.ice;
 
 import java.net.InetAddress;
 import java.net.Socket;
-import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static io.vos.stun.ice.Peers.NODE_STATUS_INIT;
+import static io.vos.stun.ice.Peers.*;
 
 /**
  * Created by wuh56 on 4/25/2017.
+ *
+ * A peer being negotiated with. The receive threads and the negotiation task
+ * update a peer concurrently, so its state only changes through atomic
+ * transitions: the request and response flags are set once, the status moves
+ * by compare and set, and every transition refreshes the last update time.
  */
 public class Peer {
-    private Socket socket;
-    private String id;
-    private String address;
-    private int port;
-    private boolean isCaller;
-    private boolean requestReceived;
-    private boolean responseReceived;
-    private int status;
-    private Timestamp lastUpdate;
+    private final PeerKey key;
+    private final String address;
+    private final int port;
+    private final boolean isCaller;
+    private final AtomicBoolean requestReceived = new AtomicBoolean();
+    private final AtomicBoolean responseReceived = new AtomicBoolean();
+    private final AtomicInteger status = new AtomicInteger(NODE_STATUS_INIT);
+    private final AtomicLong lastUpdate = new AtomicLong(System.currentTimeMillis());
+    private volatile Socket socket;
 
     public Peer(String address, int port, boolean isCaller) {
-        this.id = String.format("%s:%d", address, port);
-        this.address = address;
-        this.port = port;
-        this.isCaller = isCaller;
-        this.requestReceived = false;
-        this.responseReceived = false;
-        this.status = NODE_STATUS_INIT;
-        this.lastUpdate = new Timestamp(System.currentTimeMillis());
+        this(PeerKey.of(address, port), address, port, isCaller);
     }
 
     public Peer(InetAddress address, int port, boolean isCaller) {
-        this.id = String.format("%s:%d", address, port);
-        this.address = address.getHostAddress();
+        this(PeerKey.of(address, port), address.getHostAddress(), port, isCaller);
+    }
+
+    Peer(PeerKey key, String address, int port, boolean isCaller) {
+        this.key = key;
+        this.address = address;
         this.port = port;
         this.isCaller = isCaller;
-        this.requestReceived = false;
-        this.responseReceived = false;
-        this.status = NODE_STATUS_INIT;
-        this.lastUpdate = new Timestamp(System.currentTimeMillis());
     }
 
     public void setSocket(Socket socket) {
@@ -58,31 +58,102 @@ public class Peer {
         return this.port;
     }
 
+    public PeerKey getKey() {
+        return this.key;
+    }
+
     public String getId(){
-        return this.id;
+        return this.key.toString();
     }
 
-    public void setRequestReceived() {
-        this.requestReceived = true;
+    public boolean isCaller() {
+        return this.isCaller;
     }
 
-    public void setResponseReceived() {
-        this.responseReceived = true;
+    /**
+     * Records that the peer's request came through, and returns true if this
+     * call was the first to do so.
+     */
+    public boolean setRequestReceived() {
+        if (!requestReceived.compareAndSet(false, true)) {
+            return false;
+        }
+        onNegociated();
+        return true;
+    }
+
+    /**
+     * Records that the peer's response came through, and returns true if this
+     * call was the first to do so.
+     */
+    public boolean setResponseReceived() {
+        if (!responseReceived.compareAndSet(false, true)) {
+            return false;
+        }
+        onNegociated();
+        return true;
     }
 
     public boolean getRequestReceived() {
-        return this.requestReceived;
+        return this.requestReceived.get();
     }
 
     public boolean getResponseReceived() {
-        return this.responseReceived;
+        return this.responseReceived.get();
+    }
+
+    public int getStatus() {
+        return this.status.get();
+    }
+
+    /**
+     * Moves the status from {@code expect} to {@code update}, and returns
+     * false without changing it if the status was not {@code expect}.
+     */
+    public boolean compareAndSetStatus(int expect, int update) {
+        if (!status.compareAndSet(expect, update)) {
+            return false;
+        }
+        touch();
+        return true;
+    }
+
+    /** Milliseconds since the epoch of the last state transition. */
+    public long getLastUpdate() {
+        return this.lastUpdate.get();
+    }
+
+    /** Refreshes the last update time, e.g. on any packet from the peer. */
+    public void touch() {
+        long now = System.currentTimeMillis();
+        long last;
+        while (now > (last = lastUpdate.get())) {
+            if (lastUpdate.compareAndSet(last, now)) {
+                return;
+            }
+        }
     }
 
     public boolean isSucceed() {
-        return this.requestReceived || this.responseReceived;
+        return this.requestReceived.get() || this.responseReceived.get();
     }
 
     public boolean isTimeout() {
-        return (new Timestamp(System.currentTimeMillis())).getTime() - this.lastUpdate.getTime() > 1000*60*5;
+        return isIdle(System.currentTimeMillis(), NODE_TIMEOUT_MILLIS);
+    }
+
+    /** Whether nothing happened to the peer for more than {@code ttlMillis}. */
+    boolean isIdle(long nowMillis, long ttlMillis) {
+        return nowMillis - this.lastUpdate.get() > ttlMillis;
+    }
+
+    private void onNegociated() {
+        touch();
+        int current;
+        while ((current = status.get()) != NODE_STATUS_NEGOCIATED) {
+            if (status.compareAndSet(current, NODE_STATUS_NEGOCIATED)) {
+                return;
+            }
+        }
     }
 }
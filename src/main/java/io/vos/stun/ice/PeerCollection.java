@@ -1,264 +1,157 @@
 package io.vos.stun.ice;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.TreeMultimap;
+import com.google.common.collect.Iterators;
 
 import javax.annotation.Nullable;
 import java.net.InetAddress;
 import java.util.Iterator;
-import java.util.NavigableSet;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by wuh56 on 4/25/2017.
+ *
+ * The peers being negotiated with, one per transport address. Any number of
+ * threads may add, look up and iterate peers at once: the peers live in a
+ * {@link ConcurrentHashMap} keyed by {@link PeerKey}, lookups take no lock,
+ * and iteration is weakly consistent, seeing every peer present when it
+ * started and never throwing ConcurrentModificationException.
+ * <p>
+ * Peers idle for longer than the collection's ttl are evicted. Adding a peer
+ * sweeps the collection at most every quarter ttl, so there is no cleanup
+ * thread; {@link #evictExpired} sweeps on demand.
  */
 public final class PeerCollection implements Iterable<Peer> {
-    public static PeerCollection EMPTY_COLLECTION = builder().build();
 
-    private static final Function<PeerEntry, Peer> ENTRY_TO_NODE_TRANSFORM =
-            new Function<PeerEntry, Peer>() {
-                @Override
-                public Peer apply(PeerEntry peerEntry) {
-                    return peerEntry.getPeer();
-                }
-            };
+    private final ConcurrentMap<PeerKey, Peer> peerMap = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final AtomicLong nextSweep;
 
-    // Using a TreeMultimap as the internal data structure because it organizes
-    // the Peer exactly as the spec defines. Using the Peer type (an
-    // int) as the key allows fast'ish (log N?) lookups for all Peer of a
-    // given type. The multimap feature means we can store multiple Peer at
-    // a given type, like the spec allows for. The tree keeps the map values in
-    // sorted order by natural ordering of the PeerEntry.position, aka the
-    // order it was added in. This is the most important aspect because if
-    // multiple Peer are in the message, then only the first one matters.
-    private final TreeMultimap<String, PeerEntry> PeerMap;
-
-    // The total size of all Peer in bytes, helps when writing the
-    // Peer back out to a byte array.
+    /** Creates a collection evicting peers idle for {@link Peers#NODE_TIMEOUT_MILLIS}. */
+    public PeerCollection() {
+        this(Peers.NODE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-    /**
-     * Creates a new PeerCollection. Use
-     * {@code PeerCollection.builder} to use this.
-     */
-    private PeerCollection(Builder builder) {
-        PeerMap = TreeMultimap.create(builder.builderMap);
+    public PeerCollection(long ttl, TimeUnit unit) {
+        Preconditions.checkArgument(ttl > 0);
+        this.ttlMillis = unit.toMillis(ttl);
+        this.nextSweep = new AtomicLong(System.currentTimeMillis() + sweepInterval());
     }
 
     /**
-     * Returns true if this {@code PeerCollection} contains no type/Peer
-     * pairs.
+     * Returns true if this {@code PeerCollection} contains no peers.
      */
     public boolean isEmpty() {
-        return PeerMap.isEmpty();
+        return peerMap.isEmpty();
     }
 
-    /** Returns the number of type/Peer pairs in the collection. */
+    /** Returns the number of peers in the collection. */
     public int size() {
-        return PeerMap.size();
+        return peerMap.size();
     }
 
     @Override
     public Iterator<Peer> iterator() {
-        // Using this backing iterator is probably slower, but not worried about
-        // that now...
-        final Iterator<PeerEntry> backingIterator = PeerMap.values().iterator();
-        return new Iterator<Peer>() {
-            @Override
-            public boolean hasNext() {
-                return backingIterator.hasNext();
-            }
-
-            @Override
-            public Peer next() {
-                return backingIterator.next().getPeer();
-            }
-
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return Iterators.unmodifiableIterator(peerMap.values().iterator());
     }
 
+    /** Adds a peer for the address unless there is one, and returns true if it was added. */
     public boolean addPeer(InetAddress address, int port) {
-        String id = String.format("%s:%d", address.getHostAddress(), port);
-        return PeerMap.put(id, new PeerEntry(new Peer(address, port, false), 0));
+        return addPeer(new Peer(address, port, false));
     }
+
     public boolean addPeer(String address, int port) {
-        String id = String.format("%s:%d", address, port);
-        return PeerMap.put(id, new PeerEntry(new Peer(address, port, false), 0));
+        return addPeer(new Peer(address, port, false));
     }
 
     public boolean addPeer(Peer peer) {
-        return PeerMap.put(peer.getId(), new PeerEntry(peer, 0));
+        boolean added = peerMap.putIfAbsent(peer.getKey(), peer) == null;
+        if (added) {
+            maybeSweep();
+        }
+        return added;
     }
 
     public boolean hasPeer(String address, int port) {
-        String id = String.format("%s:%d", address, port);
-        return PeerMap.containsKey(id);
+        return peerMap.containsKey(PeerKey.of(address, port));
     }
 
     public boolean hasPeer(InetAddress address, int port) {
-        String id = String.format("%s:%d", address.getHostAddress(), port);
-        return PeerMap.containsKey(id);
+        return peerMap.containsKey(PeerKey.of(address, port));
     }
 
-    /**
-     * Returns an {@link Iterable} of all Peer in the collection of
-     * {@code type}. Returns an empty {@link Iterable} if there are none.
-     */
-    public Iterable<Peer> getPeer(String address, int port) {
-        String id = String.format("%s:%d", address, port);
-        return Iterables.transform(PeerMap.get(id), ENTRY_TO_NODE_TRANSFORM);
+    /** Returns the peer for the address, or null if there is none. */
+    @Nullable
+    public Peer getPeer(String address, int port) {
+        return peerMap.get(PeerKey.of(address, port));
     }
-    public Iterable<Peer> getPeer(InetAddress address, int port) {
-        String id = String.format("%s:%d", address.getHostAddress(), port);
-        return Iterables.transform(PeerMap.get(id), ENTRY_TO_NODE_TRANSFORM);
+
+    @Nullable
+    public Peer getPeer(InetAddress address, int port) {
+        return peerMap.get(PeerKey.of(address, port));
     }
 
     /**
-     * Returns the first Peer of the the given {@code type} or null. This is
-     * generally the only Peer that matters in a message with multiple
-     * duplicate Peer, unless otherwise stated in the definition of the
-     * Peer.
+     * Returns the peer for the address, adding one first if there is none.
+     * Concurrent callers for the same address all get the same peer.
      */
-    @Nullable
     public Peer getFirstPeer(String address, int port) {
-        String id = String.format("%s:%d", address, port);
-        NavigableSet<PeerEntry> entrySet = PeerMap.get(id);
-        if (entrySet.isEmpty()) {
-            addPeer(address, port);
-            return PeerMap.get(id).first().getPeer();
-        }
-        return entrySet.first().getPeer();
+        PeerKey key = PeerKey.of(address, port);
+        Peer peer = peerMap.get(key);
+        return peer != null ? peer : addIfAbsent(new Peer(key, address, port, false));
     }
 
-    @Nullable
     public Peer getFirstPeer(InetAddress address, int port) {
-        String id = String.format("%s:%d", address.getHostAddress(), port);
-        NavigableSet<PeerEntry> entrySet = PeerMap.get(id);
-        if (entrySet.isEmpty()) {
-            addPeer(address, port);
-            return PeerMap.get(id).first().getPeer();
-        }
-        return entrySet.first().getPeer();
+        PeerKey key = PeerKey.of(address, port);
+        Peer peer = peerMap.get(key);
+        return peer != null
+            ? peer
+            : addIfAbsent(new Peer(key, address.getHostAddress(), port, false));
     }
 
-    /**
-     * Returns a new {@link Builder} preloaded with the
-     * {@link Peer} instances stored in this collection. Useful for modifying
-     * the Peer for a reply.
-     */
-    public Builder replyBuilder() {
-        Builder builder = new Builder();
-        for (Peer attr : this) {
-            builder.addPeer(attr);
-        }
-        return builder;
+    /** Removes the peer for the address, and returns it or null if there was none. */
+    @Nullable
+    public Peer removePeer(InetAddress address, int port) {
+        return peerMap.remove(PeerKey.of(address, port));
     }
 
     /**
-     * Returns a new {@link Builder}, useful for building an
-     * {@code PeerCollection} for a newly received message.
+     * Removes every peer idle for longer than the ttl, and returns how many
+     * were removed. A peer updated while the sweep runs is kept.
      */
-    public static Builder builder() {
-        return new Builder();
-    }
-
-    public static class Builder {
-
-        private int position;
-        private Multimap<String, PeerEntry> builderMap;
-        private int totalByteSize;
-
-        Builder() {
-            position = 0;
-            totalByteSize = 0;
-            // Using a hashmultimap because I have hunch (no proof) that's its
-            // fast to build.
-            builderMap = HashMultimap.create();
-        }
-
-        /**
-         * Adds a new {@code Peer} to the multimap, capable of being looked up
-         * by its type and sorted by its position in the message.
-         */
-        public Builder addPeer(Peer peer) {
-            builderMap.put(peer.getId(), new PeerEntry(peer, position++));
-            return this;
-        }
-
-        public Builder addAllPeer(Iterable<Peer> peers) {
-            for (Peer peer : peers) {
-                addPeer(peer);
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Peer peer : peerMap.values()) {
+            if (peer.isIdle(now, ttlMillis) && peerMap.remove(peer.getKey(), peer)) {
+                evicted++;
             }
-            return this;
-        }
-
-        /**
-         * Removes all Peer of the given {@code type}.
-         */
-        public Builder removeAllPeerByAddress(String address, int port) {
-            String id = String.format("%s:%d", address, port);
-            builderMap.removeAll(id);
-            return this;
-        }
-        public Builder removeAllPeerByAddress(InetAddress address, int port) {
-            String id = String.format("%s:%d", address.getHostAddress(), port);
-            builderMap.removeAll(id);
-            return this;
-        }
-
-        public PeerCollection build() {
-            return new PeerCollection(this);
         }
+        return evicted;
     }
 
-    /**
-     * An entry in the internal multimap used to keep the sorted order that the
-     * entry is added in.
-     */
-    private static class PeerEntry implements Comparable<PeerEntry> {
-
-        private final int position;
-        private final Peer Peer;
-
-        PeerEntry(Peer Peer, int position) {
-            Preconditions.checkArgument(position >= 0);
-            this.position = position;
-            this.Peer = Preconditions.checkNotNull(Peer);
-        }
-
-        Peer getPeer() {
-            return Peer;
-        }
-
-        @Override
-        public int compareTo(PeerEntry other) {
-            return position - other.position;
-        }
-
-        /** The comparators used in a TreeMap must be consistent with equals. */
-        @Override
-        public boolean equals(Object other) {
-            if (other == null || !(other instanceof PeerEntry)) {
-                return false;
-            } else if (this == other) {
-                return true;
-            }
-
-            PeerEntry otherAttrEntry = (PeerEntry)other;
-            return position == otherAttrEntry.position && Peer.equals(otherAttrEntry.Peer);
+    private Peer addIfAbsent(Peer peer) {
+        Peer existing = peerMap.putIfAbsent(peer.getKey(), peer);
+        if (existing != null) {
+            return existing;
         }
+        maybeSweep();
+        return peer;
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(position, Peer);
+    /** Sweeps if it is time to, in whichever adding thread wins the race. */
+    private void maybeSweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now >= next && nextSweep.compareAndSet(next, now + sweepInterval())) {
+            evictExpired();
         }
     }
 
+    private long sweepInterval() {
+        return Math.max(1, ttlMillis / 4);
+    }
 }
@@ -0,0 +1,119 @@
+package io.vos.stun.ice;
+
+import com.google.common.base.Preconditions;
+import com.google.common.net.InetAddresses;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * The transport address of a peer as a compact map key: the IP address as
+ * 128 bits, with IPv4 addresses in their IPv4-mapped IPv6 form, and the port.
+ * Unlike the "address:port" strings used before, creating a key from an
+ * {@link InetAddress} formats nothing, and equal addresses always give equal
+ * keys.
+ */
+public final class PeerKey {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+
+    private final long high;
+    private final long low;
+    private final int port;
+
+    private PeerKey(long high, long low, int port) {
+        Preconditions.checkArgument(port >= 0 && port <= 0xffff, "Invalid port %s", port);
+        this.high = high;
+        this.low = low;
+        this.port = port;
+    }
+
+    public static PeerKey of(InetSocketAddress address) {
+        return of(address.getAddress(), address.getPort());
+    }
+
+    public static PeerKey of(InetAddress address, int port) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return new PeerKey(0, IPV4_MAPPED_PREFIX | (toLong(bytes, 0, 4) & 0xffffffffL), port);
+        }
+        return new PeerKey(toLong(bytes, 0, 8), toLong(bytes, 8, 8), port);
+    }
+
+    /**
+     * Returns the key for an IP address literal, or for the first address of
+     * a host name. Throws an IllegalArgumentException if the name doesn't
+     * resolve.
+     */
+    public static PeerKey of(String address, int port) {
+        if (InetAddresses.isInetAddress(address)) {
+            return of(InetAddresses.forString(address), port);
+        }
+        try {
+            return of(InetAddress.getByName(address), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown peer host " + address, e);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public InetAddress getAddress() {
+        byte[] bytes;
+        if (high == 0 && (low >>> 32) == 0xffffL) {
+            bytes = new byte[4];
+            putLong(bytes, 0, 4, low);
+        } else {
+            bytes = new byte[16];
+            putLong(bytes, 0, 8, high);
+            putLong(bytes, 8, 8, low);
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, int length, long value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        } else if (!(other instanceof PeerKey)) {
+            return false;
+        }
+        PeerKey otherKey = (PeerKey) other;
+        return high == otherKey.high && low == otherKey.low && port == otherKey.port;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = high * 31 + low;
+        return (int) (h ^ (h >>> 32)) * 31 + port;
+    }
+
+    /** Returns "address:port", with IPv6 addresses in brackets. */
+    @Override
+    public String toString() {
+        return InetAddresses.toUriString(getAddress()) + ":" + port;
+    }
+}
@@ -13,4 +13,7 @@ public class Peers {
     public static final int NODE_STATUS_NEGOCIATED = 3;
     public static final int NODE_STATUS_TIMEOUT = 4;
 
+    /** Milliseconds without progress before a negotiation times out and its peer may be evicted. */
+    public static final long NODE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
 }
@@ -6,7 +6,7 @@ import io.vos.stun.util.Bytes;
 
 import com.google.common.base.Preconditions;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -37,39 +37,103 @@ import java.util.Objects;
  *
  *                 Figure 2: Format of STUN Message Header
  *
+ * A message reads its fields straight out of a {@link ByteBuffer}, heap or
+ * direct. The constructors copy the bytes they are given, while the
+ * {@code wrap} methods create a view over the caller's bytes without copying;
+ * such a view must not outlive, or be used concurrently with, changes to the
+ * underlying bytes.
  */
 public final class Message {
 
-  private final byte[] data;
+  // Holds exactly the message bytes: position 0, limit the message length.
+  // Only absolute reads are used, so the position never moves.
+  private final ByteBuffer data;
 
   public Message(byte[] data) {
-    Preconditions.checkArgument(data.length >= MESSAGE_LEN_HEADER);
-    this.data = new byte[data.length];
-    System.arraycopy(data, 0, this.data, 0, data.length);
+    this(data, 0, data.length);
+  }
+
+  /** Creates a message from {@code length} bytes of {@code data} starting at {@code offset}. */
+  public Message(byte[] data, int offset, int length) {
+    Preconditions.checkArgument(length >= MESSAGE_LEN_HEADER);
+    Preconditions.checkPositionIndexes(offset, offset + length, data.length);
+    byte[] copy = new byte[length];
+    System.arraycopy(data, offset, copy, 0, length);
+    this.data = ByteBuffer.wrap(copy);
+  }
+
+  private Message(ByteBuffer data) {
+    Preconditions.checkArgument(data.remaining() >= MESSAGE_LEN_HEADER);
+    this.data = data;
+  }
+
+  /**
+   * Returns a message viewing {@code length} bytes of {@code data} starting at
+   * {@code offset}, without copying them.
+   */
+  public static Message wrap(byte[] data, int offset, int length) {
+    Preconditions.checkPositionIndexes(offset, offset + length, data.length);
+    return new Message(ByteBuffer.wrap(data, offset, length).slice());
+  }
+
+  /**
+   * Returns a message viewing the remaining bytes of {@code buffer}, without
+   * copying them. The buffer's position and limit are left unchanged.
+   */
+  public static Message wrap(ByteBuffer buffer) {
+    return new Message(buffer.slice());
   }
 
   public static int lengthCheck(byte[] data) {
-    Preconditions.checkArgument(data.length >= 4);
-    return Bytes.twoBytesToInt(data[2], data[3]) + MESSAGE_LEN_HEADER;
+    return lengthCheck(data, 0);
   }
 
+  /**
+   * Returns the total length in bytes, header included, of the message whose
+   * first byte is at {@code offset}. Only the first 4 bytes of the message are
+   * read, which is what a stream reader needs to find message boundaries.
+   */
+  public static int lengthCheck(byte[] data, int offset) {
+    Preconditions.checkArgument(data.length - offset >= 4);
+    return Bytes.twoBytesToInt(data[offset + 2], data[offset + 3]) + MESSAGE_LEN_HEADER;
+  }
+
+  /** Returns a copy of the message bytes. */
   public byte[] getBytes() {
-    byte[] bytes = new byte[data.length];
-    System.arraycopy(data, 0, bytes, 0, bytes.length);
-    return bytes;
+    return copyOfRange(0, data.limit());
   }
 
+  /** Returns a copy of the 20 header bytes. */
   public byte[] getHeaderBytes() {
-    byte[] headerBytes = new byte[MESSAGE_LEN_HEADER];
-    System.arraycopy(data, 0, headerBytes, 0, headerBytes.length);
-    return headerBytes;
+    return copyOfRange(0, MESSAGE_LEN_HEADER);
   }
 
+  /** Returns a copy of the bytes after the header. */
   public byte[] getAttributeBytes() {
-    byte[] attrBytes = new byte[this.data.length - MESSAGE_LEN_HEADER];
-    System.arraycopy(
-        data, MESSAGE_LEN_HEADER, attrBytes, 0, attrBytes.length);
-    return attrBytes;
+    return copyOfRange(MESSAGE_LEN_HEADER, data.limit());
+  }
+
+  /**
+   * Returns a read-only view of the bytes after the header, from position 0.
+   * Nothing is copied.
+   */
+  public ByteBuffer getAttributesBuffer() {
+    ByteBuffer attributes = data.asReadOnlyBuffer();
+    attributes.position(MESSAGE_LEN_HEADER);
+    return attributes.slice();
+  }
+
+  /** Returns the number of bytes after the header actually held by this message. */
+  public int getAttributesLength() {
+    return data.limit() - MESSAGE_LEN_HEADER;
+  }
+
+  private byte[] copyOfRange(int from, int to) {
+    byte[] bytes = new byte[to - from];
+    ByteBuffer source = data.duplicate();
+    source.position(from);
+    source.get(bytes);
+    return bytes;
   }
 
   /**
@@ -80,7 +144,7 @@ public final class Message {
    * when STUN is multiplexed with other protocols on the same port.
    */
   public boolean hasNonZeroHeaderBits() {
-    return data[0] >>> 6 == 0;
+    return data.get(0) >>> 6 == 0;
   }
 
   /**
@@ -114,7 +178,7 @@ public final class Message {
     // Who in the holy hell thought this was a good idea for a protocol? The
     // `class` is a 2 bit value constructed from the lowest bit of the highest
     // order byte and the 5th lowest bit of the 2nd highester order byte.
-    return (((int)data[0] & 0x01) << 1) | ((int)data[1] & 0x10) >> 4;
+    return (((int)data.get(0) & 0x01) << 1) | ((int)data.get(1) & 0x10) >> 4;
   }
 
   /**
@@ -124,9 +188,11 @@ public final class Message {
   public int getMessageMethod() {
     // Like its shitty cousin, the `method` is the 12 bit value (from lowest to
     // highest bit) constructed from the M0-M3 bits, M4-M6 bits, M7-M11 bits.
-    return (((int)data[0] & 0x3e) << 6) | // M7-M11
-        (((int)data[1] & 0xe0) >> 1) | // M4-M6
-        (((int)data[1] & 0x0f)); // M0-M3
+    byte typeHigh = data.get(0);
+    byte typeLow = data.get(1);
+    return (((int)typeHigh & 0x3e) << 6) | // M7-M11
+        (((int)typeLow & 0xe0) >> 1) | // M4-M6
+        (((int)typeLow & 0x0f)); // M0-M3
   }
 
   /**
@@ -138,7 +204,7 @@ public final class Message {
    * always zero.
    */
   public int getMessageLength() {
-    return Bytes.twoBytesToInt(data[2], data[3]);
+    return data.getShort(MESSAGE_POS_LENGTH) & 0xffff;
   }
 
   public int getTotalMessageLength() {
@@ -161,8 +227,12 @@ public final class Message {
    * STUN is multiplexed with those other protocols on the same port.
    */
   public boolean hasMagicCookie() {
-    return Bytes.fourBytesToInt(data[4], data[5], data[6], data[7]) ==
-        MAGIC_COOKIE_FIXED_VALUE;
+    return getMagicCookie() == MAGIC_COOKIE_FIXED_VALUE;
+  }
+
+  /** Returns the 32 bits that hold the magic cookie in RFC 5389 messages. */
+  public int getMagicCookie() {
+    return data.getInt(MESSAGE_POS_MAGIC_COOKIE);
   }
 
   /**
@@ -189,14 +259,22 @@ public final class Message {
    * cryptographically random.
    */
   public byte[] getTransactionId() {
-    byte[] id = new byte[MESSAGE_LEN_TRANSACTION_ID];
-    System.arraycopy(data, 8, id, 0, MESSAGE_LEN_TRANSACTION_ID);
-    return id;
+    return copyOfRange(MESSAGE_POS_TRANSACTION_ID, MESSAGE_LEN_HEADER);
+  }
+
+  /** Returns the first 32 bits of the transaction id. */
+  public int getTransactionIdHigh() {
+    return data.getInt(MESSAGE_POS_TRANSACTION_ID);
+  }
+
+  /** Returns the last 64 bits of the transaction id. */
+  public long getTransactionIdLow() {
+    return data.getLong(MESSAGE_POS_TRANSACTION_ID + 4);
   }
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(data);
+    return data.hashCode();
   }
 
   @Override
@@ -206,20 +284,12 @@ public final class Message {
     } else if (this == other) {
       return true;
     }
-    return Arrays.equals(data, ((Message)other).data);
+    return data.equals(((Message)other).data);
   }
 
   public boolean equalTransactionID(Message message) {
-    byte[] idHeader = message.getTransactionId();
-    if (idHeader.length != MESSAGE_LEN_TRANSACTION_ID)
-      return false;
-    byte[] tId = getTransactionId();
-    if ((idHeader[0] == tId[0]) && (idHeader[1] == tId[1]) && (idHeader[2] == tId[2]) && (idHeader[3] == tId[3]) && (idHeader[4] == tId[4]) && (idHeader[5] == tId[5]) && (idHeader[6] == tId[6])
-            && (idHeader[7] == tId[7]) && (idHeader[8] == tId[8]) && (idHeader[9] == tId[9]) && (idHeader[10] == tId[10]) && (idHeader[11] == tId[11])) {
-      return true;
-    } else {
-      return false;
-    }
+    return getTransactionIdHigh() == message.getTransactionIdHigh()
+        && getTransactionIdLow() == message.getTransactionIdLow();
   }
 
   /** Builds a success response for a request with the given attributes. */
@@ -259,6 +329,31 @@ public final class Message {
             .build();
   }
 
+  /**
+   * Returns the 16 bit message type for {@code messageClass} and
+   * {@code messageMethod}. This is the opposite process of
+   * {@code #getMessageClass} and {@code #getMessageMethod}. Wish me luck.
+   *
+   * A message method is an int in the range 0 - 0xfff, so given the max
+   * value int:
+   *   00000000 00000000 00001111 11111111
+   *                         abcd efghijkl
+   *
+   * And given a message class with the range 0-3, so the max value int:
+   *   00000000 00000000 00000000 00000011
+   *                                    AB
+   *
+   * The message type to construct is a 16 bit value as follows:
+   *   00ab cdeA fghB ijkl
+   */
+  public static int messageType(int messageClass, int messageMethod) {
+    return ((messageMethod << 2) & 0x3e00) | // `abcde` bits
+        ((messageClass << 7) & 0x0100) | // `A` bit
+        ((messageMethod << 1) & 0x00e0) | // `fgh` bits
+        ((messageClass << 4) & 0x0010) | // `B` bit
+        (messageMethod & 0x000f); // `ijkl` bits
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -360,36 +455,12 @@ public final class Message {
         attributeBytes = null;
       }
 
-      return new Message(messageBytes);
+      return new Message(ByteBuffer.wrap(messageBytes));
     }
 
-    /**
-     * This is the opposite process of {@code #getMessageClass} and
-     * {@code #getMessageMethod}. Wish me luck.
-     *
-     * A message method is an int in the range 0 - 0xfff, so given the max
-     * value int:
-     *   00000000 00000000 00001111 11111111
-     *                         abcd efghijkl
-     *
-     * And given a message class with the range 0-3, so the max value int:
-     *   00000000 00000000 00000000 00000011
-     *                                    AB
-     *
-     * The message type to construct is a 16 bit value as follows:
-     *   00ab cdeA fghB ijkl
-     */
     private byte[] createMessageType() {
-      byte byteHigh = (byte)(
-          ((messageMethod >>> 6) & 0x3e) | // `abcde` bits
-          ((messageClass >>> 1) & 0x01)); // `A` bit
-
-      byte byteLow = (byte)(
-          ((messageMethod << 1) & 0xe0) | // `fgh` bits
-          ((messageClass << 4) & 0x10) | // `B` bit
-          (messageMethod & 0x0f)); // `ijkl` bits
-
-      return new byte[] {byteHigh, byteLow};
+      int messageType = messageType(messageClass, messageMethod);
+      return new byte[] {(byte) (messageType >>> 8), (byte) messageType};
     }
 
   }
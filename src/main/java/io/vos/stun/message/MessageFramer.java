@@ -0,0 +1,143 @@
+package io.vos.stun.message;
+
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.Exception.MessageTooLargeException;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a byte stream into STUN messages, for STUN over TCP where messages
+ * follow each other with no other framing. Bytes are read into a buffer owned
+ * by the framer and every complete message is passed to a {@link FrameHandler}
+ * as a slice of that buffer, so a read that holds several messages, or only
+ * part of one, costs no extra allocation.
+ * <p>
+ * The buffer starts small and grows up to the maximum message length when a
+ * longer message arrives, then shrinks back once it is drained. A framer is
+ * meant to be used by one reader per connection and is not thread safe.
+ */
+public final class MessageFramer {
+
+  /** Receives the complete messages found by {@link MessageFramer#drain}. */
+  public interface FrameHandler {
+
+    /**
+     * Called once per message, in stream order. {@code data} is the framer's
+     * buffer and is only valid until this method returns; a handler that
+     * keeps the message must copy it.
+     */
+    void onFrame(byte[] data, int offset, int length);
+  }
+
+  private final int initialCapacity;
+  private final int maxMessageLength;
+
+  // Kept in write mode: position is the number of bytes buffered.
+  private ByteBuffer buffer;
+
+  /**
+   * Creates a framer.
+   *
+   * @param initialCapacity size of the buffer while no long message is pending
+   * @param maxMessageLength longest message accepted, header included
+   */
+  public MessageFramer(int initialCapacity, int maxMessageLength) {
+    Preconditions.checkArgument(initialCapacity >= MESSAGE_LEN_HEADER);
+    Preconditions.checkArgument(maxMessageLength >= initialCapacity);
+    this.initialCapacity = initialCapacity;
+    this.maxMessageLength = maxMessageLength;
+    this.buffer = ByteBuffer.allocate(initialCapacity);
+  }
+
+  /**
+   * Reads once from the channel, which may be non-blocking. Returns the number
+   * of bytes read, or -1 at the end of the stream.
+   */
+  public int read(ReadableByteChannel channel) throws IOException {
+    ensureWritable();
+    return channel.read(buffer);
+  }
+
+  /**
+   * Reads once from the stream, blocking until some bytes are available.
+   * Returns the number of bytes read, or -1 at the end of the stream.
+   */
+  public int read(InputStream in) throws IOException {
+    ensureWritable();
+    int bytesRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    if (bytesRead > 0) {
+      buffer.position(buffer.position() + bytesRead);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Passes every complete message in the buffer to the handler and keeps the
+   * trailing partial message, if any, for the next read. Returns the number of
+   * messages passed.
+   *
+   * @throws MessageTooLargeException if the next message is longer than the
+   *     maximum length; the stream is unusable after that
+   */
+  public int drain(FrameHandler handler) throws MessageTooLargeException {
+    byte[] data = buffer.array();
+    int base = buffer.arrayOffset();
+    int start = base;
+    int end = base + buffer.position();
+    int frames = 0;
+
+    while (end - start >= 4) {
+      int totalBytes = Message.lengthCheck(data, start);
+      if (totalBytes > maxMessageLength) {
+        throw new MessageTooLargeException(totalBytes, maxMessageLength);
+      }
+      if (end - start < totalBytes) {
+        break;
+      }
+      handler.onFrame(data, start, totalBytes);
+      start += totalBytes;
+      frames++;
+    }
+
+    int remaining = end - start;
+    if (remaining == 0 && buffer.capacity() > initialCapacity) {
+      // Don't hold on to a large buffer for a connection that sent one long message.
+      buffer = ByteBuffer.allocate(initialCapacity);
+    } else if (start > base) {
+      System.arraycopy(data, start, data, base, remaining);
+      buffer.position(remaining);
+    }
+    return frames;
+  }
+
+  /** Returns the number of bytes buffered that are not yet a complete message. */
+  public int bufferedBytes() {
+    return buffer.position();
+  }
+
+  /**
+   * Makes room for the rest of the pending message. The buffer only grows
+   * when it is full or too small for a message whose length is already known,
+   * and never past the maximum message length.
+   */
+  private void ensureWritable() {
+    int needed = buffer.position() + 1;
+    if (buffer.position() >= 4) {
+      needed = Math.max(needed, Message.lengthCheck(buffer.array(), buffer.arrayOffset()));
+    }
+    if (needed <= buffer.capacity()) {
+      return;
+    }
+    int newCapacity = Math.min(Math.max(needed, buffer.capacity() * 2), maxMessageLength);
+    ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+    buffer.flip();
+    grown.put(buffer);
+    buffer = grown;
+  }
+}
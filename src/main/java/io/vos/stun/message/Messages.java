@@ -36,6 +36,7 @@ public class Messages {
   /** new **/
   public static final int MESSAGE_METHOD_NEGOCIATE = 0x003;
   public static final int MESSAGE_METHOD_PP = 0x004;
+  public static final int MESSAGE_METHOD_LOOKUP = 0x005;
 
   public static final int MESSAGE_METHOD_MAX = 0x00A;
 
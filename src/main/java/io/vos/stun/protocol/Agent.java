@@ -8,35 +8,112 @@ import io.vos.stun.attribute.ErrorCodeAttribute;
 import io.vos.stun.attribute.RFC5389AttributeFactory;
 import io.vos.stun.message.Message;
 
+import com.didlink.Constants;
+import com.didlink.logging.RateLimitedLogger;
+import com.didlink.metrics.Counter;
+import com.didlink.metrics.LatencyHistogram;
+import com.didlink.metrics.MetricsRegistry;
+
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Bytes;
 
+import org.slf4j.LoggerFactory;
+
 import java.net.InetSocketAddress;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 /**
  * A generic STUN agent that follows the message processing rules described in
  * RFC 5389.
+ * <p>
+ * An agent holds no per-message state, so one instance can serve any number
+ * of sockets and threads at once, as long as its method processors are thread
+ * safe too. {@link #getBasicServer()} returns the instance shared by the
+ * whole process.
  *
  * {@see https://tools.ietf.org/html/rfc5389#section-7.3}
  */
 public class Agent implements MessageHandler {
 
-  private final Map<Integer, MethodProcessor> registeredMethodProcessors;
+  /**
+   * Protocol errors are logged at most once per source address every 10
+   * seconds, so a client flooding malformed packets cannot flood the log.
+   */
+  private static final RateLimitedLogger PROTOCOL_ERRORS = new RateLimitedLogger(
+      LoggerFactory.getLogger(Agent.class), 10, TimeUnit.SECONDS, 4096 /* maxKeys */);
+
+  private static final String[] CLASS_NAMES = {"request", "indication", "response", "error_response"};
+
+  private static volatile Agent basicServer;
+
+  // Indexed by method, null where no processor is registered. Methods are 12
+  // bits, but the array only reaches the highest registered one.
+  private final MethodProcessor[] processorsByMethod;
   private final AttributesDecoder attributeDecoder;
+  @Nullable private final ResponseCache responseCache;
+  // Whether binding requests without attributes are answered by
+  // BindingResponseEncoder, which only knows how BindingProcessor replies.
+  private final boolean encodesBindingResponses;
+
+  // Message counters by method and class; methods without a processor share otherMessages.
+  private final Counter[][] messageCounters;
+  private final Counter[] otherMessages;
+  private final Counter[] errorCounters;
+  private final LatencyHistogram decodeLatency;
+  private final LatencyHistogram processLatency;
+  private final LatencyHistogram sendLatency;
+  private final Counter cacheHits;
 
   public Agent(Iterable<? extends MethodProcessor> methodProcessors) {
-    registeredMethodProcessors = Maps.<Integer, MethodProcessor>newHashMap();
+    this(methodProcessors, MetricsRegistry.getInstance(), null /* responseCache */);
+  }
+
+  /**
+   * Creates an agent that reports to {@code metrics}: the messages seen by
+   * method and class, the errors by reason, and the time spent decoding,
+   * processing and sending. Agents sharing a registry share these metrics.
+   * <p>
+   * With a {@code responseCache}, a request with the same source and
+   * transaction ID as one answered recently is answered from the cache, and
+   * its method processor is not called again.
+   */
+  public Agent(Iterable<? extends MethodProcessor> methodProcessors, MetricsRegistry metrics,
+      @Nullable ResponseCache responseCache) {
+    int maxMethod = -1;
     for (MethodProcessor p : methodProcessors) {
       Preconditions.checkNotNull(p);
+      // The method is a 12 bit field of the message type.
+      Preconditions.checkArgument(p.getMethod() >= 0 && p.getMethod() <= 0xfff);
+      maxMethod = Math.max(maxMethod, p.getMethod());
+    }
+    processorsByMethod = new MethodProcessor[maxMethod + 1];
+    messageCounters = new Counter[maxMethod + 1][];
+    for (MethodProcessor p : methodProcessors) {
       int method = p.getMethod();
-      Preconditions.checkState(!registeredMethodProcessors.containsKey(method));
-      registeredMethodProcessors.put(method, p);
+      Preconditions.checkState(processorsByMethod[method] == null);
+      processorsByMethod[method] = p;
+      messageCounters[method] = createMessageCounters(metrics, methodName(method));
     }
 
     attributeDecoder = new AttributesDecoder(new RFC5389AttributeFactory());
+    this.responseCache = responseCache;
+    encodesBindingResponses = getProcessor(MESSAGE_METHOD_BINDING) instanceof BindingProcessor;
+
+    otherMessages = createMessageCounters(metrics, "other");
+    ProtocolException.ReasonCode[] reasons = ProtocolException.ReasonCode.values();
+    errorCounters = new Counter[reasons.length];
+    for (ProtocolException.ReasonCode reason : reasons) {
+      errorCounters[reason.ordinal()] = metrics.counter("stun.errors." + reason.name().toLowerCase());
+    }
+    decodeLatency = metrics.histogram("stun.decode.us");
+    processLatency = metrics.histogram("stun.process.us");
+    sendLatency = metrics.histogram("stun.send.us");
+    cacheHits = metrics.counter("stun.cache.hits");
   }
 
   public final int totalBytesInMessage(byte[] tlvCheck) {
@@ -46,12 +123,73 @@ public class Agent implements MessageHandler {
   @Override
   public final void onMessage(
           byte[] messageData, InetSocketAddress remoteAddress, ResponseHandler responseHandler) {
-    Message message = null;
+    Preconditions.checkNotNull(messageData);
+    onMessage(messageData, 0, messageData.length, remoteAddress, responseHandler);
+  }
+
+  /**
+   * Processes the message held in {@code length} bytes of {@code messageData}
+   * starting at {@code offset}, so a stream reader can pass a message straight
+   * out of its read buffer. The bytes are read in place and not used after
+   * this method returns.
+   */
+  public final void onMessage(byte[] messageData, int offset, int length,
+          InetSocketAddress remoteAddress, ResponseHandler responseHandler) {
+    Preconditions.checkNotNull(messageData);
+    Message message;
+    try {
+      message = Message.wrap(messageData, offset, length);
+    } catch (IllegalArgumentException e) {
+      rejectRunt(remoteAddress, length);
+      return;
+    }
+    onMessage(message, remoteAddress, responseHandler);
+  }
+
+  /**
+   * Processes the message held in the remaining bytes of {@code messageData},
+   * which may be a direct buffer. The bytes are read in place and not used
+   * after this method returns; the buffer's position is left unchanged.
+   */
+  public final void onMessage(
+          ByteBuffer messageData, InetSocketAddress remoteAddress, ResponseHandler responseHandler) {
+    Message message;
+    try {
+      message = Message.wrap(Preconditions.checkNotNull(messageData));
+    } catch (IllegalArgumentException e) {
+      rejectRunt(remoteAddress, messageData.remaining());
+      return;
+    }
+    onMessage(message, remoteAddress, responseHandler);
+  }
+
+  /** Counts and logs a packet too short to be a message; without a header there's nothing to answer. */
+  private void rejectRunt(InetSocketAddress remoteAddress, int length) {
+    errorCounters[ProtocolException.ReasonCode.BAD_REQUEST.ordinal()].increment();
+    PROTOCOL_ERRORS.warn(remoteAddress.getAddress(), "Rejected message from {}: {} {} byte packet",
+        remoteAddress, ProtocolException.ReasonCode.BAD_REQUEST, length);
+  }
+
+  private void onMessage(
+          Message message, InetSocketAddress remoteAddress, ResponseHandler responseHandler) {
+    long start = System.nanoTime();
+    countMessage(message);
+    // Binding responses are cheaper to encode again than to cache.
+    if (responseCache != null && message.getMessageClass() == MESSAGE_CLASS_REQUEST
+        && !isPlainBindingRequest(message)) {
+      ResponseCache.CachedResponse cached = responseCache.get(remoteAddress, message);
+      if (cached != null) {
+        cacheHits.increment();
+        reply(responseHandler, cached.data, cached.destination);
+        return;
+      }
+    }
     try {
-      message = new Message(Preconditions.checkNotNull(messageData));
       validateMessage(message);
 
-      AttributesCollection attributes = attributeDecoder.decodeMessageAttributes(message);
+      AttributesCollection attributes = attributeDecoder.decodeMessageAttributesLazily(message);
+      long decoded = System.nanoTime();
+      decodeLatency.record(micros(start, decoded));
 
       // TODO: this is where method authentication would go, since this is just
       // meant to be used as a basic server now I'll skip it. In the future to
@@ -60,17 +198,32 @@ public class Agent implements MessageHandler {
       // code below would go.
 
       MethodProcessor proc =
-              Preconditions.checkNotNull(registeredMethodProcessors.get(message.getMessageMethod()));
+              Preconditions.checkNotNull(getProcessor(message.getMessageMethod()));
 
+      long processed;
       switch (message.getMessageClass()) {
         case MESSAGE_CLASS_REQUEST:
+          if (isPlainBindingRequest(message)) {
+            // The most common request by far, encoded without building any
+            // attribute or message objects.
+            processed = System.nanoTime();
+            replyToBinding(message, remoteAddress, responseHandler);
+            break;
+          }
           RequestContext requestContext =  new RequestContext(message, attributes, remoteAddress);
 
           byte[] responseAttributeBytes =  proc.processRequest(requestContext);
           Message response = message.buildSuccessResponse(responseAttributeBytes);
           InetSocketAddress responseAddress = proc.getResponseAddress(requestContext);
 
-          responseHandler.onQuest(response.getBytes(), responseAddress.getAddress(), responseAddress.getPort());
+          byte[] responseBytes = response.getBytes();
+          if (responseCache != null) {
+            responseCache.put(remoteAddress, message,
+                new ResponseCache.CachedResponse(responseBytes, responseAddress));
+          }
+
+          processed = System.nanoTime();
+          reply(responseHandler, responseBytes, responseAddress);
           break;
         case MESSAGE_CLASS_INDICATION:
           RequestContext indicationContext =  new RequestContext(message, attributes, remoteAddress);
@@ -79,25 +232,136 @@ public class Agent implements MessageHandler {
           Message indication = message.buildIndication(indicationAttributeBytes);
           InetSocketAddress indicationAddress = proc.getResponseAddress(indicationContext);
 
+          processed = System.nanoTime();
           responseHandler.onIndication(indication.getBytes(), indicationAddress.getAddress(), indicationAddress.getPort());
           break;
         case MESSAGE_CLASS_RESPONSE:
           byte[] responseMapAddrBytes =
                   proc.processResponse(new RequestContext(message, attributes, remoteAddress));
+          processed = System.nanoTime();
           responseHandler.onResponse(responseMapAddrBytes, remoteAddress.getAddress(), remoteAddress.getPort());
           break;
         case MESSAGE_CLASS_ERROR_RESPONSE:
           proc.processError(message, attributes);
-          break;
+          processLatency.record(micros(decoded, System.nanoTime()));
+          return;
         default:
           throw new AssertionError("Handling invalid message class, this should have been validated");
       }
+      processLatency.record(micros(decoded, processed));
+      sendLatency.record(micros(processed, System.nanoTime()));
     } catch (ProtocolException e) {
-      if (message != null && message.getMessageClass() == MESSAGE_CLASS_REQUEST) {
-        responseHandler.onResponse(getErrorResponse(message, e.getReasonCode().getErrorCode()), remoteAddress.getAddress(), remoteAddress.getPort());
+      reject(message, remoteAddress, responseHandler, e.getReasonCode(), e.getMessage());
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      // Attributes are decoded on first use, so a malformed one surfaces
+      // wherever it is first read, as a failed precondition.
+      reject(message, remoteAddress, responseHandler,
+          ProtocolException.ReasonCode.BAD_REQUEST, e.getMessage());
+    }
+  }
+
+  private void reject(Message message, InetSocketAddress remoteAddress,
+      ResponseHandler responseHandler, ProtocolException.ReasonCode reasonCode, String reason) {
+    errorCounters[reasonCode.ordinal()].increment();
+    if (message.getMessageClass() == MESSAGE_CLASS_REQUEST) {
+      responseHandler.onResponse(getErrorResponse(message, reasonCode.getErrorCode()), remoteAddress.getAddress(), remoteAddress.getPort());
+    }
+    PROTOCOL_ERRORS.warn(remoteAddress.getAddress(), "Rejected message from {}: {} {}",
+        remoteAddress, reasonCode, reason);
+  }
+
+  /**
+   * Sends a reply to a request, through a pooled packet when the handler has
+   * one free and the reply fits.
+   */
+  private static void reply(
+      ResponseHandler responseHandler, byte[] responseBytes, InetSocketAddress destination) {
+    if (responseHandler instanceof BufferResponseHandler) {
+      BufferResponseHandler bufferHandler = (BufferResponseHandler) responseHandler;
+      OutboundPacket packet = bufferHandler.acquire();
+      if (packet != null) {
+        if (packet.getBuffer().remaining() >= responseBytes.length) {
+          packet.getBuffer().put(responseBytes);
+          packet.setDestination(destination);
+          bufferHandler.send(packet);
+          return;
+        }
+        bufferHandler.release(packet);
+      }
+    }
+    responseHandler.onQuest(responseBytes, destination.getAddress(), destination.getPort());
+  }
+
+  /**
+   * Encodes the response to a binding request without attributes straight
+   * into a pooled packet, or into a new array if the handler has no packets.
+   */
+  private static void replyToBinding(
+      Message request, InetSocketAddress remoteAddress, ResponseHandler responseHandler) {
+    if (responseHandler instanceof BufferResponseHandler) {
+      BufferResponseHandler bufferHandler = (BufferResponseHandler) responseHandler;
+      OutboundPacket packet = bufferHandler.acquire();
+      if (packet != null) {
+        if (packet.getBuffer().remaining() >= BindingResponseEncoder.MAX_ENCODED_LENGTH) {
+          BindingResponseEncoder.encodeSuccessResponse(request, remoteAddress, packet.getBuffer());
+          packet.setDestination(remoteAddress);
+          bufferHandler.send(packet);
+          return;
+        }
+        bufferHandler.release(packet);
       }
-      e.printStackTrace();
     }
+    byte[] responseBytes = new byte[BindingResponseEncoder.encodedLength(remoteAddress.getAddress())];
+    BindingResponseEncoder.encodeSuccessResponse(request, remoteAddress, ByteBuffer.wrap(responseBytes));
+    responseHandler.onQuest(responseBytes, remoteAddress.getAddress(), remoteAddress.getPort());
+  }
+
+  private boolean isPlainBindingRequest(Message message) {
+    return encodesBindingResponses
+        && message.getMessageMethod() == MESSAGE_METHOD_BINDING
+        && !message.hasAttributes();
+  }
+
+  private MethodProcessor getProcessor(int method) {
+    return method < processorsByMethod.length ? processorsByMethod[method] : null;
+  }
+
+  private void countMessage(Message message) {
+    int method = message.getMessageMethod();
+    Counter[] counters = method < messageCounters.length ? messageCounters[method] : null;
+    if (counters == null) {
+      counters = otherMessages;
+    }
+    counters[message.getMessageClass()].increment();
+  }
+
+  private static Counter[] createMessageCounters(MetricsRegistry metrics, String methodName) {
+    Counter[] counters = new Counter[CLASS_NAMES.length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = metrics.counter("stun.messages." + methodName + "." + CLASS_NAMES[i]);
+    }
+    return counters;
+  }
+
+  private static String methodName(int method) {
+    switch (method) {
+      case MESSAGE_METHOD_BINDING:
+        return "binding";
+      case MESSAGE_METHOD_SHARED_SECRET:
+        return "shared_secret";
+      case MESSAGE_METHOD_NEGOCIATE:
+        return "negotiate";
+      case MESSAGE_METHOD_PP:
+        return "pp";
+      case MESSAGE_METHOD_LOOKUP:
+        return "lookup";
+      default:
+        return String.format("method_%03x", method);
+    }
+  }
+
+  private static long micros(long fromNanos, long toNanos) {
+    return TimeUnit.NANOSECONDS.toMicros(toNanos - fromNanos);
   }
 
   private byte[] getErrorResponse(Message message, ErrorCode errorCode) {
@@ -122,7 +386,7 @@ public class Agent implements MessageHandler {
     }
 
     int msgLength = message.getMessageLength();
-    int actualMessageLength = message.getAttributeBytes().length;
+    int actualMessageLength = message.getAttributesLength();
     if (msgLength != actualMessageLength) {
       String errorMsg = String.format(
           "message length from header was %d but was actually %d", msgLength, actualMessageLength);
@@ -130,14 +394,15 @@ public class Agent implements MessageHandler {
     }
 
     int msgMethod = message.getMessageMethod();
-    if (!registeredMethodProcessors.containsKey(msgMethod)) {
+    MethodProcessor proc = getProcessor(msgMethod);
+    if (proc == null) {
       String errorMsg =
           String.format("unsupported message method %d", msgMethod);
       throw new ProtocolException(ProtocolException.ReasonCode.UNSUPPORTED_METHOD, errorMsg);
     }
 
     int msgClass = message.getMessageClass();
-    if (!registeredMethodProcessors.get(msgMethod).isClassSupported(msgClass)) {
+    if (!proc.isClassSupported(msgClass)) {
       String errorMsg =
           String.format("unsupported message class %d for method %d", msgClass, msgMethod);
       throw new ProtocolException(
@@ -146,7 +411,45 @@ public class Agent implements MessageHandler {
 
   }
 
+  /**
+   * Returns the agent shared by every server and client in the process, with
+   * the binding, negotiate, PP and lookup processors.
+   */
+  public static Agent getBasicServer() {
+    if (basicServer == null) {
+      synchronized (Agent.class) {
+        if (basicServer == null) {
+          basicServer = new Agent(
+              BasicProcessors.INSTANCE, MetricsRegistry.getInstance(), createResponseCache());
+        }
+      }
+    }
+    return basicServer;
+  }
+
+  /**
+   * Returns a new agent with the same processors as {@link #getBasicServer()}.
+   * The processors themselves are shared; prefer the shared agent unless the
+   * new one needs its own identity. The new agent gets its own response cache.
+   */
   public static Agent createBasicServer() {
-    return new Agent(Lists.newArrayList(new BindingProcessor(), new NegociatingProcessor(), new PpProcessor()));
+    return new Agent(BasicProcessors.INSTANCE, MetricsRegistry.getInstance(), createResponseCache());
+  }
+
+  /**
+   * Creates a response cache sized by pp.cache.size and with entries kept for
+   * pp.cache.ttl seconds, or returns null if either is 0.
+   */
+  @Nullable
+  private static ResponseCache createResponseCache() {
+    int size = Integer.getInteger("pp.cache.size", Constants.RESPONSE_CACHE_SIZE);
+    int ttl = Integer.getInteger("pp.cache.ttl", Constants.RESPONSE_CACHE_TTL);
+    return size > 0 && ttl > 0 ? new ResponseCache(size, ttl, TimeUnit.SECONDS) : null;
+  }
+
+  /** The processors of the basic server, created on first use and shared by the process. */
+  private static final class BasicProcessors {
+    static final List<MethodProcessor> INSTANCE = ImmutableList.<MethodProcessor>of(
+        new BindingProcessor(), new NegociatingProcessor(), new PpProcessor(), new LookupProcessor());
   }
 }
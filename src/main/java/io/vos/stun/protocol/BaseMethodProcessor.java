@@ -4,13 +4,13 @@ import static io.vos.stun.message.Messages.*;
 
 import io.vos.stun.attribute.Attribute;
 import io.vos.stun.attribute.Attributes;
+import io.vos.stun.attribute.AttributesCollection;
 import io.vos.stun.message.Message;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -95,7 +95,7 @@ public class BaseMethodProcessor implements MethodProcessor {
     // code of 420 (Unknown Attribute), and includes an UNKNOWN-ATTRIBUTES
     // attribute in the response that lists the unknown comprehension-
     // required attributes.
-    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext.getAttributes());
+    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext);
     if (unknownAttributeTypes.size() > 0) {
       String errorMsg = String.format(
           "Unknown required attribute types %s", Joiner.on(",").join(unknownAttributeTypes));
@@ -111,7 +111,7 @@ public class BaseMethodProcessor implements MethodProcessor {
       throw new UnsupportedOperationException();
     }
 
-    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext.getAttributes());
+    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext);
     if (unknownAttributeTypes.size() > 0) {
       String errorMsg = String.format(
               "Unknown required attribute types %s", Joiner.on(",").join(unknownAttributeTypes));
@@ -131,7 +131,7 @@ public class BaseMethodProcessor implements MethodProcessor {
     // If the success response contains unknown comprehension-required
     // attributes, the response is discarded and the transaction is
     // considered to have failed.
-    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext.getAttributes());
+    List<Integer> unknownAttributeTypes = findUnknownAttributeTypes(requestContext);
     if (unknownAttributeTypes.size() > 0) {
       String errorMsg = String.format(
               "Unknown required attribute types %s", Joiner.on(",").join(unknownAttributeTypes));
@@ -163,6 +163,9 @@ public class BaseMethodProcessor implements MethodProcessor {
 
   /** Returns true if any attribute is unsupported and required. */
   private boolean hasUnknownAttributes(Iterable<Attribute> attributes) {
+    if (attributes instanceof AttributesCollection) {
+      return !((AttributesCollection) attributes).getUnknownRequiredTypes().isEmpty();
+    }
     for (Attribute a : attributes) {
       if (Attributes.isUnknownAttribute(a) && a.isComprehensionRequired()) {
         return true;
@@ -171,14 +174,11 @@ public class BaseMethodProcessor implements MethodProcessor {
     return false;
   }
 
-  /** Returns a List of all attributes that are unsupported and required. */
-  private List<Integer> findUnknownAttributeTypes(Iterable<Attribute> attributes) {
-    List<Integer> unknownAttributeTypes = new ArrayList<>();
-    for (Attribute a : attributes) {
-      if (Attributes.isUnknownAttribute(a) && a.isComprehensionRequired()) {
-        unknownAttributeTypes.add(a.getType());
-      }
-    }
-    return unknownAttributeTypes;
+  /**
+   * Returns a List of all attributes that are unsupported and required. Checks
+   * the attribute types only, so no attribute is decoded for this.
+   */
+  private List<Integer> findUnknownAttributeTypes(RequestContext requestContext) {
+    return requestContext.getAttributesCollection().getUnknownRequiredTypes();
   }
 }
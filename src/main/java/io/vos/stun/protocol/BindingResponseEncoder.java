@@ -0,0 +1,139 @@
+package io.vos.stun.protocol;
+
+import static io.vos.stun.attribute.Attributes.*;
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.attribute.MappedAddressAttribute;
+import io.vos.stun.message.Message;
+
+import com.google.common.base.Preconditions;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes binding success responses straight into a caller's buffer, heap or
+ * direct. The response is the 20 byte header echoing the request's
+ * transaction ID, followed by a single XOR-MAPPED-ADDRESS attribute, or a
+ * MAPPED-ADDRESS for an RFC 3489 request:
+ *
+ *     0                   1                   2                   3
+ *     0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |0 0|  Binding Success (0x0101) |    Message Length (12 or 24)  |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                    Magic Cookie, Transaction ID               |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    | XOR-MAPPED-ADDRESS (0x0020)   |     Attribute Length (8 or 20)|
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |0 0 0 0 0 0 0 0|    Family     |         X-Port                |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *    |                X-Address (32 bits or 128 bits)                |
+ *    +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *
+ * Only the transaction ID and the address vary between responses, so the
+ * rest is written from constants and the XOR is done on whole ints and longs.
+ * Nothing is allocated but the address bytes {@link InetAddress} hands out.
+ * <p>
+ * The bytes are the same as those of the general path through
+ * {@link BindingProcessor} for a request without attributes; a request with
+ * attributes gets them echoed there, so it can't use this encoder.
+ */
+public final class BindingResponseEncoder {
+
+  /** The longest response written, the one for an IPv6 address. */
+  public static final int MAX_ENCODED_LENGTH = MESSAGE_LEN_HEADER + 4 + 20;
+
+  private static final int BINDING_SUCCESS_TYPE =
+      Message.messageType(MESSAGE_CLASS_RESPONSE, MESSAGE_METHOD_BINDING);
+
+  private BindingResponseEncoder() {}
+
+  /** Returns the length of the response mapping {@code address}. */
+  public static int encodedLength(InetAddress address) {
+    return MESSAGE_LEN_HEADER + 4 + valueLength(address);
+  }
+
+  /**
+   * Writes the binding success response to {@code request}, mapping
+   * {@code mappedAddress}, at the position of {@code out} and advances the
+   * position past it. Throws an IllegalArgumentException if {@code out} has
+   * less than {@link #encodedLength} bytes remaining.
+   */
+  public static void encodeSuccessResponse(
+      Message request, InetSocketAddress mappedAddress, ByteBuffer out) {
+    InetAddress address = mappedAddress.getAddress();
+    int valueLength = valueLength(address);
+    Preconditions.checkArgument(out.remaining() >= MESSAGE_LEN_HEADER + 4 + valueLength,
+        "Need %s bytes for the response, have %s",
+        MESSAGE_LEN_HEADER + 4 + valueLength, out.remaining());
+
+    int tidHigh = request.getTransactionIdHigh();
+    long tidLow = request.getTransactionIdLow();
+    out.putShort((short) BINDING_SUCCESS_TYPE);
+    out.putShort((short) (4 + valueLength));
+    out.putInt(MAGIC_COOKIE_FIXED_VALUE);
+    out.putInt(tidHigh);
+    out.putLong(tidLow);
+    if (request.isRFC5389Message()) {
+      putXorMappedAddress(out, address, mappedAddress.getPort(), tidHigh, tidLow);
+    } else {
+      putMappedAddress(out, address, mappedAddress.getPort());
+    }
+  }
+
+  /**
+   * Writes an XOR-MAPPED-ADDRESS attribute, header included, for
+   * {@code address} and {@code port} in a message with the given transaction
+   * ID at the position of {@code out}, and advances the position past it.
+   */
+  public static void putXorMappedAddress(
+      ByteBuffer out, InetAddress address, int port, int tidHigh, long tidLow) {
+    byte[] addressBytes = address.getAddress();
+    putAttributeHeader(out, ATTRIBUTE_XOR_MAPPED_ADDRESS, addressBytes);
+    out.putShort((short) (port ^ (MAGIC_COOKIE_FIXED_VALUE >>> 16)));
+    if (addressBytes.length == 4) {
+      out.putInt(getInt(addressBytes, 0) ^ MAGIC_COOKIE_FIXED_VALUE);
+    } else {
+      long mask = ((long) MAGIC_COOKIE_FIXED_VALUE << 32) | (tidHigh & 0xffffffffL);
+      out.putLong(getLong(addressBytes, 0) ^ mask);
+      out.putLong(getLong(addressBytes, 8) ^ tidLow);
+    }
+  }
+
+  private static void putMappedAddress(ByteBuffer out, InetAddress address, int port) {
+    byte[] addressBytes = address.getAddress();
+    putAttributeHeader(out, ATTRIBUTE_MAPPED_ADDRESS, addressBytes);
+    out.putShort((short) port);
+    out.put(addressBytes);
+  }
+
+  private static void putAttributeHeader(ByteBuffer out, int type, byte[] addressBytes) {
+    out.putShort((short) type);
+    out.putShort((short) (4 + addressBytes.length));
+    out.putShort(addressBytes.length == 4
+        ? MappedAddressAttribute.AF_IPV4
+        : MappedAddressAttribute.AF_IPV6);
+  }
+
+  private static int valueLength(InetAddress address) {
+    if (address instanceof Inet4Address) {
+      return 8;
+    } else if (address instanceof Inet6Address) {
+      return 20;
+    }
+    throw new AssertionError("Should either have an IPv4 or IPv6 address");
+  }
+
+  private static int getInt(byte[] b, int offset) {
+    return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16
+        | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+  }
+
+  private static long getLong(byte[] b, int offset) {
+    return ((long) getInt(b, offset) << 32) | (getInt(b, offset + 4) & 0xffffffffL);
+  }
+}
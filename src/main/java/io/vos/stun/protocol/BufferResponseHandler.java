@@ -0,0 +1,31 @@
+package io.vos.stun.protocol;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ResponseHandler} that can also take replies written straight into
+ * its own pooled buffers. The {@link Agent} writes replies this way when the
+ * handler it is given implements this interface, so the reply path needs no
+ * per-message byte arrays; the byte array methods remain for everything else.
+ * <p>
+ * Implementations must be thread safe, since one handler is usually shared by
+ * every worker replying on a socket.
+ */
+public interface BufferResponseHandler extends ResponseHandler {
+
+  /**
+   * Returns an empty packet to write a reply into, or null if none is free.
+   * The caller must pass the packet to {@link #send} or {@link #release}.
+   */
+  @Nullable OutboundPacket acquire();
+
+  /**
+   * Sends the bytes before the position of the packet's buffer to its
+   * destination, and takes the packet back. The send may happen later, from
+   * another thread.
+   */
+  void send(OutboundPacket packet);
+
+  /** Takes back a packet without sending it. */
+  void release(OutboundPacket packet);
+}
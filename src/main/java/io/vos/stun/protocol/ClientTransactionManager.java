@@ -0,0 +1,235 @@
+package io.vos.stun.protocol;
+
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.message.Message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the client side of STUN transactions over one datagram socket, so that
+ * any number of binding, PP and negotiate requests can be in flight at once.
+ * Requests in flight are kept in a concurrent table keyed by their 96 bit
+ * transaction ID, held as an int and a long. A single thread reads the socket
+ * and completes the future of the transaction each response belongs to;
+ * retransmissions follow a {@link RetransmissionPolicy} on the shared
+ * {@link HashedWheelTimer}, so no thread waits on any one transaction.
+ * <p>
+ * The manager owns the socket from {@link #start} on: nothing else may read
+ * from it, and {@link #close} closes it.
+ */
+public final class ClientTransactionManager implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClientTransactionManager.class);
+
+  /** Largest response read; longer datagrams are truncated and fail to parse. */
+  private static final int MAX_RESPONSE_SIZE = 2048;
+
+  private final DatagramSocket socket;
+  private final HashedWheelTimer timer;
+  private final RetransmissionPolicy policy;
+  private final ConcurrentMap<TransactionKey, Transaction> transactions = new ConcurrentHashMap<>();
+  private final Thread receiveThread;
+  private volatile boolean closed;
+
+  /** Creates a manager retransmitting on the RFC 5389 schedule over the shared timer. */
+  public ClientTransactionManager(DatagramSocket socket) {
+    this(socket, HashedWheelTimer.getInstance(), RetransmissionPolicy.DEFAULT);
+  }
+
+  public ClientTransactionManager(
+      DatagramSocket socket, HashedWheelTimer timer, RetransmissionPolicy policy) {
+    this.socket = Preconditions.checkNotNull(socket);
+    this.timer = Preconditions.checkNotNull(timer);
+    this.policy = Preconditions.checkNotNull(policy);
+    this.receiveThread = new ThreadFactoryBuilder()
+        .setNameFormat("pp-client-receive-" + socket.getLocalPort())
+        .setDaemon(true)
+        .build()
+        .newThread(new Receiver());
+  }
+
+  /** Starts reading responses from the socket. */
+  public void start() {
+    receiveThread.start();
+  }
+
+  /**
+   * Sends {@code request} to {@code destination}, retransmitting it until a
+   * response with the same transaction ID arrives, and returns the response.
+   * Error responses complete the future too; it fails with a TimeoutException
+   * if the policy runs out of retransmissions, and with the IOException if the
+   * request can't be sent. Cancelling the future stops the retransmissions.
+   */
+  public ListenableFuture<Message> send(Message request, InetSocketAddress destination) {
+    Preconditions.checkNotNull(destination);
+    Preconditions.checkArgument(request.getMessageClass() == MESSAGE_CLASS_REQUEST,
+        "Only requests get responses");
+    if (closed) {
+      return Futures.immediateFailedFuture(new IOException("Transaction manager closed"));
+    }
+    final TransactionKey key = new TransactionKey(
+        request.getTransactionIdHigh(), request.getTransactionIdLow());
+    final Transaction transaction = new Transaction(key, request.getBytes(), destination);
+    if (transactions.putIfAbsent(key, transaction) != null) {
+      return Futures.immediateFailedFuture(
+          new IllegalStateException("Transaction ID already in flight"));
+    }
+    transaction.future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        transactions.remove(key, transaction);
+        HashedWheelTimer.Timeout timeout = transaction.timeout;
+        if (timeout != null) {
+          timeout.cancel();
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    transaction.run();
+    return transaction.future;
+  }
+
+  /** Returns the number of transactions waiting for a response. */
+  public int getPendingTransactions() {
+    return transactions.size();
+  }
+
+  /**
+   * Closes the socket, and fails every transaction still waiting for a
+   * response with an IOException.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    socket.close();
+    failAll(new IOException("Transaction manager closed"));
+  }
+
+  private void failAll(Throwable cause) {
+    for (Transaction transaction : transactions.values()) {
+      transaction.future.setException(cause);
+    }
+  }
+
+  /** One request in flight; running it sends the next retransmission. */
+  private final class Transaction implements Runnable {
+
+    final TransactionKey key;
+    final SettableFuture<Message> future = SettableFuture.create();
+    private final DatagramPacket packet;
+    private int attempt = -1;
+    volatile HashedWheelTimer.Timeout timeout;
+
+    Transaction(TransactionKey key, byte[] requestBytes, InetSocketAddress destination) {
+      this.key = key;
+      this.packet = new DatagramPacket(requestBytes, requestBytes.length, destination);
+    }
+
+    // Runs on the caller's thread for the first send, then on the timer, one
+    // at a time since each run schedules the next.
+    @Override
+    public void run() {
+      if (future.isDone()) {
+        return;
+      }
+      if (++attempt == policy.getMaxRequests()) {
+        future.setException(new TimeoutException(String.format(
+            "No response from %s after %s requests", packet.getSocketAddress(), attempt)));
+        return;
+      }
+      try {
+        socket.send(packet);
+      } catch (IOException e) {
+        future.setException(e);
+        return;
+      }
+      timeout = timer.schedule(this, policy.getTimeoutMillis(attempt), TimeUnit.MILLISECONDS);
+      if (future.isDone()) {
+        timeout.cancel();
+      }
+    }
+  }
+
+  private final class Receiver implements Runnable {
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      while (!closed) {
+        packet.setLength(buffer.length);
+        try {
+          socket.receive(packet);
+        } catch (IOException e) {
+          if (!closed) {
+            LOG.error("Client socket failed, abandoning {} transactions", transactions.size(), e);
+            closed = true;
+            failAll(e);
+          }
+          return;
+        }
+        onPacket(buffer, packet.getLength());
+      }
+    }
+
+    private void onPacket(byte[] buffer, int length) {
+      if (length < MESSAGE_LEN_HEADER) {
+        return;
+      }
+      Message view = Message.wrap(buffer, 0, length);
+      int messageClass = view.getMessageClass();
+      if (messageClass != MESSAGE_CLASS_RESPONSE && messageClass != MESSAGE_CLASS_ERROR_RESPONSE) {
+        return;
+      }
+      Transaction transaction = transactions.get(
+          new TransactionKey(view.getTransactionIdHigh(), view.getTransactionIdLow()));
+      if (transaction != null) {
+        // Copied, the buffer is reused for the next datagram.
+        transaction.future.set(new Message(buffer, 0, length));
+      }
+    }
+  }
+
+  private static final class TransactionKey {
+
+    private final int high;
+    private final long low;
+
+    TransactionKey(int high, long low) {
+      this.high = high;
+      this.low = low;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * high + (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof TransactionKey)) {
+        return false;
+      }
+      TransactionKey that = (TransactionKey) other;
+      return high == that.high && low == that.low;
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package io.vos.stun.protocol;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks after a delay, for retransmission and negotiation timeouts. One
+ * thread advances a wheel of buckets a tick at a time and hands the tasks
+ * that came due to an executor of fixed size, so the number of threads stays
+ * the same however many timeouts are pending. Scheduling and cancelling are
+ * O(1) and take no lock: new timeouts go through a queue that only the wheel
+ * thread drains, and cancelled ones are unlinked when their bucket comes up.
+ * <p>
+ * A task runs no earlier than its delay and at most about a tick later. Tasks
+ * share the executor's threads, which also fire the retransmissions of every
+ * {@link ClientTransactionManager}, so they shouldn't block for long. A task
+ * that connects, reads a socket or waits for the user is scheduled with its
+ * own executor instead, usually {@link #getBlockingExecutor}.
+ */
+public final class HashedWheelTimer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private static final int DEFAULT_TICK_MILLIS = 10;
+  private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+  private static volatile HashedWheelTimer instance;
+  private static volatile ExecutorService blockingExecutor;
+
+  private final long tickNanos;
+  private final Timeout[] wheel;
+  private final int mask;
+  private final Executor executor;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final long startTime;
+  private final Thread workerThread;
+  private volatile boolean stopped;
+
+  /**
+   * Returns the timer shared by the clients and negotiators of the process,
+   * ticking every -Dpp.timer.tick milliseconds. Its tasks run on a daemon
+   * pool of -Dpp.timer.threads threads, by default one per processor.
+   */
+  public static HashedWheelTimer getInstance() {
+    if (instance == null) {
+      synchronized (HashedWheelTimer.class) {
+        if (instance == null) {
+          int threads = Integer.getInteger(
+              "pp.timer.threads", Runtime.getRuntime().availableProcessors());
+          Executor executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+              .setNameFormat("pp-timer-task-%d").setDaemon(true).build());
+          instance = new HashedWheelTimer(
+              Integer.getInteger("pp.timer.tick", DEFAULT_TICK_MILLIS), TimeUnit.MILLISECONDS,
+              DEFAULT_TICKS_PER_WHEEL, executor);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the pool for the blocking work of the clients and negotiators,
+   * such as TCP connects and reads or listener callbacks. Its daemon threads
+   * are created on demand and exit after a minute idle, so a task blocked on a
+   * socket holds only its own thread.
+   */
+  public static ExecutorService getBlockingExecutor() {
+    if (blockingExecutor == null) {
+      synchronized (HashedWheelTimer.class) {
+        if (blockingExecutor == null) {
+          blockingExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+              .setNameFormat("pp-client-%d").setDaemon(true).build());
+        }
+      }
+    }
+    return blockingExecutor;
+  }
+
+  /**
+   * Creates and starts a timer. {@code ticksPerWheel} is rounded up to a power
+   * of two; a delay longer than one turn of the wheel takes several turns.
+   */
+  public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+    Preconditions.checkArgument(tickDuration > 0);
+    Preconditions.checkArgument(ticksPerWheel > 0 && ticksPerWheel <= 1 << 16);
+    int size = 1;
+    while (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.wheel = new Timeout[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = Timeout.newBucket();
+    }
+    this.mask = size - 1;
+    this.executor = Preconditions.checkNotNull(executor);
+    this.startTime = System.nanoTime();
+    this.workerThread = new ThreadFactoryBuilder()
+        .setNameFormat("pp-timer-wheel").setDaemon(true).build()
+        .newThread(new Worker());
+    workerThread.start();
+  }
+
+  /**
+   * Runs {@code task} on the timer's executor once {@code delay} has passed,
+   * unless the returned timeout is cancelled first.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    return schedule(task, delay, unit, executor);
+  }
+
+  /**
+   * Runs {@code task} on {@code executor} once {@code delay} has passed,
+   * unless the returned timeout is cancelled first. The timer only keeps the
+   * time, so the task may block without holding up other timeouts.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit, Executor executor) {
+    Preconditions.checkNotNull(task);
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkState(!stopped, "Timer stopped");
+    long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+    Timeout timeout = new Timeout(task, deadline, executor);
+    pending.incrementAndGet();
+    added.add(timeout);
+    return timeout;
+  }
+
+  /** Returns the number of timeouts neither run nor cancelled yet. */
+  public int getPendingTimeouts() {
+    return pending.get();
+  }
+
+  /** Stops the wheel; pending timeouts are dropped without running. */
+  public void stop() {
+    stopped = true;
+    workerThread.interrupt();
+  }
+
+  /** A scheduled task; entries also link it into its wheel bucket. */
+  public static final class Timeout {
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final Executor executor;
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+    // Only touched by the wheel thread.
+    private long remainingRounds;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline, Executor executor) {
+      this.task = task;
+      this.deadline = deadline;
+      this.executor = executor;
+    }
+
+    /** The sentinel heading the circular list of a bucket. */
+    private static Timeout newBucket() {
+      Timeout head = new Timeout(null, 0, null);
+      head.prev = head;
+      head.next = head;
+      return head;
+    }
+
+    /**
+     * Keeps the task from running, and returns false if it already ran or
+     * was cancelled before.
+     */
+    public boolean cancel() {
+      return state.compareAndSet(ST_INIT, ST_CANCELLED);
+    }
+
+    public boolean isCancelled() {
+      return state.get() == ST_CANCELLED;
+    }
+
+    /** Whether the delay passed and the task was handed to the executor. */
+    public boolean isExpired() {
+      return state.get() == ST_EXPIRED;
+    }
+
+    private void linkBefore(Timeout head) {
+      prev = head.prev;
+      next = head;
+      head.prev.next = this;
+      head.prev = this;
+    }
+
+    private void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = null;
+      next = null;
+    }
+  }
+
+  private final class Worker implements Runnable {
+
+    private long tick;
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        if (!waitForNextTick()) {
+          break;
+        }
+        transferAdded();
+        expireBucket(wheel[(int) (tick & mask)]);
+        tick++;
+      }
+    }
+
+    /** Sleeps until the end of the current tick, returns false if stopped. */
+    private boolean waitForNextTick() {
+      long tickEnd = (tick + 1) * tickNanos;
+      while (true) {
+        long sleepNanos = tickEnd - (System.nanoTime() - startTime);
+        if (sleepNanos <= 0) {
+          return true;
+        }
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          if (stopped) {
+            return false;
+          }
+        }
+      }
+    }
+
+    private void transferAdded() {
+      Timeout timeout;
+      while ((timeout = added.poll()) != null) {
+        if (timeout.isCancelled()) {
+          pending.decrementAndGet();
+          continue;
+        }
+        long dueTick = Math.max(timeout.deadline / tickNanos, tick);
+        timeout.remainingRounds = (dueTick - tick) / wheel.length;
+        timeout.linkBefore(wheel[(int) (dueTick & mask)]);
+      }
+    }
+
+    private void expireBucket(Timeout head) {
+      Timeout timeout = head.next;
+      while (timeout != head) {
+        Timeout next = timeout.next;
+        if (timeout.isCancelled()) {
+          timeout.unlink();
+          pending.decrementAndGet();
+        } else if (timeout.remainingRounds <= 0) {
+          timeout.unlink();
+          pending.decrementAndGet();
+          if (timeout.state.compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+            execute(timeout);
+          }
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    private void execute(Timeout timeout) {
+      try {
+        timeout.executor.execute(timeout.task);
+      } catch (RejectedExecutionException e) {
+        LOG.warn("Timer task rejected by its executor", e);
+      }
+    }
+  }
+}
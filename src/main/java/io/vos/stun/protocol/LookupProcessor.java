@@ -0,0 +1,107 @@
+package io.vos.stun.protocol;
+
+import com.didlink.index.LocationIndex;
+import com.didlink.models.UserLocation;
+import io.vos.stun.attribute.Attribute;
+import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.LocationQueryAttribute;
+import io.vos.stun.attribute.PeerLocationAttribute;
+
+import com.google.common.base.Preconditions;
+import com.google.common.net.InetAddresses;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_QUERY;
+import static io.vos.stun.message.Messages.*;
+
+/**
+ * Answers location lookups from the in-memory {@link LocationIndex}. A
+ * request carries one LOCATION-QUERY attribute and the response has a
+ * PEER-LOCATION attribute per user found, nearest first.
+ */
+final class LookupProcessor extends BaseMethodProcessor {
+
+  /** Most users returned by one lookup, keeps the response within one datagram. */
+  static final int MAX_RESULTS = 16;
+
+  /** How far a nearest users lookup searches, in km. */
+  static final double MAX_NEAREST_RADIUS_KM = 1000;
+
+  /** Largest radius searched by a radius lookup, in km; larger ones are clamped. */
+  static final double MAX_RADIUS_KM = 1000;
+
+  private final LocationIndex locationIndex;
+
+  LookupProcessor() {
+    this(LocationIndex.getInstance());
+  }
+
+  LookupProcessor(LocationIndex locationIndex) {
+    super(MESSAGE_METHOD_LOOKUP, MESSAGE_CLASS_REQUEST);
+    this.locationIndex = Preconditions.checkNotNull(locationIndex);
+  }
+
+  @Override
+  public byte[] processRequest(RequestContext requestContext) throws ProtocolException {
+    Attribute query = requestContext.getAttributesCollection().getFirstAttributeOfType(ATTRIBUTE_LOCATION_QUERY);
+    if (!(query instanceof LocationQueryAttribute)) {
+      throw new ProtocolException(ProtocolException.ReasonCode.MISSING_ATTRIBUTE,
+          "Lookup request without a location query");
+    }
+    LocationQueryAttribute locationQuery = (LocationQueryAttribute) query;
+    double latitude = locationQuery.getLatitude();
+    double longitude = locationQuery.getLongitude();
+    // Written so that NaN fails too.
+    if (locationQuery.getUid() == 0
+        && !(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180)) {
+      throw new ProtocolException(ProtocolException.ReasonCode.BAD_REQUEST,
+          String.format("Invalid coordinates %s,%s", latitude, longitude));
+    }
+    return super.processRequest(requestContext);
+  }
+
+  @Override
+  protected byte[] processRequestInternal(RequestContext requestContext) {
+    LocationQueryAttribute query = (LocationQueryAttribute)
+        requestContext.getAttributesCollection().getFirstAttributeOfType(ATTRIBUTE_LOCATION_QUERY);
+
+    AttributesCollection.Builder reply = AttributesCollection.EMPTY_COLLECTION.replyBuilder();
+    for (UserLocation location : lookup(query)) {
+      reply.addAttribute(PeerLocationAttribute.createAttribute(
+          location.getUid(),
+          location.getLatitude(),
+          location.getLongtitude(),
+          location.getLocatetime(),
+          InetAddresses.forString(location.getAddress()).getAddress(),
+          location.getPort()));
+    }
+    return reply.build().toByteArray();
+  }
+
+  @Override
+  protected InetSocketAddress getResponseAddressInternal(RequestContext requestContext) {
+    return requestContext.getReplyAddress();
+  }
+
+  private List<UserLocation> lookup(LocationQueryAttribute query) {
+    if (query.getUid() != 0) {
+      UserLocation location = locationIndex.get(query.getUid());
+      return location == null
+          ? Collections.<UserLocation>emptyList()
+          : Collections.singletonList(location);
+    }
+
+    // The coordinates were checked in processRequest.
+    double latitude = query.getLatitude();
+    double longitude = query.getLongitude();
+    int limit = Math.max(1, Math.min(MAX_RESULTS, query.getLimit()));
+    if (query.getRadiusMeters() > 0) {
+      double radiusKm = Math.min(MAX_RADIUS_KM, query.getRadiusMeters() / 1000.0);
+      return locationIndex.withinRadius(latitude, longitude, radiusKm, limit);
+    }
+    return locationIndex.nearest(latitude, longitude, limit, MAX_NEAREST_RADIUS_KM);
+  }
+}
@@ -6,7 +6,9 @@ import io.vos.stun.message.Message;
 import java.net.InetSocketAddress;
 
 /**
- * Implementations handle any/all message classes for a single method.
+ * Implementations handle any/all message classes for a single method. An
+ * {@link Agent} may call a processor from several threads at once, so
+ * implementations must be thread safe, ideally by keeping no mutable state.
  */
 public interface MethodProcessor {
 
@@ -0,0 +1,46 @@
+package io.vos.stun.protocol;
+
+import com.google.common.base.Preconditions;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable direct buffer for one outgoing datagram and the address it goes
+ * to. Packets are owned by a {@link BufferResponseHandler}: a packet taken
+ * from {@link BufferResponseHandler#acquire} must be handed back through
+ * {@link BufferResponseHandler#send} or {@link BufferResponseHandler#release}
+ * exactly once, and not touched afterwards.
+ */
+public final class OutboundPacket {
+
+  private final ByteBuffer buffer;
+  private InetSocketAddress destination;
+
+  public OutboundPacket(int capacity) {
+    Preconditions.checkArgument(capacity > 0);
+    buffer = ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * The buffer to write the datagram into, from position 0. Everything
+   * before the position when the packet is sent is the datagram.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  public InetSocketAddress getDestination() {
+    return destination;
+  }
+
+  public void setDestination(InetSocketAddress destination) {
+    this.destination = Preconditions.checkNotNull(destination);
+  }
+
+  /** Empties the packet for its next use. */
+  public void clear() {
+    buffer.clear();
+    destination = null;
+  }
+}
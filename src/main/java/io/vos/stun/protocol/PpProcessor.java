@@ -1,22 +1,28 @@
 package io.vos.stun.protocol;
 
-import com.didlink.db.UserLocationDAO;
+import com.didlink.db.LocationCoalescer;
+import com.didlink.db.LocationSink;
+import com.didlink.index.LocationIndex;
 import com.didlink.models.UserLocation;
 import io.vos.stun.attribute.Attribute;
 import io.vos.stun.attribute.AttributesCollection;
+import io.vos.stun.attribute.CompactLocationAttribute;
 import io.vos.stun.attribute.LocationAttribute;
+import io.vos.stun.attribute.LocationBatchAttribute;
+import io.vos.stun.attribute.LocationStatusAttribute;
 import io.vos.stun.attribute.MappedAddressAttribute;
-import io.vos.stun.util.Bytes;
 
+import javax.annotation.Nullable;
 import javax.xml.stream.Location;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_COMPACT_LOCATION;
 import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION;
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_BATCH;
 import static io.vos.stun.attribute.Attributes.ATTRIBUTE_XOR_MAPPED_ADDRESS;
 import static io.vos.stun.message.Messages.*;
 
@@ -24,11 +30,17 @@ final class PpProcessor extends BaseMethodProcessor {
   private static final Logger LOGGER = Logger
           .getLogger(PpProcessor.class.getName());
 
-    UserLocationDAO userLocationDAO;
+  private final LocationSink locationSink;
+  private final LocationIndex locationIndex;
 
   PpProcessor() {
+    this(LocationCoalescer.getInstance(), LocationIndex.getInstance());
+  }
+
+  PpProcessor(LocationSink locationSink, LocationIndex locationIndex) {
     super(MESSAGE_METHOD_PP, MESSAGE_CLASS_REQUEST, MESSAGE_CLASS_INDICATION, MESSAGE_CLASS_RESPONSE);
-    userLocationDAO = new UserLocationDAO();
+    this.locationSink = locationSink;
+    this.locationIndex = locationIndex;
   }
 
   /**
@@ -39,25 +51,34 @@ final class PpProcessor extends BaseMethodProcessor {
     AttributesCollection attributes = requestContext.getAttributesCollection();
 
     Attribute mappedAddress = requestContext.getMessage().isRFC5389Message()
-        ? getXorMappedAddress(requestContext)
-        : getMappedAddress(requestContext);
+        ? MappedAddressAttribute.createXorMappedAddress(
+            requestContext.getReplyAddress(), requestContext.getMessage().getTransactionId())
+        : MappedAddressAttribute.createMappedAddress(requestContext.getReplyAddress());
+
+    LocationBatchAttribute batchAttribute =
+        (LocationBatchAttribute) attributes.getFirstAttributeOfType(ATTRIBUTE_LOCATION_BATCH);
+    if (batchAttribute != null) {
+      // The statuses take the place of the echoed batch, which would only
+      // send the records back.
+      return AttributesCollection.EMPTY_COLLECTION.replyBuilder()
+          .addAttribute(mappedAddress)
+          .addAttribute(saveBatch(batchAttribute, requestContext.getReplyAddress()))
+          .build()
+          .toByteArray();
+    }
 
-    LocationAttribute locationAttribute = (LocationAttribute) attributes.getFirstAttributeOfType(ATTRIBUTE_LOCATION);
+    UserLocation userLocation = readLocation(attributes, requestContext.getReplyAddress());
 
-    if (locationAttribute == null) {
+    if (userLocation == null) {
       LOGGER.log(Level.WARNING, "no location information.");
     } else {
-      UserLocation userLocation = new UserLocation(locationAttribute.getUid(),
-              requestContext.getReplyAddress().getAddress().getHostAddress(),
-              requestContext.getReplyAddress().getPort(),
-              locationAttribute.getLatitude(),
-              locationAttribute.getLongitude(),
-              locationAttribute.getLocatetime());
       try {
-        userLocationDAO.saveLocation(userLocation);
-      } catch (Exception ex) {
-        LOGGER.log(Level.WARNING, "user location information is not saved.", ex);
-
+        locationIndex.update(userLocation);
+        // Queued for the background writer, the response doesn't wait for the database.
+        locationSink.save(userLocation);
+      } catch (IllegalArgumentException ex) {
+        // Not stored, like an invalid record of a batch.
+        LOGGER.log(Level.WARNING, "invalid location from uid " + userLocation.getUid(), ex);
       }
     }
 
@@ -68,13 +89,81 @@ final class PpProcessor extends BaseMethodProcessor {
         .toByteArray();
   }
 
+  /**
+   * Returns the location of a LOCATION or a COMPACT-LOCATION attribute, or
+   * null if the request has neither.
+   */
+  @Nullable
+  private static UserLocation readLocation(
+      AttributesCollection attributes, InetSocketAddress replyAddress) {
+    LocationAttribute locationAttribute = (LocationAttribute) attributes.getFirstAttributeOfType(ATTRIBUTE_LOCATION);
+    if (locationAttribute != null) {
+      return new UserLocation(locationAttribute.getUid(),
+              replyAddress.getAddress().getHostAddress(),
+              replyAddress.getPort(),
+              locationAttribute.getLatitude(),
+              locationAttribute.getLongitude(),
+              locationAttribute.getLocatetime());
+    }
+    CompactLocationAttribute compactAttribute =
+        (CompactLocationAttribute) attributes.getFirstAttributeOfType(ATTRIBUTE_COMPACT_LOCATION);
+    if (compactAttribute != null) {
+      return new UserLocation(compactAttribute.getUid(),
+              replyAddress.getAddress().getHostAddress(),
+              replyAddress.getPort(),
+              compactAttribute.getLatitude(),
+              compactAttribute.getLongitude(),
+              compactAttribute.getLocatetime());
+    }
+    return null;
+  }
+
+  /**
+   * Indexes the batch's records and queues the valid, newest ones for the
+   * database in one go, returning the status of each record.
+   */
+  private LocationStatusAttribute saveBatch(
+      LocationBatchAttribute batchAttribute, InetSocketAddress replyAddress) {
+    String address = replyAddress.getAddress().getHostAddress();
+    int port = replyAddress.getPort();
+    int size = batchAttribute.size();
+    byte[] statuses = new byte[size];
+    List<UserLocation> accepted = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      UserLocation userLocation = new UserLocation(batchAttribute.getUid(i), address, port,
+              batchAttribute.getLatitude(i),
+              batchAttribute.getLongitude(i),
+              batchAttribute.getLocatetime(i));
+      try {
+        if (locationIndex.update(userLocation)) {
+          statuses[i] = LocationStatusAttribute.STATUS_OK;
+          accepted.add(userLocation);
+        } else {
+          // The coalescer in front of the database would drop it anyway.
+          statuses[i] = LocationStatusAttribute.STATUS_STALE;
+        }
+      } catch (IllegalArgumentException ex) {
+        statuses[i] = LocationStatusAttribute.STATUS_INVALID;
+      }
+    }
+    if (accepted.size() < size) {
+      LOGGER.log(Level.WARNING, (size - accepted.size()) + " of " + size
+          + " batched locations from " + address + " are invalid.");
+    }
+    if (!accepted.isEmpty()) {
+      locationSink.saveAll(accepted);
+    }
+    return LocationStatusAttribute.createAttribute(statuses);
+  }
+
   @Override
   protected byte[] processIndicationInternal(RequestContext requestContext) {
     AttributesCollection attributes = requestContext.getAttributesCollection();
 
     Attribute mappedAddress = requestContext.getMessage().isRFC5389Message()
-            ? getXorMappedAddress(requestContext)
-            : getMappedAddress(requestContext);
+            ? MappedAddressAttribute.createXorMappedAddress(
+            requestContext.getReplyAddress(), requestContext.getMessage().getTransactionId())
+            : MappedAddressAttribute.createMappedAddress(requestContext.getReplyAddress());
     return AttributesCollection.EMPTY_COLLECTION.replyBuilder()
             .addAttribute(mappedAddress)
             .build()
@@ -89,11 +178,9 @@ final class PpProcessor extends BaseMethodProcessor {
             (MappedAddressAttribute)attributes.getFirstAttributeOfType(ATTRIBUTE_XOR_MAPPED_ADDRESS);
 
     Attribute mappedAddress = requestContext.getMessage().isRFC5389Message()
-            ? getXorMappedAddress(mappedAttri.getMappedAddress(),
-              mappedAttri.getPort(),
-              mappedAttri.isIPv4() ? MappedAddressAttribute.AF_IPV4 : MappedAddressAttribute.AF_IPV6,
-              requestContext.getMessage().getTransactionId())
-            : getMappedAddress(requestContext);
+            ? MappedAddressAttribute.createXorMappedAddress(mappedAttri.getMappedAddress(),
+              mappedAttri.getPort(), requestContext.getMessage().getTransactionId())
+            : MappedAddressAttribute.createMappedAddress(requestContext.getReplyAddress());
 
     return attributes.replyBuilder()
             .removeAllAttributesByType(ATTRIBUTE_XOR_MAPPED_ADDRESS)
@@ -106,65 +193,4 @@ final class PpProcessor extends BaseMethodProcessor {
   protected InetSocketAddress getResponseAddressInternal(RequestContext requestContext) {
     return requestContext.getReplyAddress();
   }
-
-  private Attribute getMappedAddress(RequestContext requestContext) {
-    InetSocketAddress replyAddress = requestContext.getReplyAddress();
-    byte[] portBytes = Bytes.intToBytes(replyAddress.getPort());
-    byte[] addressBytes = replyAddress.getAddress().getAddress();
-    int addressFamily = addressBytes.length == 4
-        ? MappedAddressAttribute.AF_IPV4
-        : MappedAddressAttribute.AF_IPV6;
-    return MappedAddressAttribute.
-        createAttribute(addressFamily, portBytes, addressBytes, false /* isXor */);
-  }
-
-  private Attribute getXorMappedAddress(RequestContext requestContext) {
-    InetSocketAddress replyAddress = requestContext.getReplyAddress();
-
-    //System.out.println(String.format("getXorMappedAddress Address: %s %d", replyAddress.getAddress(), replyAddress.getPort()));
-
-    byte addressFamily;
-    byte[] addressBytes = replyAddress.getAddress().getAddress();
-    if (replyAddress.getAddress() instanceof Inet4Address) {
-      addressFamily = MappedAddressAttribute.AF_IPV4;
-    } else if (replyAddress.getAddress() instanceof Inet6Address) {
-      addressFamily = MappedAddressAttribute.AF_IPV6;
-    } else {
-      throw new AssertionError("Should either have an IPv4 or IPv6 address");
-    }
-
-    return getXorMappedAddress(addressBytes, replyAddress.getPort(), addressFamily, requestContext.getMessage().getTransactionId());
-  }
-
-  private Attribute getXorMappedAddress(byte[] addressBytes, int port, byte addressFamily, byte[] transactionID) {
-
-    //System.out.println(String.format("getXorMappedAddress Address: %s %d %d %s", new Address(addressBytes).toString(), port, addressFamily, transactionID));
-
-    byte[] magicCookieBytes = Bytes.intToBytes(MAGIC_COOKIE_FIXED_VALUE);
-    byte[] portBytes = Bytes.intToBytes(port);
-    byte[] xPortBytes = new byte[] {
-      (byte)(portBytes[2] ^ magicCookieBytes[0]),
-      (byte)(portBytes[3] ^ magicCookieBytes[1])
-    };
-
-    byte[] xAddressBytes = new byte[addressBytes.length];
-    byte[] xorBytes;
-    if (addressFamily == MappedAddressAttribute.AF_IPV4) {
-      xorBytes = magicCookieBytes;
-    } else if (addressFamily == MappedAddressAttribute.AF_IPV6) {
-      xorBytes = com.google.common.primitives.Bytes.concat(
-          magicCookieBytes, transactionID);
-    } else {
-      throw new AssertionError("Should either have an IPv4 or IPv6 address");
-    }
-
-    for (int i = 0; i < addressBytes.length; i++) {
-      xAddressBytes[i] = (byte)(addressBytes[i] ^ xorBytes[i]);
-    }
-
-    //System.out.println(String.format("getXorMappedAddress Address: %s %d", new Address(xAddressBytes).toString(), Bytes.twoBytesToInt(xPortBytes[0],xPortBytes[1])));
-
-    return MappedAddressAttribute
-        .createAttribute(addressFamily, xPortBytes, xAddressBytes, true /* isXor */);
-  }
 }
@@ -0,0 +1,120 @@
+package io.vos.stun.protocol;
+
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_COMPACT_LOCATION;
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION;
+import static io.vos.stun.attribute.Attributes.ATTRIBUTE_LOCATION_BATCH;
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.attribute.CompactLocationAttribute;
+import io.vos.stun.attribute.LocationBatchAttribute;
+import io.vos.stun.message.Message;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes PP requests straight into a caller's buffer: the 20 byte header
+ * followed by a single LOCATION attribute, the same bytes as building the
+ * request from a {@link io.vos.stun.attribute.LocationAttribute} but without
+ * the intermediate attribute, collection and builder objects. A batch
+ * request carries a LOCATION-BATCH attribute instead, and a compact request a
+ * COMPACT-LOCATION.
+ */
+public final class PpRequestEncoder {
+
+  private static final int LOCATION_VALUE_LENGTH = 32;
+
+  /** The length of every encoded request. */
+  public static final int ENCODED_LENGTH = MESSAGE_LEN_HEADER + 4 + LOCATION_VALUE_LENGTH;
+
+  /** The longest compact request, most are 44 bytes or less. */
+  public static final int MAX_COMPACT_ENCODED_LENGTH =
+      MESSAGE_LEN_HEADER + 4 + ((CompactLocationAttribute.MAX_LENGTH + 3) & ~3);
+
+  private static final int PP_REQUEST_TYPE =
+      Message.messageType(MESSAGE_CLASS_REQUEST, MESSAGE_METHOD_PP);
+
+  private PpRequestEncoder() {}
+
+  /**
+   * Writes the request reporting {@code uid} at the given location and time,
+   * with the given transaction ID, at the position of {@code out} and
+   * advances the position past it.
+   */
+  public static void encodeRequest(int transactionIdHigh, long transactionIdLow,
+      long uid, double latitude, double longitude, long locatetime, ByteBuffer out) {
+    Preconditions.checkArgument(out.remaining() >= ENCODED_LENGTH,
+        "Need %s bytes for the request, have %s", ENCODED_LENGTH, out.remaining());
+    out.putShort((short) PP_REQUEST_TYPE);
+    out.putShort((short) (4 + LOCATION_VALUE_LENGTH));
+    out.putInt(MAGIC_COOKIE_FIXED_VALUE);
+    out.putInt(transactionIdHigh);
+    out.putLong(transactionIdLow);
+    out.putShort((short) ATTRIBUTE_LOCATION);
+    out.putShort((short) LOCATION_VALUE_LENGTH);
+    out.putLong(uid);
+    out.putDouble(latitude);
+    out.putDouble(longitude);
+    out.putLong(locatetime);
+  }
+
+  /**
+   * Writes the request reporting {@code uid} at the given location and time
+   * as a COMPACT-LOCATION with its locatetime relative to {@code baseSeconds},
+   * at the position of {@code out}, and advances the position past it.
+   * Returns the length of the request, at most
+   * {@link #MAX_COMPACT_ENCODED_LENGTH}.
+   */
+  public static int encodeCompactRequest(int transactionIdHigh, long transactionIdLow,
+      long uid, double latitude, double longitude, long locatetime, long baseSeconds,
+      ByteBuffer out) {
+    int valueLength = CompactLocationAttribute.valueLength(uid, locatetime, baseSeconds);
+    int paddedLength = (valueLength + 3) & ~3;
+    int length = MESSAGE_LEN_HEADER + 4 + paddedLength;
+    Preconditions.checkArgument(out.remaining() >= length,
+        "Need %s bytes for the request, have %s", length, out.remaining());
+    out.putShort((short) PP_REQUEST_TYPE);
+    out.putShort((short) (4 + paddedLength));
+    out.putInt(MAGIC_COOKIE_FIXED_VALUE);
+    out.putInt(transactionIdHigh);
+    out.putLong(transactionIdLow);
+    out.putShort((short) ATTRIBUTE_COMPACT_LOCATION);
+    out.putShort((short) valueLength);
+    CompactLocationAttribute.putValue(out, uid, latitude, longitude, locatetime, baseSeconds);
+    for (int i = valueLength; i < paddedLength; i++) {
+      out.put((byte) 0);
+    }
+    return length;
+  }
+
+  /** Returns the length of a batch request carrying {@code count} records. */
+  public static int encodedBatchLength(int count) {
+    return MESSAGE_LEN_HEADER + 4 + count * LOCATION_VALUE_LENGTH;
+  }
+
+  /**
+   * Writes the request reporting the records at the same index of each array
+   * as one LOCATION-BATCH, at the position of {@code out}, and advances the
+   * position past it.
+   */
+  public static void encodeBatchRequest(int transactionIdHigh, long transactionIdLow,
+      long[] uids, double[] latitudes, double[] longitudes, long[] locatetimes, ByteBuffer out) {
+    int count = uids.length;
+    Preconditions.checkArgument(count > 0 && count <= LocationBatchAttribute.MAX_RECORDS,
+        "Batch of %s records, expected 1 to %s", count, LocationBatchAttribute.MAX_RECORDS);
+    Preconditions.checkArgument(latitudes.length == count && longitudes.length == count
+        && locatetimes.length == count, "Columns of different lengths");
+    int length = encodedBatchLength(count);
+    Preconditions.checkArgument(out.remaining() >= length,
+        "Need %s bytes for the request, have %s", length, out.remaining());
+    out.putShort((short) PP_REQUEST_TYPE);
+    out.putShort((short) (length - MESSAGE_LEN_HEADER));
+    out.putInt(MAGIC_COOKIE_FIXED_VALUE);
+    out.putInt(transactionIdHigh);
+    out.putLong(transactionIdLow);
+    out.putShort((short) ATTRIBUTE_LOCATION_BATCH);
+    out.putShort((short) (count * LOCATION_VALUE_LENGTH));
+    LocationBatchAttribute.putRecords(out, uids, latitudes, longitudes, locatetimes);
+  }
+}
@@ -5,6 +5,8 @@ final class ProtocolException extends Exception {
   public enum ReasonCode  {
     FIRST_TWO_BITS_NOT_ZERO(ErrorCode.ERROR_400),
     INVALID_MESSAGE_LENGTH(ErrorCode.ERROR_400),
+    MISSING_ATTRIBUTE(ErrorCode.ERROR_400),
+    BAD_REQUEST(ErrorCode.ERROR_400),
     UNKNOWN_ATTRIBUTE(ErrorCode.ERROR_420),
     UNSUPPORTED_METHOD(ErrorCode.ERROR_500),
     UNSUPPORTED_CLASS_FOR_METHOD(ErrorCode.ERROR_500);
@@ -27,7 +29,9 @@ final class ProtocolException extends Exception {
   }
 
   ProtocolException(ReasonCode code, String message) {
-    super(message);
+    // Thrown for every malformed packet a client sends, and only ever caught
+    // by Agent, so skip the cost of capturing a stack trace.
+    super(message, null, false /* enableSuppression */, false /* writableStackTrace */);
     this.code = code;
   }
 
@@ -0,0 +1,107 @@
+package io.vos.stun.protocol;
+
+import io.vos.stun.message.Message;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Responses to recent requests, keyed by the request's source address and
+ * transaction ID, so that a retransmitted request is answered with the same
+ * bytes without running its method processor again (RFC 5389 section
+ * 7.3.1). Only success responses are cached: error responses are cheap to
+ * rebuild, and caching them would let a flood of malformed requests push
+ * out the useful entries. Entries expire a fixed time after they are
+ * written and the least recently used are evicted once the cache is full.
+ */
+public final class ResponseCache {
+
+  private final Cache<TransactionKey, CachedResponse> cache;
+
+  /**
+   * Creates a cache of at most {@code maximumSize} responses, each kept for
+   * {@code ttl}. RFC 5389 clients give up on a transaction after 39.5
+   * seconds with the default timers, so 40 seconds covers every
+   * retransmission.
+   */
+  public ResponseCache(long maximumSize, long ttl, TimeUnit unit) {
+    Preconditions.checkArgument(maximumSize > 0);
+    Preconditions.checkArgument(ttl > 0);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttl, unit)
+        .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+        .build();
+  }
+
+  /** Returns the response cached for {@code request} from {@code source}, or null. */
+  @Nullable
+  CachedResponse get(InetSocketAddress source, Message request) {
+    return cache.getIfPresent(new TransactionKey(source, request));
+  }
+
+  void put(InetSocketAddress source, Message request, CachedResponse response) {
+    cache.put(new TransactionKey(source, request), response);
+  }
+
+  /** Returns the approximate number of cached responses. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** A success response as it was handed to the {@link ResponseHandler}. */
+  static final class CachedResponse {
+
+    final byte[] data;
+    final InetSocketAddress destination;
+
+    CachedResponse(byte[] data, InetSocketAddress destination) {
+      this.data = data;
+      this.destination = destination;
+    }
+  }
+
+  /** Source address and port plus the 96 bit transaction ID, held as primitives. */
+  private static final class TransactionKey {
+
+    private final InetAddress address;
+    private final int port;
+    private final int transactionIdHigh;
+    private final long transactionIdLow;
+
+    TransactionKey(InetSocketAddress source, Message request) {
+      this.address = source.getAddress();
+      this.port = source.getPort();
+      this.transactionIdHigh = request.getTransactionIdHigh();
+      this.transactionIdLow = request.getTransactionIdLow();
+    }
+
+    @Override
+    public int hashCode() {
+      int result = address.hashCode();
+      result = 31 * result + port;
+      result = 31 * result + transactionIdHigh;
+      result = 31 * result + (int) (transactionIdLow ^ (transactionIdLow >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof TransactionKey)) {
+        return false;
+      }
+      TransactionKey key = (TransactionKey) other;
+      return transactionIdLow == key.transactionIdLow
+          && transactionIdHigh == key.transactionIdHigh
+          && port == key.port
+          && address.equals(key.address);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package io.vos.stun.protocol;
+
+import static io.vos.stun.attribute.Attributes.*;
+import static io.vos.stun.message.Messages.*;
+
+import io.vos.stun.attribute.MappedAddressAttribute;
+import io.vos.stun.message.Message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads the attributes a client needs out of a response by walking its
+ * attribute headers, without decoding the other attributes into objects.
+ */
+public final class ResponseDecoder {
+
+  private ResponseDecoder() {}
+
+  /**
+   * Returns the address in the response's XOR-MAPPED-ADDRESS, or else its
+   * MAPPED-ADDRESS, or null if it has neither or the attribute is malformed.
+   */
+  @Nullable
+  public static InetSocketAddress getMappedAddress(Message response) {
+    ByteBuffer data = ByteBuffer.wrap(response.getBytes());
+    int xorOffset = findAttribute(data, ATTRIBUTE_XOR_MAPPED_ADDRESS);
+    if (xorOffset >= 0) {
+      return readAddress(data, xorOffset, true /* isXor */);
+    }
+    int offset = findAttribute(data, ATTRIBUTE_MAPPED_ADDRESS);
+    return offset >= 0 ? readAddress(data, offset, false /* isXor */) : null;
+  }
+
+  /**
+   * Returns the code of the response's ERROR-CODE attribute, such as 400,
+   * or -1 if it has none.
+   */
+  public static int getErrorCode(Message response) {
+    ByteBuffer data = ByteBuffer.wrap(response.getBytes());
+    int offset = findAttribute(data, ATTRIBUTE_ERROR_CODE);
+    if (offset < 0 || data.getShort(offset + 2) < 4) {
+      return -1;
+    }
+    return (data.get(offset + 6) & 0x07) * 100 + (data.get(offset + 7) & 0xff);
+  }
+
+  /**
+   * Returns the per-record statuses of the response's LOCATION-STATUS, or
+   * null if it has none.
+   */
+  @Nullable
+  public static byte[] getLocationStatuses(Message response) {
+    ByteBuffer data = ByteBuffer.wrap(response.getBytes());
+    int offset = findAttribute(data, ATTRIBUTE_LOCATION_STATUS);
+    if (offset < 0) {
+      return null;
+    }
+    byte[] statuses = new byte[data.getShort(offset + 2) & 0xffff];
+    for (int i = 0; i < statuses.length; i++) {
+      statuses[i] = data.get(offset + 4 + i);
+    }
+    return statuses;
+  }
+
+  /** Returns the offset of the first attribute of {@code type}, or -1. */
+  private static int findAttribute(ByteBuffer data, int type) {
+    int end = Math.min(data.limit(), MESSAGE_LEN_HEADER + (data.getShort(MESSAGE_POS_LENGTH) & 0xffff));
+    int offset = MESSAGE_LEN_HEADER;
+    while (offset + 4 <= end) {
+      int attributeType = data.getShort(offset) & 0xffff;
+      int length = data.getShort(offset + 2) & 0xffff;
+      if (offset + 4 + length > end) {
+        return -1;
+      }
+      if (attributeType == type) {
+        return offset;
+      }
+      offset += 4 + ((length + 3) & ~3);
+    }
+    return -1;
+  }
+
+  @Nullable
+  private static InetSocketAddress readAddress(ByteBuffer data, int offset, boolean isXor) {
+    int length = data.getShort(offset + 2) & 0xffff;
+    int family = data.get(offset + 5);
+    int addressLength = family == MappedAddressAttribute.AF_IPV4 ? 4
+        : family == MappedAddressAttribute.AF_IPV6 ? 16 : -1;
+    if (addressLength < 0 || length != 4 + addressLength) {
+      return null;
+    }
+    int port = data.getShort(offset + 6) & 0xffff;
+    byte[] address = new byte[addressLength];
+    for (int i = 0; i < addressLength; i++) {
+      address[i] = data.get(offset + 8 + i);
+    }
+    if (isXor) {
+      port ^= MAGIC_COOKIE_FIXED_VALUE >>> 16;
+      // The magic cookie and transaction ID are the 16 header bytes from 4.
+      for (int i = 0; i < addressLength; i++) {
+        address[i] ^= data.get(MESSAGE_POS_MAGIC_COOKIE + i);
+      }
+    }
+    try {
+      return new InetSocketAddress(InetAddress.getByAddress(address), port);
+    } catch (UnknownHostException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
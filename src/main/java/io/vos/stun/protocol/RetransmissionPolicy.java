@@ -0,0 +1,61 @@
+package io.vos.stun.protocol;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * When a client retransmits a request over an unreliable transport, after
+ * RFC 5389 section 7.2.1. The request is sent up to Rc times; the wait after
+ * each send starts at RTO and doubles, and after the last send the client
+ * waits Rm times RTO before giving up. With the recommended RTO of 500 ms,
+ * Rc of 7 and Rm of 16, requests go out at 0, 500, 1500, 3500, 7500, 15500
+ * and 31500 ms and the transaction fails at 39500 ms.
+ */
+public final class RetransmissionPolicy {
+
+  /** The RFC 5389 defaults, overridable with -Dpp.stun.rto, -Dpp.stun.rc and -Dpp.stun.rm. */
+  public static final RetransmissionPolicy DEFAULT = new RetransmissionPolicy(
+      Integer.getInteger("pp.stun.rto", 500),
+      Integer.getInteger("pp.stun.rc", 7),
+      Integer.getInteger("pp.stun.rm", 16));
+
+  private final long rtoMillis;
+  private final int maxRequests;
+  private final int lastWaitMultiplier;
+
+  public RetransmissionPolicy(long rtoMillis, int maxRequests, int lastWaitMultiplier) {
+    Preconditions.checkArgument(rtoMillis > 0);
+    Preconditions.checkArgument(maxRequests > 0 && maxRequests < 32);
+    Preconditions.checkArgument(lastWaitMultiplier > 0);
+    this.rtoMillis = rtoMillis;
+    this.maxRequests = maxRequests;
+    this.lastWaitMultiplier = lastWaitMultiplier;
+  }
+
+  /** The initial retransmission timeout, RTO. */
+  public long getRtoMillis() {
+    return rtoMillis;
+  }
+
+  /** The number of times a request is sent, Rc. */
+  public int getMaxRequests() {
+    return maxRequests;
+  }
+
+  /**
+   * Returns how long to wait for a response after the {@code attempt}-th
+   * send, counting from 0.
+   */
+  public long getTimeoutMillis(int attempt) {
+    Preconditions.checkElementIndex(attempt, maxRequests);
+    return attempt == maxRequests - 1 ? rtoMillis * lastWaitMultiplier : rtoMillis << attempt;
+  }
+
+  /** Returns how long after the first send the transaction fails. */
+  public long getTransactionTimeoutMillis() {
+    long total = 0;
+    for (int i = 0; i < maxRequests; i++) {
+      total += getTimeoutMillis(i);
+    }
+    return total;
+  }
+}
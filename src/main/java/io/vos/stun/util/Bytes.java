@@ -111,4 +111,56 @@ public final class Bytes {
     }
     return newByteArray;
   }
+
+  /** The most bytes {@link #putVarLong} writes for any value. */
+  public static final int MAX_VARLONG_LENGTH = 10;
+
+  /**
+   * Writes {@code value} as an unsigned LEB128 varint, 7 bits per byte with
+   * the high bit set on all but the last byte, and advances the position.
+   */
+  public static void putVarLong(ByteBuffer out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  /**
+   * Reads a varint written by {@link #putVarLong} and advances the position.
+   *
+   * @throws IllegalArgumentException if the varint is longer than 10 bytes
+   * @throws java.nio.BufferUnderflowException if the buffer ends inside it
+   */
+  public static long getVarLong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  /** Returns the number of bytes {@link #putVarLong} writes for {@code value}. */
+  public static int varLongLength(long value) {
+    int length = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+
+  /** Maps signed values to unsigned ones so that small negatives stay short as varints. */
+  public static long zigZagEncode(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  public static long zigZagDecode(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
 }